@@ -18,6 +18,7 @@ package io.milton.s3;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.Iterator;
 import java.util.List;
 
 import com.amazonaws.services.s3.model.Bucket;
@@ -112,6 +113,25 @@ public interface AmazonS3Manager {
 	 * @return TRUE if successful, otherwise FASLE
 	 */
     boolean uploadEntity(String bucketName, String keyName, InputStream inputStream, ObjectMetadata metadata);
+    
+    /**
+     * Uploads the specified input stream of unknown length, e.g. the body of a
+     * chunked request, through a bounded set of buffers instead of buffering
+     * the whole stream
+     * 
+     * @param bucketName
+     *            - The name of an existing bucket
+     * @param keyName
+     *            - The key under which to store the specified stream
+     * @param inputStream
+     *            - The input stream containing the data to be uploaded
+     * @param metadata
+     *            - Additional metadata, without content length
+     * @return the number of bytes uploaded, or -1 if the stream could not be
+     *         uploaded
+     */
+    long uploadEntityOfUnknownLength(String bucketName, String keyName, InputStream inputStream, 
+            ObjectMetadata metadata);
 
     /**
      * Deletes the specified object in the specified bucket. Once deleted, the
@@ -129,13 +149,28 @@ public interface AmazonS3Manager {
     boolean deleteEntity(String bucketName, String keyName);
     
     /**
-     * Deletes multiple objects in a single bucket from S3
+     * Deletes all the objects of a single bucket from S3. The objects are
+     * listed lazily and deleted by concurrent multi-object delete requests of
+     * 1,000 keys, the incomplete multipart uploads are aborted.
      * 
      * @param bucketName
      *              - The name of an existing bucket
+     * @return TRUE if all the objects were deleted
      */
     boolean deleteEntities(String bucketName);
     
+    /**
+     * Deletes the given objects with multi-object delete requests of at most
+     * 1,000 keys each
+     * 
+     * @param bucketName
+     *              - The name of an existing bucket
+     * @param keyNames
+     *              - The keys of the objects to delete
+     * @return TRUE if all the objects were deleted, otherwise FALSE
+     */
+    boolean deleteEntities(String bucketName, List<String> keyNames);
+    
     boolean publicEntity(String bucketName, String keyName);
     
     /**
@@ -143,6 +178,10 @@ public interface AmazonS3Manager {
      * provide the request information, such as source bucket name, source key
      * name, destination bucket name, and destination key.
      * 
+     * Large objects, including the ones over the 5 GB limit of a single copy
+     * request, are copied as multipart copies whose parts are copied
+     * concurrently.
+     * 
      * @param sourceBucketName
      *            - The name of the bucket containing the source object to copy
      * @param sourceKeyName
@@ -181,8 +220,58 @@ public interface AmazonS3Manager {
      */
     InputStream downloadEntity(String bucketName, String keyName);
     
+    /**
+     * Gets the given byte range of the object stored in Amazon S3 under the
+     * specified bucket and key, so that only the bytes of the range are
+     * transferred. The stream must be closed as soon as possible.
+     * 
+     * @param bucketName
+     *              - The name of the bucket containing the desired object
+     * @param keyName
+     *              - The key under which the desired object is stored
+     * @param start
+     *              - The position of the first byte, starting at 0
+     * @param finish
+     *              - The position of the last byte, included
+     * @return The content of the range, or null if it could not be read
+     */
+    InputStream downloadEntity(String bucketName, String keyName, long start, long finish);
+    
+    /**
+     * Gets the object stored in Amazon S3 under the specified bucket and key,
+     * with its content. The content stream holds an HTTP connection until it
+     * is read or closed, so it must always be closed; use
+     * findEntityMetadata to only check or stat an object.
+     * 
+     * @param bucketName
+     * @param keyName
+     * @return The object, or null if it could not be read
+     */
     S3Object findEntityByUniqueKey(String bucketName, String keyName);
     
+    /**
+     * Gets the metadata of the object stored under the specified bucket and
+     * key with a HEAD request, without reading its content
+     * 
+     * @param bucketName
+     *              - The name of the bucket containing the object
+     * @param keyName
+     *              - The key under which the object is stored
+     * @return The metadata (length, ETag, content type, ...) of the object, or
+     *         null if it does not exist or could not be read
+     */
+    ObjectMetadata findEntityMetadata(String bucketName, String keyName);
+    
+    /**
+     * Checks whether an object is stored under the specified bucket and key
+     * with a HEAD request, without reading its content
+     * 
+     * @param bucketName
+     * @param keyName
+     * @return TRUE if the object exists
+     */
+    boolean isExistEntity(String bucketName, String keyName);
+    
     /**
 	 * Returns a list of summary information about the objects in the specified
 	 * buckets.
@@ -204,4 +293,22 @@ public interface AmazonS3Manager {
 	 * @return a list of S3 objects
 	 */
     List<S3ObjectSummary> findEntityByPrefixKey(String bucketName, String prefixKey);
+    
+    /**
+     * Iterate over the objects of a bucket under a prefix. The listings are
+     * fetched lazily, the next listing being requested while the current one
+     * is read, so that any number of objects is listed in constant memory.
+     * 
+     * The iterator throws AmazonClientException if a listing fails.
+     * 
+     * @param bucketName
+     *              - The name of an existing bucket
+     * @param prefixKey
+     *              - The prefix of the keys, or null for all the objects
+     * @param delimiter
+     *              - The delimiter of the keys not to list below the prefix,
+     *              or null to list all the keys of the prefix
+     * @return a lazy iterator over the S3 objects
+     */
+    Iterator<S3ObjectSummary> iterateEntityByPrefixKey(String bucketName, String prefixKey, String delimiter);
 }
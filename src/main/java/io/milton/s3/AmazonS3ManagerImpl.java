@@ -16,12 +16,17 @@
  */
 package io.milton.s3;
 
+import io.milton.s3.util.BufferPool;
+import io.milton.s3.util.NamedThreadFactory;
+
 import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -43,8 +48,8 @@ import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
 import com.amazonaws.services.s3.model.DeleteObjectsResult;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.Grant;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Permission;
 import com.amazonaws.services.s3.model.PutObjectResult;
@@ -54,9 +59,93 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 public class AmazonS3ManagerImpl implements AmazonS3Manager {
 
     private static final Logger LOG = LoggerFactory.getLogger(AmazonS3ManagerImpl.class);
+    
+    /**
+     * Maximum number of keys of a single multi-object delete request
+     */
+    private static final int MAX_DELETE_KEYS = 1000;
+    
+    /**
+     * Status code of a HEAD request on a missing object
+     */
+    private static final int HTTP_NOT_FOUND = 404;
+    
+    /**
+     * Streams of at least this length are uploaded as multipart uploads
+     */
+    private static final long MULTIPART_THRESHOLD = 16 * 1024 * 1024;
+    
+    /**
+     * Size & number of the buffers shared by the multipart uploads, which
+     * bounds the memory they use. A part is made of one buffer, or more for
+     * the streams that would need more than 10000 parts.
+     */
+    private static final int PART_BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final int PART_BUFFER_COUNT = 32;
+    
+    /**
+     * Number of parts uploaded concurrently by all the multipart uploads
+     */
+    private static final int UPLOAD_CONCURRENCY = 16;
+    
+    /**
+     * Ranges of at least this length are read with concurrent ranged GETs
+     */
+    private static final long PARALLEL_DOWNLOAD_THRESHOLD = 16 * 1024 * 1024;
+    
+    /**
+     * Size & number of the buffers shared by the parallel downloads, a chunk
+     * of a download being read into one buffer
+     */
+    private static final int CHUNK_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int CHUNK_BUFFER_COUNT = 32;
+    
+    /**
+     * Number of chunks fetched concurrently by all the parallel downloads
+     */
+    private static final int DOWNLOAD_CONCURRENCY = 16;
+    
+    /**
+     * Number of multi-object delete requests sent concurrently by a bucket
+     * purge
+     */
+    private static final int PURGE_CONCURRENCY = 16;
+    
+    /**
+     * Objects of at least this length are copied as multipart copies, a
+     * single copy request being limited to 5 GB
+     */
+    private static final long MULTIPART_COPY_THRESHOLD = 128 * 1024 * 1024;
+    
+    /**
+     * Size of the parts of the multipart copies
+     */
+    private static final long COPY_PART_SIZE = 64 * 1024 * 1024;
+    
+    /**
+     * Number of parts copied concurrently by all the multipart copies
+     */
+    private static final int COPY_CONCURRENCY = 16;
 
     // Amazon S3 Client
     private final AmazonS3 amazonS3Client;
+    
+    private final MultipartUploader multipartUploader;
+    
+    /**
+     * Fetches the next listings of the objects ahead of their readers
+     */
+    private final ExecutorService listingExecutor = Executors.newCachedThreadPool(
+            new NamedThreadFactory("s3-listing"));
+    
+    private final BucketPurger bucketPurger;
+    
+    private final MultipartCopier multipartCopier;
+    
+    private final BufferPool chunkBufferPool = new BufferPool(CHUNK_BUFFER_SIZE, CHUNK_BUFFER_COUNT);
+    
+    private final ExecutorService downloadExecutor = Executors.newFixedThreadPool(DOWNLOAD_CONCURRENCY, 
+            new NamedThreadFactory("parallel-download"));
 
     /**
      * You can choose the geographical region where Amazon S3 will store the
@@ -73,6 +162,15 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
         // Account or IAM user credentials (Access Key ID, Secret Access Key)
         amazonS3Client = new AmazonS3Client(new ClasspathPropertiesFileCredentialsProvider());
         amazonS3Client.setRegion(region);
+        multipartUploader = new MultipartUploader(amazonS3Client, 
+                new BufferPool(PART_BUFFER_SIZE, PART_BUFFER_COUNT), 
+                Executors.newFixedThreadPool(UPLOAD_CONCURRENCY, new NamedThreadFactory("multipart-upload")));
+        bucketPurger = new BucketPurger(amazonS3Client, 
+                Executors.newFixedThreadPool(PURGE_CONCURRENCY, new NamedThreadFactory("bucket-purge")), 
+                listingExecutor);
+        multipartCopier = new MultipartCopier(amazonS3Client, 
+                Executors.newFixedThreadPool(COPY_CONCURRENCY, new NamedThreadFactory("multipart-copy")), 
+                COPY_PART_SIZE);
     }
 
     @Override
@@ -124,7 +222,10 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
     	
         try {
         	// Make sure delete all the entities in the bucket
-        	deleteEntities(bucketName);
+        	if (!deleteEntities(bucketName)) {
+        	    LOG.error("Could not delete all the objects of bucket " + bucketName);
+        	    return false;
+        	}
         	// Delete the specified bucket for the given name
         	amazonS3Client.deleteBucket(bucketName);
         	return true;
@@ -176,6 +277,12 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
                 + inputStream
                 + " and object metadata to Amazon S3 under the specified bucket "
                 + bucketName + " and key name " + keyName);
+        
+        // Large streams are uploaded in parts, concurrently and above the
+        // 5 GB limit of a single upload
+        if (metadata.getContentLength() >= MULTIPART_THRESHOLD) {
+            return multipartUploader.upload(bucketName, keyName, inputStream, metadata);
+        }
 
         try {
         	PutObjectResult putObjectResult = amazonS3Client.putObject(bucketName, keyName, inputStream, metadata);
@@ -191,6 +298,16 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
         return false;
     }
 
+    @Override
+    public long uploadEntityOfUnknownLength(String bucketName, String keyName, InputStream inputStream, 
+            ObjectMetadata metadata) {
+        LOG.info("Uploads the specified input stream " + inputStream 
+                + " of unknown length to Amazon S3 under the specified bucket "
+                + bucketName + " and key name " + keyName);
+        
+        return multipartUploader.uploadUnknownLength(bucketName, keyName, inputStream, metadata);
+    }
+
     @Override
     public boolean deleteEntity(String bucketName, String keyName) {
         LOG.info("Deletes the specified object " + keyName
@@ -209,34 +326,42 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
     @Override
 	public boolean deleteEntities(String bucketName) {
 		LOG.info("Deletes multiple objects in a bucket " + bucketName + " from Amazon S3");
-		List<S3ObjectSummary> s3ObjectSummaries = findEntityByBucket(bucketName);
-		if (s3ObjectSummaries == null || s3ObjectSummaries.isEmpty()) {
-		    return false;
-		}
-		
-		// Provide a list of object keys and versions.
-		List<KeyVersion> keyVersions = new ArrayList<KeyVersion>();
-		for (S3ObjectSummary s3ObjectSummary : s3ObjectSummaries) {
-			keyVersions.add( new KeyVersion(s3ObjectSummary.getKey()));
-		}
-
-		try {
-		    DeleteObjectsRequest deleteObjectsRequest = new DeleteObjectsRequest(bucketName)
-		        .withKeys(keyVersions);
-		    DeleteObjectsResult deleteObjectsResult = amazonS3Client.deleteObjects(deleteObjectsRequest);
-		    if (deleteObjectsResult != null) {
-		    	LOG.info("Successfully deleted all the "
-	                    + deleteObjectsResult.getDeletedObjects().size() + " items.\n");
-		    	return true;
-		    }
-		} catch (AmazonServiceException ase) {
-            LOG.warn(ase.getMessage(), ase);
-        } catch (AmazonClientException ace) {
-            LOG.warn(ace.getMessage(), ace);
-		}
-		return false;
+		return bucketPurger.purge(bucketName);
 	}
 
+    @Override
+    public boolean deleteEntities(String bucketName, List<String> keyNames) {
+        boolean isSuccessful = true;
+        for (int i = 0; i < keyNames.size(); i += MAX_DELETE_KEYS) {
+            List<KeyVersion> keyVersions = new ArrayList<KeyVersion>();
+            for (String keyName : keyNames.subList(i, Math.min(i + MAX_DELETE_KEYS, keyNames.size()))) {
+                keyVersions.add(new KeyVersion(keyName));
+            }
+            
+            try {
+                // Quiet mode only returns the keys that could not be deleted
+                DeleteObjectsRequest deleteObjectsRequest = new DeleteObjectsRequest(bucketName)
+                    .withKeys(keyVersions)
+                    .withQuiet(true);
+                amazonS3Client.deleteObjects(deleteObjectsRequest);
+                LOG.info("Deleted " + keyVersions.size() + " objects in bucket " + bucketName);
+            } catch (MultiObjectDeleteException mode) {
+                for (DeleteError deleteError : mode.getErrors()) {
+                    LOG.warn("Could not delete object " + deleteError.getKey() + " in bucket " + bucketName 
+                            + ": " + deleteError.getMessage());
+                }
+                isSuccessful = false;
+            } catch (AmazonServiceException ase) {
+                LOG.warn(ase.getMessage(), ase);
+                isSuccessful = false;
+            } catch (AmazonClientException ace) {
+                LOG.warn(ace.getMessage(), ace);
+                isSuccessful = false;
+            }
+        }
+        return isSuccessful;
+    }
+
     @Override
     public boolean publicEntity(String bucketName, String keyName) {
         LOG.info("Sets the CannedAccessControlList for the specified object "
@@ -269,6 +394,14 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
                 + " to a new destination bucket " + destinationBucketName
                 + " with specified key " + destinationKeyName + " in Amazon S3");
         
+        // Large objects are copied by ranges, the size of the source being
+        // read from its metadata
+        ObjectMetadata metadata = findEntityMetadata(sourceBucketName, sourceKeyName);
+        if (metadata != null && metadata.getContentLength() >= MULTIPART_COPY_THRESHOLD) {
+            return multipartCopier.copy(sourceBucketName, sourceKeyName, destinationBucketName, 
+                    destinationKeyName, metadata);
+        }
+        
         try {
             CopyObjectRequest copyObjectRequest = new CopyObjectRequest(sourceBucketName, sourceKeyName, 
                     destinationBucketName, destinationKeyName);
@@ -345,6 +478,32 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
         return null;
     }
     
+    @Override
+    public InputStream downloadEntity(String bucketName, String keyName, long start, long finish) {
+        LOG.info("Gets the bytes " + start + "-" + finish + " of the object stored in Amazon S3 under "
+                + "the specified bucket " + bucketName + " and key " + keyName);
+        
+        // Large ranges are read ahead with several connections
+        if (finish - start + 1 >= PARALLEL_DOWNLOAD_THRESHOLD) {
+            return new ParallelRangeInputStream(amazonS3Client, bucketName, keyName, start, finish, 
+                    chunkBufferPool, downloadExecutor);
+        }
+        
+        try {
+            GetObjectRequest getObjectRequest = new GetObjectRequest(bucketName, keyName);
+            getObjectRequest.setRange(start, finish);
+            S3Object s3Object = amazonS3Client.getObject(getObjectRequest);
+            if (s3Object != null) {
+                return s3Object.getObjectContent();
+            }
+        } catch (AmazonServiceException ase) {
+            LOG.warn(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.warn(ace.getMessage(), ace);
+        }
+        return null;
+    }
+    
     @Override
 	public S3Object findEntityByUniqueKey(String bucketName, String keyName) {
     	if (StringUtils.isEmpty(keyName)) {
@@ -363,22 +522,43 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
     	return null;
 	}
     
+    @Override
+    public ObjectMetadata findEntityMetadata(String bucketName, String keyName) {
+        if (StringUtils.isEmpty(keyName)) {
+            return null;
+        }
+        
+        LOG.info("Gets the metadata of the object stored in Amazon S3 under the specified bucket "
+                + bucketName + " and key " + keyName);
+        try {
+            return amazonS3Client.getObjectMetadata(bucketName, keyName);
+        } catch (AmazonServiceException ase) {
+            if (ase.getStatusCode() == HTTP_NOT_FOUND) {
+                return null;
+            }
+            LOG.warn(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.warn(ace.getMessage(), ace);
+        }
+        return null;
+    }
+    
+    @Override
+    public boolean isExistEntity(String bucketName, String keyName) {
+        return findEntityMetadata(bucketName, keyName) != null;
+    }
+    
     @Override
 	public List<S3ObjectSummary> findEntityByBucket(String bucketName) {
 		LOG.info("Returns a list of summary information about the objects in the specified buckets "
 				+ bucketName);
 		
 		List<S3ObjectSummary> objectSummaries = new ArrayList<S3ObjectSummary>();
-		ObjectListing objectListing;
 		try {
-			do {
-				objectListing = amazonS3Client.listObjects(bucketName);
-				for (final S3ObjectSummary objectSummary: objectListing.getObjectSummaries()) {
-					objectSummaries.add(objectSummary);
-				}
-				objectListing = amazonS3Client.listNextBatchOfObjects(objectListing);
-			} while (objectListing.isTruncated());
-			
+			Iterator<S3ObjectSummary> iterator = iterateEntityByPrefixKey(bucketName, null, null);
+			while (iterator.hasNext()) {
+				objectSummaries.add(iterator.next());
+			}
 		} catch (AmazonServiceException ase) {
 			LOG.error("Caught an AmazonServiceException, "
 					+ "which means your request made it "
@@ -401,19 +581,11 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
 				+ bucketName + " for the prefix " + prefixKey);
 		
 		List<S3ObjectSummary> objectSummaries = new ArrayList<S3ObjectSummary>();
-		ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-			.withBucketName(bucketName)
-			.withPrefix(prefixKey);
-		ObjectListing objectListing;
-		
 		try {
-			do {
-				objectListing = amazonS3Client.listObjects(listObjectsRequest);
-				for (final S3ObjectSummary objectSummary: objectListing.getObjectSummaries()) {
-					objectSummaries.add(objectSummary);
-				}
-				listObjectsRequest.setMarker(objectListing.getNextMarker());
-			} while (objectListing.isTruncated());
+			Iterator<S3ObjectSummary> iterator = iterateEntityByPrefixKey(bucketName, prefixKey, null);
+			while (iterator.hasNext()) {
+				objectSummaries.add(iterator.next());
+			}
 			LOG.info("Found " + objectSummaries.size()
 	                + " objects in the specified bucket " + bucketName + " for the prefix " + prefixKey);
 		} catch (AmazonServiceException ase) {
@@ -432,4 +604,10 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
 		return objectSummaries;
 	}
 	
+	@Override
+	public Iterator<S3ObjectSummary> iterateEntityByPrefixKey(String bucketName, String prefixKey, 
+	        String delimiter) {
+	    return new ObjectListingIterator(amazonS3Client, listingExecutor, bucketName, prefixKey, delimiter);
+	}
+	
 }
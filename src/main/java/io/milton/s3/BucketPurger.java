@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Deletes all the objects of a bucket, so that the bucket can be deleted.
+ * 
+ * The objects are listed lazily and deleted by multi-object delete requests
+ * of 1000 keys, sent concurrently by a pool of workers while the next keys
+ * are listed. The number of requests waiting for a worker is bounded, so
+ * that a bucket of any size is purged in constant memory. The multipart
+ * uploads left incomplete are aborted as well.
+ */
+public class BucketPurger {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BucketPurger.class);
+    
+    /**
+     * Maximum number of keys of a single multi-object delete request
+     */
+    private static final int MAX_DELETE_KEYS = 1000;
+    
+    /**
+     * Maximum number of delete requests listed and not sent yet
+     */
+    private static final int MAX_PENDING_REQUESTS = 32;
+    
+    private final AmazonS3 amazonS3Client;
+    
+    /**
+     * Sends the delete requests, its size bounds the number of concurrent
+     * requests
+     */
+    private final ExecutorService executor;
+    
+    /**
+     * Fetches the next listings of the objects
+     */
+    private final ExecutorService listingExecutor;
+    
+    public BucketPurger(AmazonS3 amazonS3Client, ExecutorService executor, ExecutorService listingExecutor) {
+        this.amazonS3Client = amazonS3Client;
+        this.executor = executor;
+        this.listingExecutor = listingExecutor;
+    }
+    
+    /**
+     * Delete all the objects and abort all the multipart uploads of a bucket
+     * 
+     * @param bucketName
+     * @return TRUE if everything was deleted
+     */
+    public boolean purge(String bucketName) {
+        long startTime = System.currentTimeMillis();
+        AtomicLong deletedObjects = new AtomicLong();
+        boolean isSuccessful = abortMultipartUploads(bucketName);
+        
+        Semaphore pendingRequests = new Semaphore(MAX_PENDING_REQUESTS);
+        List<Future<Boolean>> requests = new ArrayList<Future<Boolean>>();
+        try {
+            Iterator<S3ObjectSummary> objectSummaries = new ObjectListingIterator(amazonS3Client, 
+                    listingExecutor, bucketName, null, null);
+            List<KeyVersion> keyVersions = new ArrayList<KeyVersion>(MAX_DELETE_KEYS);
+            while (objectSummaries.hasNext()) {
+                keyVersions.add(new KeyVersion(objectSummaries.next().getKey()));
+                if (keyVersions.size() == MAX_DELETE_KEYS || !objectSummaries.hasNext()) {
+                    pendingRequests.acquire();
+                    requests.add(executor.submit(deleteObjects(bucketName, keyVersions, pendingRequests, 
+                            deletedObjects)));
+                    keyVersions = new ArrayList<KeyVersion>(MAX_DELETE_KEYS);
+                    
+                    // Forgets the requests done, so that only the pending
+                    // ones are kept
+                    isSuccessful &= removeDone(requests);
+                }
+            }
+            
+            for (Future<Boolean> request : requests) {
+                isSuccessful &= request.get();
+            }
+        } catch (AmazonClientException ace) {
+            LOG.error("Could not list the objects of bucket " + bucketName, ace);
+            isSuccessful = false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while purging bucket " + bucketName);
+            isSuccessful = false;
+        } catch (ExecutionException ee) {
+            LOG.error("Could not purge bucket " + bucketName, ee.getCause());
+            isSuccessful = false;
+        }
+        
+        LOG.info("Deleted " + deletedObjects.get() + " objects of bucket " + bucketName + " in " 
+                + (System.currentTimeMillis() - startTime) + " ms");
+        return isSuccessful;
+    }
+    
+    private boolean removeDone(List<Future<Boolean>> requests) throws InterruptedException, 
+            ExecutionException {
+        boolean isSuccessful = true;
+        Iterator<Future<Boolean>> iterator = requests.iterator();
+        while (iterator.hasNext()) {
+            Future<Boolean> request = iterator.next();
+            if (request.isDone()) {
+                isSuccessful &= request.get();
+                iterator.remove();
+            }
+        }
+        return isSuccessful;
+    }
+    
+    private Callable<Boolean> deleteObjects(final String bucketName, final List<KeyVersion> keyVersions, 
+            final Semaphore pendingRequests, final AtomicLong deletedObjects) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    // Quiet mode only returns the keys that could not be
+                    // deleted
+                    amazonS3Client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                        .withKeys(keyVersions)
+                        .withQuiet(true));
+                    deletedObjects.addAndGet(keyVersions.size());
+                    return true;
+                } catch (MultiObjectDeleteException mode) {
+                    for (DeleteError deleteError : mode.getErrors()) {
+                        LOG.warn("Could not delete " + deleteError.getKey() + ": " + deleteError.getMessage());
+                    }
+                    deletedObjects.addAndGet(keyVersions.size() - mode.getErrors().size());
+                } catch (AmazonServiceException ase) {
+                    LOG.warn(ase.getMessage(), ase);
+                } catch (AmazonClientException ace) {
+                    LOG.warn(ace.getMessage(), ace);
+                } finally {
+                    pendingRequests.release();
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * Abort the multipart uploads left incomplete in the bucket, whose parts
+     * are stored until they are aborted
+     */
+    private boolean abortMultipartUploads(final String bucketName) {
+        boolean isSuccessful = true;
+        try {
+            ListMultipartUploadsRequest listMultipartUploadsRequest = new ListMultipartUploadsRequest(bucketName);
+            MultipartUploadListing multipartUploadListing;
+            do {
+                multipartUploadListing = amazonS3Client.listMultipartUploads(listMultipartUploadsRequest);
+                List<Future<Boolean>> aborts = new ArrayList<Future<Boolean>>();
+                for (final MultipartUpload multipartUpload : multipartUploadListing.getMultipartUploads()) {
+                    aborts.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            try {
+                                amazonS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, 
+                                        multipartUpload.getKey(), multipartUpload.getUploadId()));
+                                return true;
+                            } catch (AmazonClientException ace) {
+                                LOG.warn("Could not abort the upload of " + multipartUpload.getKey() + ": " 
+                                        + ace.getMessage());
+                                return false;
+                            }
+                        }
+                    }));
+                }
+                for (Future<Boolean> abort : aborts) {
+                    isSuccessful &= abort.get();
+                }
+                if (!aborts.isEmpty()) {
+                    LOG.info("Aborted " + aborts.size() + " incomplete uploads of bucket " + bucketName);
+                }
+                
+                listMultipartUploadsRequest.setKeyMarker(multipartUploadListing.getNextKeyMarker());
+                listMultipartUploadsRequest.setUploadIdMarker(multipartUploadListing.getNextUploadIdMarker());
+            } while (multipartUploadListing.isTruncated());
+        } catch (AmazonServiceException ase) {
+            LOG.warn(ase.getMessage(), ase);
+            isSuccessful = false;
+        } catch (AmazonClientException ace) {
+            LOG.warn(ace.getMessage(), ace);
+            isSuccessful = false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            isSuccessful = false;
+        } catch (ExecutionException ee) {
+            LOG.warn("Could not abort the uploads of bucket " + bucketName, ee.getCause());
+            isSuccessful = false;
+        }
+        return isSuccessful;
+    }
+}
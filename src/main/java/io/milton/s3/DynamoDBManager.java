@@ -17,9 +17,11 @@
 package io.milton.s3;
 
 import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 public interface DynamoDBManager {
 
@@ -38,23 +40,154 @@ public interface DynamoDBManager {
      *              - the storage database name
      */
 	boolean deleteTable(String tableName);
+	
+	/**
+	 * Rewrite the entities of the given table from the legacy schema to the
+	 * compact schema in the background, while the table stays in use
+	 * 
+	 * @param tableName
+	 *              - the storage database name
+	 * @return the number of migrated entities, once the migration is done
+	 */
+	Future<Long> migrateToCompactSchema(String tableName);
+	
+	/**
+	 * Write the path index items of the entities stored before the path
+	 * index in the background, while the table stays in use. Once done, a
+	 * missing name is no longer looked up on the parent index.
+	 * 
+	 * @param tableName
+	 *              - the storage database name
+	 * @return the number of path index items written, once the migration is
+	 *         done
+	 */
+	Future<Long> migrateToPathIndex(String tableName);
     
     boolean isExistEntity(String tableName, String entityName, Folder parent);
     
+    /**
+     * Store the given entity. The name is checked atomically in the write
+     * itself, no need to call isExistEntity before.
+     * 
+     * @param tableName
+     *              - the storage database name
+     * @param entity
+     *              - the entity to store
+     * @return FALSE if another entity of the parent has the same name or the
+     *         entity could not be stored
+     */
     boolean putEntity(String tableName, Entity entity);
     
+    /**
+     * Switch an existing file to a new content with a single atomic update
+     * of its size, content type, modified date & revision, and add the
+     * change of its size to the aggregates of its ancestors
+     * 
+     * @param tableName
+     *              - the storage database name
+     * @param file
+     *              - the file with its new content attributes
+     * @return the file as it was before the update, to find its former
+     *         content, or null if the file does not exist anymore or could
+     *         not be updated
+     */
+    File replaceEntity(String tableName, File file);
+    
     Folder findRootFolder(String tableName);
     
+    /**
+     * Create the root folder of the given table under its well-known unique
+     * UUID, derived from the table name
+     * 
+     * @param tableName
+     * @return the root folder, or null if it could not be stored
+     */
+    Folder createRootFolder(String tableName);
+    
     Entity findEntityByUniqueId(String tableName, Entity entity);
     
     Entity findEntityByUniqueId(String tableName, String uniqueId, Folder parent);
     
+    /**
+     * Find the entities of the given unique UUIDs under the same parent with
+     * batched reads instead of one read per entity. The reads are eventually
+     * consistent, as they serve folder listings.
+     * 
+     * @param tableName
+     * @param uniqueIds
+     * @param parent
+     * @return the entities found, in no particular order, or null if some of
+     *         the items could not be read
+     */
+    List<Entity> findEntityByUniqueIds(String tableName, List<String> uniqueIds, Folder parent);
+    
     List<Entity> findEntityByParent(String tableName, Folder parent);
     
+    /**
+     * Find the child of the given parent by its name with point reads on the
+     * path index, whatever the number of children of the parent
+     * 
+     * @param tableName
+     * @param parent
+     * @param entityName
+     * @return the child, or null if the parent has no child of that name
+     */
+    Entity findEntityByName(String tableName, Folder parent, String entityName);
+    
+    /**
+     * Resolve a path relative to the given folder, one point read per level
+     * 
+     * @param tableName
+     * @param folder
+     *              - the folder the path starts from
+     * @param path
+     *              - the names of the entities separated by '/'
+     * @return the entity at the end of the path, or null if any entity of the
+     *         path does not exist
+     */
+    Entity findEntityByPath(String tableName, Folder folder, String path);
+    
     List<Entity> findEntityByParentAndType(String tableName, Folder parent, boolean isDirectory);
     
     boolean updateEntityByUniqueId(String tableName, Entity entity, Folder newParent, 
             String newEntityName, boolean isRenamingAction);
     
     boolean deleteEntityByUniqueId(String tableName, String uniqueId);
+    
+    /**
+     * Delete the items of the given entities and their path index items with
+     * batch writes. The aggregates of the ancestors are not updated, the
+     * entities being deleted with their ancestors.
+     * 
+     * @param tableName
+     *              - the storage database name
+     * @param entities
+     *              - the entities, with their parent
+     * @return TRUE if all the items were deleted
+     */
+    boolean deleteEntities(String tableName, List<Entity> entities);
+    
+    /**
+     * Store the items of the given entities and their path index items with
+     * batch writes. The names are not checked and the aggregates of the
+     * ancestors are not updated, e.g. for the content of a new folder.
+     * 
+     * @param tableName
+     *              - the storage database name
+     * @param entities
+     *              - the entities, with their parent
+     * @return TRUE if all the items were stored
+     */
+    boolean putEntities(String tableName, List<Entity> entities);
+    
+    /**
+     * Add the given counts to the aggregates of the given folder, and the
+     * file count & bytes to the ones of its ancestors
+     * 
+     * @param tableName
+     *              - the storage database name
+     * @param folder
+     *              - the folder, with its parent
+     */
+    void addAggregates(String tableName, Folder folder, long childCount, long fileCount, long totalBytes);
 }
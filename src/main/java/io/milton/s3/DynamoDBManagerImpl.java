@@ -16,21 +16,35 @@
  */
 package io.milton.s3;
 
+import io.milton.s3.db.CompactSchemaMigration;
 import io.milton.s3.db.DynamoDBService;
 import io.milton.s3.db.DynamoDBServiceImpl;
+import io.milton.s3.db.ReadOptions;
+import io.milton.s3.db.WriteBehindDynamoDBService;
 import io.milton.s3.db.mapper.DynamoDBEntityMapper;
 import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
 import io.milton.s3.util.AttributeKey;
-import io.milton.s3.util.DateUtils;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.dynamodbv2.model.AttributeAction;
@@ -39,16 +53,77 @@ import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
 import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
 import com.amazonaws.services.dynamodbv2.model.Condition;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 
 public class DynamoDBManagerImpl implements DynamoDBManager {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(DynamoDBManagerImpl.class);
+    
+    /**
+     * Listings only need the attributes of the entities and can accept
+     * eventually consistent reads, which cost half the read capacity
+     */
+    private static final ReadOptions LISTING_READ = ReadOptions.eventual()
+            .withAttributes(DynamoDBEntityMapper.ENTITY_ATTRIBUTES);
+    
+    /**
+     * Walking up the ancestors of a folder only needs the parent of each one
+     */
+    private static final ReadOptions PARENT_READ = ReadOptions.eventual()
+            .withAttributes(AttributeKey.PARENT_UUID);
+    
+    /**
+     * Stops walking up the ancestors of a folder on a cycle left by
+     * concurrent moves
+     */
+    private static final int MAX_FOLDER_DEPTH = 1000;
+    
+    /**
+     * A path index item is written before its entity is stored or renamed,
+     * it is not taken over for this time even if its entity does not have
+     * the name yet
+     */
+    private static final long CLAIM_GRACE_MILLIS = 60 * 1000;
+    
+    /**
+     * A table not marked as path indexed is checked again after this time,
+     * its entities being looked up on the parent index meanwhile
+     */
+    private static final long PATH_INDEX_CHECK_MILLIS = 60 * 1000;
+    
+    /**
+     * Outcome of claiming a name in a folder
+     */
+    private enum Claim {
+        /** The name was free and now belongs to the entity */
+        NEW,
+        /** The name already belonged to the entity */
+        OWNED,
+        /** The name belongs to another entity */
+        TAKEN
+    }
 	
 	/**
      * Amazon DynamoDB Storage Service
      */
     private final DynamoDBService dynamoDBService;
     
+    /**
+     * The tables whose entities all have a path index item
+     */
+    private final Set<String> pathIndexedTables = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    
+    /**
+     * The last time the tables not path indexed were checked
+     */
+    private final ConcurrentMap<String, Long> pathIndexChecks = new ConcurrentHashMap<String, Long>();
+    
     /**
      * Initialize Amazon DynamoDB environment for the given tableName
      * 
@@ -59,7 +134,43 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
      *            - Table name
      */
 	public DynamoDBManagerImpl(Region region) {
-		dynamoDBService = new DynamoDBServiceImpl(region);
+		this(region, 0);
+	}
+	
+	/**
+	 * Initialize Amazon DynamoDB environment, coalescing the puts & deletes
+	 * of entities into batch writes
+	 * 
+	 * @param region
+	 *            - You can choose the geographical Region where Amazon S3 will
+	 *            store the buckets you create
+	 * @param writeBehindMillis
+	 *            - The maximum time a put or delete stays pending before it is
+	 *            written in batch, writes are synchronous if it is 0
+	 */
+	public DynamoDBManagerImpl(Region region, long writeBehindMillis) {
+	    this(region, writeBehindMillis, false);
+	}
+	
+	/**
+	 * Initialize Amazon DynamoDB environment
+	 * 
+	 * @param region
+	 *            - You can choose the geographical Region where Amazon S3 will
+	 *            store the buckets you create
+	 * @param writeBehindMillis
+	 *            - The maximum time a put or delete stays pending before it is
+	 *            written in batch, writes are synchronous if it is 0
+	 * @param isCompactSchema
+	 *            - TRUE to write the entities in the compact schema, items of
+	 *            both schemas are always readable
+	 */
+	public DynamoDBManagerImpl(Region region, long writeBehindMillis, boolean isCompactSchema) {
+	    DynamoDBService service = new DynamoDBServiceImpl(region, isCompactSchema);
+	    if (writeBehindMillis > 0) {
+	        service = new WriteBehindDynamoDBService(service, writeBehindMillis);
+	    }
+	    dynamoDBService = service;
 	}
 	
 	/**
@@ -74,84 +185,176 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 	    if (!isTableExist) {
             // Create table if it's not exist & describe the table for the given
             // table after created
-            return dynamoDBService.createTable(tableName);
+            if (!dynamoDBService.createTable(tableName)) {
+                return false;
+            }
+            
+            // A new table has no entity stored before the path index
+            markPathIndexed(tableName);
+            return true;
         }
-	    return isTableExist;
+	    
+	    // The table may still be CREATING, e.g. created by another server
+	    return dynamoDBService.waitForTableActive(tableName);
 	}
 	
 	@Override
     public boolean deleteTable(String tableName) {
+        pathIndexedTables.remove(tableName);
+        pathIndexChecks.remove(tableName);
         return dynamoDBService.deleteTable(tableName);
     }
 	
+	@Override
+	public Future<Long> migrateToCompactSchema(String tableName) {
+	    return new CompactSchemaMigration(dynamoDBService, tableName).start();
+	}
+	
+	@Override
+	public Future<Long> migrateToPathIndex(String tableName) {
+	    return new PathIndexMigration(this, dynamoDBService, tableName).start();
+	}
+	
 	@Override
     public boolean isExistEntity(String tableName, String entityName, Folder parent) {
         if (StringUtils.isEmpty(entityName)) {
             return false;
         }
         
-        Map<String, Condition> conditions = new HashMap<String, Condition>();
-        String parentId = AttributeKey.NOT_EXIST;
-        if (parent != null) {
-            parentId = parent.getId().toString();
-        }
-        
-        // Search entity by parent unique UUID
-        Condition parentUniqueId = new Condition().withComparisonOperator(ComparisonOperator.EQ)
-                .withAttributeValueList(new AttributeValue().withS(parentId));
-        conditions.put(AttributeKey.PARENT_UUID, parentUniqueId);
-        
-        // Search entity by name
-        Condition entityKeyName = new Condition().withComparisonOperator(ComparisonOperator.EQ)
-                .withAttributeValueList(new AttributeValue().withS(entityName));
-        conditions.put(AttributeKey.ENTITY_NAME, entityKeyName);
-        
-        List<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, conditions);
-        List<Entity> children = DynamoDBEntityMapper.convertItemsToEntities(parent, items);
-        if (children == null || children.isEmpty()) {
-            return false;
-        }
-        
-        return true;
+        return findEntityByName(tableName, parent, entityName) != null;
     }
 	
 	/**
-	 * The putEntity method stores an item in a table
+	 * The putEntity method claims the name of the entity in its parent with a
+	 * conditional write, then stores its item. If another entity already has
+	 * the name, nothing is written, so that an entity is never visible under
+	 * a name taken by another one.
+	 * 
+	 * Name and item are two items, written with two requests: DynamoDB has
+	 * no atomic write across items, the claim coming first makes the
+	 * collision atomic. The claim is released if the item cannot be stored.
+	 * 
+	 * Storing an entity again under the same name replaces its item. A folder
+	 * stored again is updated instead, its aggregates left out, so that the
+	 * counts added concurrently by its children are kept.
+	 * 
+	 * A new entity is added to the aggregates of its ancestors; a file stored
+	 * again adds the change of its size.
 	 * 
 	 * @param entity
-	 * @return
+	 * @return FALSE if the name is taken or the entity could not be stored
 	 */
 	@Override
 	public boolean putEntity(String tableName, Entity entity) {
+		// Index the entity by its parent & name
+		String uniqueId = entity.getId().toString();
+		String parentId = getParentId(entity.getParent());
+		Claim claim = claimPathItem(tableName, parentId, entity.getName(), uniqueId);
+		if (claim == Claim.TAKEN) {
+		    return false;
+		}
+		if (claim == Claim.OWNED && entity instanceof Folder) {
+		    Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+		    expected.put(AttributeKey.UUID, new ExpectedAttributeValue(true)
+		            .withValue(new AttributeValue().withS(uniqueId)));
+		    return dynamoDBService.updateItem(tableName, getPrimaryKey(uniqueId), 
+		            newFolderUpdates((Folder) entity), expected) != null;
+		}
+		
 		Map<String, AttributeValue> newItem = dynamoDBService.newItem(entity);
 		PutItemResult putItemResult = dynamoDBService.putItem(tableName, newItem);
-		if (putItemResult != null) {
-		    return true;
+		if (putItemResult == null) {
+		    if (claim == Claim.NEW) {
+		        releasePathItem(tableName, parentId, entity.getName(), uniqueId);
+		    }
+		    return false;
 		}
 		
-		return false;
+		Map<String, long[]> deltas = new LinkedHashMap<String, long[]>();
+		if (claim == Claim.NEW) {
+		    addDeltas(deltas, getAncestorIds(tableName, entity.getParent(), parentId), 1, 
+		            getFileCount(entity), getTotalBytes(entity));
+		} else {
+		    Entity storedEntity = DynamoDBEntityMapper.convertItemToEntity(null, putItemResult.getAttributes());
+		    long sizeDelta = getTotalBytes(entity) - getTotalBytes(storedEntity);
+		    if (entity instanceof File && storedEntity instanceof File && sizeDelta != 0) {
+		        addDeltas(deltas, getAncestorIds(tableName, entity.getParent(), parentId), 0, 0, sizeDelta);
+		    }
+		}
+		updateAggregates(tableName, deltas);
+		return true;
+	}
+	
+	@Override
+	public File replaceEntity(String tableName, File file) {
+	    String uniqueId = file.getId().toString();
+	    Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+	    expected.put(AttributeKey.UUID, new ExpectedAttributeValue(true)
+	            .withValue(new AttributeValue().withS(uniqueId)));
+	    UpdateItemResult updateItemResult = dynamoDBService.updateItem(tableName, getPrimaryKey(uniqueId), 
+	            dynamoDBService.newContentUpdates(file), expected);
+	    if (updateItemResult == null) {
+	        return null;
+	    }
+	    
+	    // The former item is returned by the update itself, so that
+	    // concurrent replaces each add the change from the content they
+	    // replaced
+	    Entity formerEntity = DynamoDBEntityMapper.convertItemToEntity(file.getParent(), 
+	            updateItemResult.getAttributes());
+	    if (!(formerEntity instanceof File)) {
+	        return null;
+	    }
+	    
+	    File formerFile = (File) formerEntity;
+	    long sizeDelta = file.getSize() - formerFile.getSize();
+	    if (sizeDelta != 0) {
+	        Map<String, long[]> deltas = new LinkedHashMap<String, long[]>();
+	        addDeltas(deltas, getAncestorIds(tableName, file.getParent(), getParentId(file.getParent())), 0, 0, 
+	                sizeDelta);
+	        updateAggregates(tableName, deltas);
+	    }
+	    return formerFile;
 	}
 	
 	/**
-	 * The findRootFolder method retrieves an root item
+	 * The findRootFolder method retrieves an root item by its well-known
+	 * unique UUID with a single read
 	 * 
 	 * @return
 	 */
 	@Override
 	public Folder findRootFolder(String tableName) {
-        Condition condition = new Condition().withComparisonOperator(ComparisonOperator.EQ.toString())
-                .withAttributeValueList(new AttributeValue().withS(AttributeKey.NOT_EXIST));
-
-        Map<String, Condition> conditions = new HashMap<String, Condition>();
-        conditions.put(AttributeKey.PARENT_UUID, condition);
-
-        List<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, conditions);
-        List<Entity> children = DynamoDBEntityMapper.convertItemsToEntities(null, items);
-        if (children == null || children.isEmpty()) {
+	    Entity rootFolder = findEntityByUniqueId(tableName, getRootUniqueId(tableName).toString(), null);
+	    if (rootFolder != null) {
+	        return (Folder) rootFolder;
+	    }
+	    
+	    // Root folders created before the well-known unique UUID are only
+	    // found by their missing parent
+        Iterator<Map<String, AttributeValue>> items = dynamoDBService.queryItem(tableName, 
+                AttributeKey.PARENT_INDEX, getParentConditions(AttributeKey.NOT_EXIST));
+        if (!items.hasNext()) {
             return null;
         }
 
-        return (Folder) children.get(0);
+        return (Folder) DynamoDBEntityMapper.convertItemToEntity(null, items.next());
+	}
+	
+	/**
+	 * The createRootFolder method stores the root item under its well-known
+	 * unique UUID, so that concurrent creations store the same item
+	 * 
+	 * @return
+	 */
+	@Override
+	public Folder createRootFolder(String tableName) {
+	    Date now = new Date();
+	    Folder rootFolder = new Folder(getRootUniqueId(tableName), "/", now, now, null);
+	    if (!putEntity(tableName, rootFolder)) {
+	        return null;
+	    }
+	    return rootFolder;
 	}
 	
 	/**
@@ -195,6 +398,36 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 		return DynamoDBEntityMapper.convertItemToEntity(parent, items);
 	}
 	
+	/**
+	 * The findEntityByUniqueIds method retrieves the items for the given
+	 * unique UUIDs & parent in batches
+	 * 
+	 * @param uniqueIds
+	 * @param parent
+	 * 
+	 * @return a list of entities, or null if some items could not be read
+	 */
+	@Override
+	public List<Entity> findEntityByUniqueIds(String tableName, List<String> uniqueIds, Folder parent) {
+	    if (uniqueIds == null || uniqueIds.isEmpty()) {
+	        return Collections.emptyList();
+	    }
+	    
+	    List<Map<String, AttributeValue>> primaryKeys = new ArrayList<Map<String, AttributeValue>>();
+	    for (String uniqueId : uniqueIds) {
+	        Map<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+	        primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(uniqueId));
+	        primaryKeys.add(primaryKey);
+	    }
+	    
+	    List<Map<String, AttributeValue>> items = dynamoDBService.batchGetItem(tableName, primaryKeys, 
+	            LISTING_READ);
+	    if (items == null) {
+	        return null;
+	    }
+	    return DynamoDBEntityMapper.convertItemsToEntities(parent, items.iterator());
+	}
+	
 	/**
 	 * The findEntityByParent method enables you to retrieve multiple items
 	 * from one table.
@@ -208,12 +441,8 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 			return Collections.emptyList();
 		}
 		
-		Condition condition = new Condition().withComparisonOperator(ComparisonOperator.EQ.toString())
-            .withAttributeValueList(new AttributeValue().withS(parent.getId().toString()));
-        Map<String, Condition> conditions = new HashMap<String, Condition>();
-        conditions.put(AttributeKey.PARENT_UUID, condition);
-        
-        List<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, conditions);
+		Iterator<Map<String, AttributeValue>> items = dynamoDBService.queryItem(tableName, 
+		        AttributeKey.PARENT_INDEX, getParentConditions(parent.getId().toString()), LISTING_READ);
         List<Entity> children = DynamoDBEntityMapper.convertItemsToEntities(parent, items);
         if (children == null || children.isEmpty()) {
             return Collections.emptyList();
@@ -222,6 +451,77 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
         return children;
 	}
 	
+	/**
+	 * The findEntityByName method retrieves the child of the given parent by
+	 * its name, reading the path index item then the entity itself
+	 * 
+	 * @param parent
+	 * @param entityName
+	 * @return Entity
+	 */
+	@Override
+	public Entity findEntityByName(String tableName, Folder parent, String entityName) {
+	    if (StringUtils.isEmpty(entityName)) {
+	        return null;
+	    }
+	    
+	    String parentId = getParentId(parent);
+	    Map<String, AttributeValue> pathItem = dynamoDBService.getItem(tableName, 
+	            getPrimaryKey(getPathUniqueId(parentId, entityName)));
+	    if (pathItem != null && pathItem.containsKey(AttributeKey.TARGET_UUID)) {
+	        Map<String, AttributeValue> item = dynamoDBService.getItem(tableName, 
+	                getPrimaryKey(pathItem.get(AttributeKey.TARGET_UUID).getS()));
+	        
+	        // The entity may have been moved or renamed since the path index
+	        // item was read
+	        if (isChildItem(item, parentId, entityName)) {
+	            return DynamoDBEntityMapper.convertItemToEntity(parent, item);
+	        }
+	        return null;
+	    }
+	    if (isPathIndexed(tableName)) {
+	        return null;
+	    }
+	    
+	    // Entities stored before the path index are found on the parent index,
+	    // until the path index items of the table are written
+	    Map<String, Condition> conditions = getParentConditions(parentId);
+	    Condition entityKeyName = new Condition().withComparisonOperator(ComparisonOperator.EQ)
+	            .withAttributeValueList(new AttributeValue().withS(entityName));
+	    conditions.put(AttributeKey.ENTITY_NAME, entityKeyName);
+	    
+	    Iterator<Map<String, AttributeValue>> items = dynamoDBService.queryItem(tableName, 
+	            AttributeKey.PARENT_INDEX, conditions);
+	    if (!items.hasNext()) {
+	        return null;
+	    }
+	    return DynamoDBEntityMapper.convertItemToEntity(parent, items.next());
+	}
+	
+	/**
+	 * The findEntityByPath method resolves the path level by level from the
+	 * given folder
+	 * 
+	 * @param folder
+	 * @param path
+	 * @return Entity
+	 */
+	@Override
+	public Entity findEntityByPath(String tableName, Folder folder, String path) {
+	    Entity entity = folder;
+	    for (String entityName : StringUtils.split(path, '/')) {
+	        if (!(entity instanceof Folder)) {
+	            return null;
+	        }
+	        
+	        entity = findEntityByName(tableName, (Folder) entity, entityName);
+	        if (entity == null) {
+	            return null;
+	        }
+	    }
+	    return entity;
+	}
+	
 	/**
      * The findEntityByParentAndType method enables you to retrieve multiple items
      * from one table.
@@ -236,26 +536,28 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
             return Collections.emptyList();
         }
 	    
-	    Map<String, Condition> conditions = new HashMap<String, Condition>();
-	    Condition parentUniqueId = new Condition().withComparisonOperator(ComparisonOperator.EQ.toString())
-	            .withAttributeValueList(new AttributeValue().withS(parent.getId().toString()));
-        conditions.put(AttributeKey.PARENT_UUID, parentUniqueId);
-        
-        Condition entityType = new Condition().withComparisonOperator(ComparisonOperator.EQ.toString())
-                .withAttributeValueList(new AttributeValue().withN(Integer.toString(isDirectory ? 1 : 0)));
-        conditions.put(AttributeKey.IS_DIRECTORY, entityType);
-	    
-        List<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, conditions);
-        List<Entity> children = DynamoDBEntityMapper.convertItemsToEntities(parent, items);
-        if (children == null || children.isEmpty()) {
-            return Collections.emptyList();
+	    // The index is keyed on parent & name only, so the type is filtered
+	    // on the children of the given parent
+	    Iterator<Map<String, AttributeValue>> items = dynamoDBService.queryItem(tableName, 
+	            AttributeKey.PARENT_INDEX, getParentConditions(parent.getId().toString()), LISTING_READ);
+        Iterator<Entity> children = DynamoDBEntityMapper.iterateItemsAsEntities(parent, items);
+        List<Entity> entities = new ArrayList<Entity>();
+        while (children.hasNext()) {
+            Entity child = children.next();
+            if (child.isDirectory() == isDirectory) {
+                entities.add(child);
+            }
         }
-        
-        return children;
+        return entities;
     }
 	
 	/**
-	 * Move or rename entity to other folder
+	 * Move or rename entity to other folder. The new name is claimed first
+	 * with a conditional write, then the item is updated; if the new name is
+	 * taken, nothing is written.
+	 * 
+	 * A moved entity is removed from the aggregates of its former ancestors
+	 * and added to the ones of its new ancestors.
 	 * 
 	 * @param entity
 	 * 				- current entity want to move or rename
@@ -270,27 +572,41 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 	@Override
 	public boolean updateEntityByUniqueId(String tableName, Entity entity, Folder newParent, 
 	        String newEntityName, boolean isRenamingAction) {
-		HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
-        primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(entity.getId().toString()));
-        
-        Map<String, AttributeValueUpdate> updateItems = new HashMap<String, AttributeValueUpdate>();
-        updateItems.put(AttributeKey.ENTITY_NAME, new AttributeValueUpdate()
-        	.withAction(AttributeAction.PUT).withValue(new AttributeValue().withS(newEntityName)));
-        updateItems.put(AttributeKey.MODIFIED_DATE, new AttributeValueUpdate()
-    		.withAction(AttributeAction.PUT).withValue(new AttributeValue().withS(DateUtils.dateToString(new Date()))));
+	    String uniqueId = entity.getId().toString();
+	    String parentId = getParentId(entity.getParent());
+	    String newParentId = isRenamingAction ? parentId : getParentId(newParent);
+	    
+        // Move the path index item to the new parent & name
+        Claim claim = claimPathItem(tableName, newParentId, newEntityName, uniqueId);
+        if (claim == Claim.TAKEN) {
+            return false;
+        }
         
-        if (!isRenamingAction) {
-        	updateItems.put(AttributeKey.PARENT_UUID, new AttributeValueUpdate()
-    			.withAction(AttributeAction.PUT).withValue(new AttributeValue()
-    			.withS(newParent.getId().toString())));
+        UpdateItemResult updateStatus = dynamoDBService.updateItem(tableName, getPrimaryKey(uniqueId), 
+                newNameUpdates(newParentId, newEntityName, new Date()));
+        if (updateStatus == null) {
+            if (claim == Claim.NEW) {
+                releasePathItem(tableName, newParentId, newEntityName, uniqueId);
+            }
+            return false;
         }
         
-        UpdateItemResult updateStatus = dynamoDBService.updateItem(tableName, primaryKey, updateItems);
-        if (updateStatus != null) {
-            return true;
+        if (!newParentId.equals(parentId) || !newEntityName.equals(entity.getName())) {
+            releasePathItem(tableName, parentId, entity.getName(), uniqueId);
         }
         
-		return false;
+        // The updated item holds the current aggregates of a moved folder
+        Entity movedEntity = DynamoDBEntityMapper.convertItemToEntity(null, updateStatus.getAttributes());
+        if (!newParentId.equals(parentId) && movedEntity != null) {
+            long fileCount = getFileCount(movedEntity);
+            long totalBytes = getTotalBytes(movedEntity);
+            
+            Map<String, long[]> deltas = new LinkedHashMap<String, long[]>();
+            addDeltas(deltas, getAncestorIds(tableName, entity.getParent(), parentId), -1, -fileCount, -totalBytes);
+            addDeltas(deltas, getAncestorIds(tableName, newParent, newParentId), 1, fileCount, totalBytes);
+            updateAggregates(tableName, deltas);
+        }
+		return true;
 	}
 	
 	/**
@@ -305,14 +621,399 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 		    return false;
 		}
 		
-		HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue> ();
-		primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(uniqueId));
+		HashMap<String, AttributeValue> primaryKey = getPrimaryKey(uniqueId);
+		Map<String, AttributeValue> item = dynamoDBService.getItem(tableName, primaryKey);
 		DeleteItemResult deleteItemResult = dynamoDBService.deleteItem(tableName, primaryKey);
-		if (deleteItemResult != null) {
-		    return true;
+		if (deleteItemResult == null) {
+		    return false;
 		}
 		
-		return false;
+		// Remove the entity from the path index & from the aggregates of its
+		// ancestors
+		if (item != null && item.containsKey(AttributeKey.PARENT_UUID)) {
+		    String parentId = item.get(AttributeKey.PARENT_UUID).getS();
+		    releasePathItem(tableName, parentId, item.get(AttributeKey.ENTITY_NAME).getS(), uniqueId);
+		    
+		    Entity entity = DynamoDBEntityMapper.convertItemToEntity(null, item);
+		    Map<String, long[]> deltas = new LinkedHashMap<String, long[]>();
+		    addDeltas(deltas, getAncestorIds(tableName, null, parentId), -1, -getFileCount(entity), 
+		            -getTotalBytes(entity));
+		    updateAggregates(tableName, deltas);
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean deleteEntities(String tableName, List<Entity> entities) {
+	    List<WriteRequest> writeRequests = new ArrayList<WriteRequest>(entities.size() * 2);
+	    for (Entity entity : entities) {
+	        writeRequests.add(new WriteRequest().withDeleteRequest(new DeleteRequest()
+	                .withKey(getPrimaryKey(entity.getId().toString()))));
+	        writeRequests.add(new WriteRequest().withDeleteRequest(new DeleteRequest()
+	                .withKey(getPrimaryKey(getPathUniqueId(getParentId(entity.getParent()), entity.getName())))));
+	    }
+	    return dynamoDBService.batchWriteItem(tableName, writeRequests);
+	}
+	
+	@Override
+	public boolean putEntities(String tableName, List<Entity> entities) {
+	    List<WriteRequest> writeRequests = new ArrayList<WriteRequest>(entities.size() * 2);
+	    for (Entity entity : entities) {
+	        writeRequests.add(new WriteRequest().withPutRequest(new PutRequest()
+	                .withItem(dynamoDBService.newItem(entity))));
+	        writeRequests.add(new WriteRequest().withPutRequest(new PutRequest()
+	                .withItem(newPathItem(getParentId(entity.getParent()), entity.getName(), 
+	                        entity.getId().toString()))));
+	    }
+	    return dynamoDBService.batchWriteItem(tableName, writeRequests);
+	}
+	
+	@Override
+	public void addAggregates(String tableName, Folder folder, long childCount, long fileCount, 
+	        long totalBytes) {
+	    Map<String, long[]> deltas = new LinkedHashMap<String, long[]>();
+	    addDeltas(deltas, getAncestorIds(tableName, folder, folder.getId().toString()), childCount, 
+	            fileCount, totalBytes);
+	    updateAggregates(tableName, deltas);
+	}
+	
+	/**
+	 * Store the path index item of an entity, which maps its parent & name to
+	 * its unique UUID, only if no other entity has that name. The write is
+	 * conditional, so that concurrent creations of the same name cannot both
+	 * succeed.
+	 * 
+	 * The name is claimed before the entity is stored with it: a path index
+	 * item is taken over only if its entity does not have that name and the
+	 * item is older than CLAIM_GRACE_MILLIS, e.g. after an interrupted
+	 * delete or rename.
+	 * 
+	 * @return whether the name was claimed, already belonged to the given
+	 *         entity or is taken
+	 */
+	private Claim claimPathItem(String tableName, String parentId, String entityName, String uniqueId) {
+	    Map<String, AttributeValue> pathItem = newPathItem(parentId, entityName, uniqueId);
+	    
+	    Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+	    expected.put(AttributeKey.UUID, new ExpectedAttributeValue(false));
+	    if (dynamoDBService.putItem(tableName, pathItem, expected) != null) {
+	        return Claim.NEW;
+	    }
+	    
+	    // The name is taken, possibly by the same entity stored again
+	    Map<String, AttributeValue> currentPathItem = dynamoDBService.getItem(tableName, 
+	            getPrimaryKey(getPathUniqueId(parentId, entityName)));
+	    AttributeValue targetId = currentPathItem.get(AttributeKey.TARGET_UUID);
+	    if (targetId == null) {
+	        return Claim.TAKEN;
+	    }
+	    if (uniqueId.equals(targetId.getS())) {
+	        return Claim.OWNED;
+	    }
+	    
+	    Map<String, AttributeValue> target = dynamoDBService.getItem(tableName, getPrimaryKey(targetId.getS()));
+	    if (isChildItem(target, parentId, entityName) || isRecentClaim(currentPathItem)) {
+	        LOG.info("Name " + entityName + " is already taken in folder " + parentId + " of " + tableName);
+	        return Claim.TAKEN;
+	    }
+	    
+	    expected.put(AttributeKey.UUID, new ExpectedAttributeValue(true)
+	            .withValue(currentPathItem.get(AttributeKey.UUID)));
+	    expected.put(AttributeKey.TARGET_UUID, new ExpectedAttributeValue(true).withValue(targetId));
+	    return dynamoDBService.putItem(tableName, pathItem, expected) != null ? Claim.NEW : Claim.TAKEN;
+	}
+	
+	static Map<String, AttributeValue> newPathItem(String parentId, String entityName, 
+	        String uniqueId) {
+	    Map<String, AttributeValue> pathItem = new HashMap<String, AttributeValue>();
+	    pathItem.put(AttributeKey.UUID, new AttributeValue().withS(getPathUniqueId(parentId, entityName)));
+	    pathItem.put(AttributeKey.TARGET_UUID, new AttributeValue().withS(uniqueId));
+	    pathItem.put(AttributeKey.CLAIMED_DATE, new AttributeValue().withN(
+	            String.valueOf(System.currentTimeMillis())));
+	    return pathItem;
+	}
+	
+	/**
+	 * Whether the given path index item may still be followed by the write
+	 * of its entity. The items written before the claim date have none and
+	 * are old.
+	 */
+	private static boolean isRecentClaim(Map<String, AttributeValue> pathItem) {
+	    AttributeValue claimedDate = pathItem.get(AttributeKey.CLAIMED_DATE);
+	    return claimedDate != null 
+	            && System.currentTimeMillis() - Long.parseLong(claimedDate.getN()) < CLAIM_GRACE_MILLIS;
+	}
+	
+	/**
+	 * Whether every entity of the table has a path index item, as marked
+	 * once the table is created or the path index migration is done. The
+	 * mark is read again at most every PATH_INDEX_CHECK_MILLIS until found.
+	 */
+	private boolean isPathIndexed(String tableName) {
+	    if (pathIndexedTables.contains(tableName)) {
+	        return true;
+	    }
+	    
+	    long now = System.currentTimeMillis();
+	    Long checkedAt = pathIndexChecks.get(tableName);
+	    if (checkedAt != null && now - checkedAt < PATH_INDEX_CHECK_MILLIS) {
+	        return false;
+	    }
+	    pathIndexChecks.put(tableName, now);
+	    
+	    Map<String, AttributeValue> markItem = dynamoDBService.getItem(tableName, 
+	            getPrimaryKey(getPathIndexMarkId(tableName)));
+	    if (!markItem.containsKey(AttributeKey.INDEXED_DATE)) {
+	        return false;
+	    }
+	    pathIndexedTables.add(tableName);
+	    return true;
+	}
+	
+	/**
+	 * Mark every entity of the table as having a path index item
+	 * 
+	 * @return FALSE if the mark could not be stored
+	 */
+	boolean markPathIndexed(String tableName) {
+	    Map<String, AttributeValue> markItem = new HashMap<String, AttributeValue>();
+	    markItem.put(AttributeKey.UUID, new AttributeValue().withS(getPathIndexMarkId(tableName)));
+	    markItem.put(AttributeKey.INDEXED_DATE, new AttributeValue().withN(
+	            String.valueOf(System.currentTimeMillis())));
+	    if (dynamoDBService.putItem(tableName, markItem) == null) {
+	        return false;
+	    }
+	    pathIndexedTables.add(tableName);
+	    return true;
+	}
+	
+	/**
+	 * Delete the path index item of an entity, unless the name has been
+	 * claimed by another entity in the meantime
+	 */
+	private void releasePathItem(String tableName, String parentId, String entityName, String uniqueId) {
+	    Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+	    expected.put(AttributeKey.TARGET_UUID, new ExpectedAttributeValue(true)
+	            .withValue(new AttributeValue().withS(uniqueId)));
+	    dynamoDBService.deleteItem(tableName, getPrimaryKey(getPathUniqueId(parentId, entityName)), expected);
+	}
+	
+	/**
+	 * The unique UUIDs of the given folder and of its ancestors up to the
+	 * root folder. The parents of folders read on their own, without their
+	 * ancestors, are read from their items.
+	 * 
+	 * @param parent
+	 *             - the folder, or null to read all the ancestors
+	 * @param parentId
+	 *             - unique UUID of the folder
+	 */
+	private List<String> getAncestorIds(String tableName, Folder parent, String parentId) {
+	    List<String> ancestorIds = new ArrayList<String>();
+	    String rootId = getRootUniqueId(tableName).toString();
+	    Folder folder = parent;
+	    String folderId = parentId;
+	    while (folderId != null && !AttributeKey.NOT_EXIST.equals(folderId)) {
+	        if (ancestorIds.contains(folderId) || ancestorIds.size() >= MAX_FOLDER_DEPTH) {
+	            LOG.warn("Stopped walking up the ancestors of folder " + parentId + " in " + tableName 
+	                    + " at " + folderId);
+	            break;
+	        }
+	        
+	        ancestorIds.add(folderId);
+	        if (folderId.equals(rootId)) {
+	            break;
+	        }
+	        
+	        if (folder != null && folder.getParent() != null) {
+	            folder = folder.getParent();
+	            folderId = folder.getId().toString();
+	        } else {
+	            folder = null;
+	            AttributeValue ancestorId = dynamoDBService.getItem(tableName, getPrimaryKey(folderId), 
+	                    PARENT_READ).get(AttributeKey.PARENT_UUID);
+	            folderId = ancestorId != null ? ancestorId.getS() : null;
+	        }
+	    }
+	    return ancestorIds;
+	}
+	
+	/**
+	 * Add the given changes to the aggregates of the given folders, the
+	 * child count only changing for the first one, the direct parent
+	 */
+	private static void addDeltas(Map<String, long[]> deltas, List<String> ancestorIds, long childCount, 
+	        long fileCount, long totalBytes) {
+	    for (int i = 0; i < ancestorIds.size(); i++) {
+	        long[] delta = deltas.get(ancestorIds.get(i));
+	        if (delta == null) {
+	            delta = new long[3];
+	            deltas.put(ancestorIds.get(i), delta);
+	        }
+	        
+	        if (i == 0) {
+	            delta[0] += childCount;
+	        }
+	        delta[1] += fileCount;
+	        delta[2] += totalBytes;
+	    }
+	}
+	
+	/**
+	 * Apply the changes of the aggregates of every folder with an atomic ADD
+	 * update, conditional on the folder still existing
+	 */
+	private void updateAggregates(String tableName, Map<String, long[]> deltas) {
+	    for (Map.Entry<String, long[]> delta : deltas.entrySet()) {
+	        Map<String, AttributeValueUpdate> updateItems = new HashMap<String, AttributeValueUpdate>();
+	        addUpdate(updateItems, AttributeKey.CHILD_COUNT, delta.getValue()[0]);
+	        addUpdate(updateItems, AttributeKey.FILE_COUNT, delta.getValue()[1]);
+	        addUpdate(updateItems, AttributeKey.TOTAL_BYTES, delta.getValue()[2]);
+	        if (updateItems.isEmpty()) {
+	            continue;
+	        }
+	        
+	        Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+	        expected.put(AttributeKey.UUID, new ExpectedAttributeValue(true)
+	                .withValue(new AttributeValue().withS(delta.getKey())));
+	        if (dynamoDBService.updateItem(tableName, getPrimaryKey(delta.getKey()), updateItems, 
+	                expected) == null) {
+	            LOG.warn("Could not update the aggregates of folder " + delta.getKey() + " in " + tableName);
+	        }
+	    }
+	}
+	
+	private static void addUpdate(Map<String, AttributeValueUpdate> updateItems, String name, long value) {
+	    if (value != 0) {
+	        updateItems.put(name, new AttributeValueUpdate().withAction(AttributeAction.ADD)
+	                .withValue(new AttributeValue().withN(Long.toString(value))));
+	    }
+	}
+	
+	private static long getFileCount(Entity entity) {
+	    if (entity instanceof Folder) {
+	        return ((Folder) entity).getFileCount();
+	    }
+	    return entity instanceof File ? 1 : 0;
+	}
+	
+	private static long getTotalBytes(Entity entity) {
+	    if (entity instanceof Folder) {
+	        return ((Folder) entity).getTotalBytes();
+	    }
+	    return entity instanceof File ? ((File) entity).getSize() : 0;
+	}
+	
+	/**
+	 * The attribute updates moving an item to the given parent & name
+	 */
+	private Map<String, AttributeValueUpdate> newNameUpdates(String parentId, String entityName, 
+	        Date modifiedDate) {
+	    Map<String, AttributeValueUpdate> updateItems = new HashMap<String, AttributeValueUpdate>();
+	    updateItems.put(AttributeKey.ENTITY_NAME, new AttributeValueUpdate()
+	        .withAction(AttributeAction.PUT).withValue(new AttributeValue().withS(entityName)));
+	    updateItems.put(AttributeKey.PARENT_UUID, new AttributeValueUpdate()
+	        .withAction(AttributeAction.PUT).withValue(new AttributeValue().withS(parentId)));
+	    updateItems.putAll(dynamoDBService.newModifiedDateUpdates(modifiedDate));
+	    return updateItems;
+	}
+	
+	/**
+	 * The attribute updates storing a folder again, every attribute of its
+	 * item but its key & aggregates
+	 */
+	private Map<String, AttributeValueUpdate> newFolderUpdates(Folder folder) {
+	    Map<String, AttributeValue> item = dynamoDBService.newItem(folder);
+	    item.remove(AttributeKey.UUID);
+	    item.remove(AttributeKey.CHILD_COUNT);
+	    item.remove(AttributeKey.FILE_COUNT);
+	    item.remove(AttributeKey.TOTAL_BYTES);
+	    
+	    Map<String, AttributeValueUpdate> updateItems = new HashMap<String, AttributeValueUpdate>();
+	    for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+	        updateItems.put(attribute.getKey(), new AttributeValueUpdate()
+	            .withAction(AttributeAction.PUT).withValue(attribute.getValue()));
+	    }
+	    updateItems.putAll(dynamoDBService.newModifiedDateUpdates(folder.getModifiedDate()));
+	    return updateItems;
+	}
+	
+	/**
+	 * Check the given item is still the child of the given parent with the
+	 * given name
+	 */
+	private boolean isChildItem(Map<String, AttributeValue> item, String parentId, String entityName) {
+	    if (item == null || item.isEmpty()) {
+	        return false;
+	    }
+	    
+	    AttributeValue itemParentId = item.get(AttributeKey.PARENT_UUID);
+	    AttributeValue itemName = item.get(AttributeKey.ENTITY_NAME);
+	    return itemParentId != null && parentId.equals(itemParentId.getS()) 
+	            && itemName != null && entityName.equals(itemName.getS());
+	}
+	
+	/**
+	 * The unique UUID of the path index item of an entity, a hash of the
+	 * parent UUID & entity name
+	 * 
+	 * @param parentId
+	 *             - unique UUID of the parent folder
+	 * @param entityName
+	 *             - name of the entity
+	 */
+	static String getPathUniqueId(String parentId, String entityName) {
+	    return UUID.nameUUIDFromBytes(("path:" + parentId + "/" + entityName)
+	            .getBytes(Charset.forName("UTF-8"))).toString();
+	}
+	
+	private static String getParentId(Folder parent) {
+	    if (parent == null) {
+	        return AttributeKey.NOT_EXIST;
+	    }
+	    return parent.getId().toString();
+	}
+	
+	static HashMap<String, AttributeValue> getPrimaryKey(String uniqueId) {
+	    HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+	    primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(uniqueId));
+	    return primaryKey;
+	}
+	
+	/**
+	 * The unique UUID of the root folder, derived from the table name
+	 * 
+	 * @param tableName
+	 *             - Table name
+	 */
+	private static UUID getRootUniqueId(String tableName) {
+	    return UUID.nameUUIDFromBytes(("root:" + tableName).getBytes(Charset.forName("UTF-8")));
+	}
+	
+	/**
+	 * The unique UUID of the item marking the table as path indexed, derived
+	 * from the table name
+	 * 
+	 * @param tableName
+	 *             - Table name
+	 */
+	private static String getPathIndexMarkId(String tableName) {
+	    return UUID.nameUUIDFromBytes(("path-index:" + tableName).getBytes(Charset.forName("UTF-8"))).toString();
+	}
+	
+	/**
+	 * Key conditions to find the children of the given parent on the parent
+	 * index
+	 * 
+	 * @param parentId
+	 *             - unique UUID of the parent folder
+	 */
+	private Map<String, Condition> getParentConditions(String parentId) {
+	    Condition parentUniqueId = new Condition().withComparisonOperator(ComparisonOperator.EQ)
+	            .withAttributeValueList(new AttributeValue().withS(parentId));
+	    
+	    Map<String, Condition> conditions = new HashMap<String, Condition>();
+	    conditions.put(AttributeKey.PARENT_UUID, parentUniqueId);
+	    return conditions;
 	}
-
 }
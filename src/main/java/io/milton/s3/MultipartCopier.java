@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+
+/**
+ * Copies large objects on the server side as multipart uploads whose parts
+ * are copied from byte ranges of the source object.
+ * 
+ * A single copy request is limited to 5 GB and copies the object serially,
+ * the parts of a multipart copy are copied concurrently by a pool of
+ * workers. No data goes through this process, the parts only hold their
+ * range. Each part is copied only if the source still has the ETag read with
+ * its metadata, so that the parts of a source replaced meanwhile are not
+ * mixed.
+ */
+public class MultipartCopier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultipartCopier.class);
+    
+    /**
+     * Maximum number of parts of a multipart upload
+     */
+    private static final int MAX_PARTS = 10000;
+    
+    /**
+     * Number of times the copy of a part is retried
+     */
+    private static final int MAX_PART_RETRIES = 3;
+    
+    /**
+     * Base delay of the exponential backoff between two retries of a part
+     */
+    private static final long RETRY_BASE_DELAY_MILLIS = 200;
+    
+    private final AmazonS3 amazonS3Client;
+    
+    /**
+     * Copies the parts, its size bounds the number of concurrent part copies
+     */
+    private final ExecutorService executor;
+    
+    /**
+     * Size of the parts, larger for the objects that would need more than
+     * MAX_PARTS parts
+     */
+    private final long partSize;
+    
+    public MultipartCopier(AmazonS3 amazonS3Client, ExecutorService executor, long partSize) {
+        this.amazonS3Client = amazonS3Client;
+        this.executor = executor;
+        this.partSize = partSize;
+    }
+    
+    /**
+     * Copy the given object under the given key
+     * 
+     * @param sourceBucketName
+     * @param sourceKeyName
+     * @param destinationBucketName
+     * @param destinationKeyName
+     * @param metadata
+     *            - The metadata of the source object, with its content
+     *            length and ETag
+     * @return TRUE if the whole object was copied
+     */
+    public boolean copy(String sourceBucketName, String sourceKeyName, String destinationBucketName, 
+            String destinationKeyName, ObjectMetadata metadata) {
+        String uploadId;
+        try {
+            uploadId = amazonS3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(
+                    destinationBucketName, destinationKeyName, getObjectMetadata(metadata))).getUploadId();
+        } catch (AmazonServiceException ase) {
+            LOG.error(ase.getMessage(), ase);
+            return false;
+        } catch (AmazonClientException ace) {
+            LOG.error(ace.getMessage(), ace);
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        long contentLength = metadata.getContentLength();
+        long maxPartSize = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+        long copyPartSize = Math.max(partSize, maxPartSize);
+        
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        try {
+            int partNumber = 1;
+            for (long firstByte = 0; firstByte < contentLength; firstByte += copyPartSize) {
+                long lastByte = Math.min(firstByte + copyPartSize, contentLength) - 1;
+                parts.add(executor.submit(copyPart(sourceBucketName, sourceKeyName, metadata.getETag(), 
+                        destinationBucketName, destinationKeyName, uploadId, partNumber++, firstByte, lastByte)));
+            }
+            
+            boolean isSuccessful = true;
+            List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+            for (Future<PartETag> part : parts) {
+                PartETag partETag = part.get();
+                if (partETag == null) {
+                    isSuccessful = false;
+                }
+                partETags.add(partETag);
+            }
+            
+            if (isSuccessful) {
+                amazonS3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(destinationBucketName, 
+                        destinationKeyName, uploadId, partETags));
+                LOG.info("Copied " + contentLength + " bytes from " + sourceKeyName + " to " + destinationKeyName 
+                        + " in " + parts.size() + " parts in " + (System.currentTimeMillis() - startTime) + " ms");
+                return true;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while copying " + sourceKeyName);
+        } catch (ExecutionException ee) {
+            LOG.error("Could not copy a part of " + sourceKeyName, ee.getCause());
+        } catch (AmazonServiceException ase) {
+            LOG.error(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.error(ace.getMessage(), ace);
+        }
+        
+        abort(destinationBucketName, destinationKeyName, uploadId, parts);
+        return false;
+    }
+    
+    /**
+     * The metadata of the copy, the length being given by each part
+     */
+    private ObjectMetadata getObjectMetadata(ObjectMetadata metadata) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        if (metadata.getContentType() != null) {
+            objectMetadata.setContentType(metadata.getContentType());
+        }
+        if (metadata.getContentEncoding() != null) {
+            objectMetadata.setContentEncoding(metadata.getContentEncoding());
+        }
+        if (metadata.getContentDisposition() != null) {
+            objectMetadata.setContentDisposition(metadata.getContentDisposition());
+        }
+        if (metadata.getCacheControl() != null) {
+            objectMetadata.setCacheControl(metadata.getCacheControl());
+        }
+        if (metadata.getServerSideEncryption() != null) {
+            objectMetadata.setServerSideEncryption(metadata.getServerSideEncryption());
+        }
+        for (Map.Entry<String, String> userMetadata : metadata.getUserMetadata().entrySet()) {
+            objectMetadata.addUserMetadata(userMetadata.getKey(), userMetadata.getValue());
+        }
+        return objectMetadata;
+    }
+    
+    private Callable<PartETag> copyPart(final String sourceBucketName, final String sourceKeyName, 
+            final String sourceETag, final String destinationBucketName, final String destinationKeyName, final String uploadId, 
+            final int partNumber, final long firstByte, final long lastByte) {
+        return new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+                CopyPartRequest copyPartRequest = new CopyPartRequest()
+                    .withSourceBucketName(sourceBucketName)
+                    .withSourceKey(sourceKeyName)
+                    .withMatchingETagConstraint(sourceETag)
+                    .withDestinationBucketName(destinationBucketName)
+                    .withDestinationKey(destinationKeyName)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withFirstByte(firstByte)
+                    .withLastByte(lastByte);
+                for (int retries = 0; ; retries++) {
+                    try {
+                        CopyPartResult copyPartResult = amazonS3Client.copyPart(copyPartRequest);
+                        if (copyPartResult == null) {
+                            // The source no longer has the ETag, the upload
+                            // is aborted
+                            LOG.error("Could not copy part " + partNumber + " of " + sourceKeyName 
+                                    + ", changed since the copy started");
+                            return null;
+                        }
+                        return copyPartResult.getPartETag();
+                    } catch (AmazonClientException ace) {
+                        if (retries >= MAX_PART_RETRIES || !isRetryable(ace)) {
+                            LOG.error("Could not copy part " + partNumber + " of " + sourceKeyName 
+                                    + ": " + ace.getMessage());
+                            return null;
+                        }
+                        LOG.warn("Retrying part " + partNumber + " of " + sourceKeyName + ": " + ace.getMessage());
+                        Thread.sleep((long) (Math.random() * (RETRY_BASE_DELAY_MILLIS << retries)) + 1);
+                    }
+                }
+            }
+        };
+    }
+    
+    private boolean isRetryable(AmazonClientException ace) {
+        if (ace instanceof AmazonServiceException) {
+            int statusCode = ((AmazonServiceException) ace).getStatusCode();
+            return statusCode >= 500 || statusCode == 400 
+                    && "RequestTimeout".equals(((AmazonServiceException) ace).getErrorCode());
+        }
+        return true;
+    }
+    
+    /**
+     * Abort the multipart upload once its pending parts are done, so that no
+     * part is stored after the abort
+     */
+    private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts) {
+        for (Future<PartETag> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                // Already logged by the failed part
+            }
+        }
+        try {
+            amazonS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+        } catch (AmazonClientException ace) {
+            LOG.warn("Could not abort the multipart copy to " + keyName + ": " + ace.getMessage());
+        }
+    }
+}
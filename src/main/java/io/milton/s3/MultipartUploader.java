@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import io.milton.s3.util.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Uploads a stream to Amazon S3 as a multipart upload.
+ * 
+ * The stream is read part by part into buffers of a shared pool while the
+ * parts already read are uploaded concurrently, each part being retried on
+ * its own. Reading waits for free buffers, so that the memory used by all the
+ * uploads stays bounded by the pool, and an upload waits for its oldest part
+ * before reading more than a few parts ahead. The upload is aborted if a part
+ * cannot be uploaded, so that no incomplete parts are left in the bucket.
+ */
+public class MultipartUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultipartUploader.class);
+    
+    /**
+     * Maximum number of parts of a multipart upload
+     */
+    private static final int MAX_PARTS = 10000;
+    
+    /**
+     * Maximum number of parts of an upload read and not uploaded yet, which
+     * bounds the memory used by a single upload
+     */
+    private static final int MAX_PARTS_IN_FLIGHT = 4;
+    
+    /**
+     * Number of parts of a stream of unknown length after which its parts
+     * grow by one buffer
+     */
+    private static final int PARTS_PER_GROWTH = 1000;
+    
+    /**
+     * Number of times an upload of a part is retried
+     */
+    private static final int MAX_PART_RETRIES = 3;
+    
+    /**
+     * Base delay of the exponential backoff between two retries of a part
+     */
+    private static final long RETRY_BASE_DELAY_MILLIS = 200;
+    
+    private final AmazonS3 amazonS3Client;
+    
+    private final BufferPool bufferPool;
+    
+    /**
+     * Uploads the parts, its size bounds the number of concurrent part
+     * uploads
+     */
+    private final ExecutorService executor;
+    
+    public MultipartUploader(AmazonS3 amazonS3Client, BufferPool bufferPool, ExecutorService executor) {
+        this.amazonS3Client = amazonS3Client;
+        this.bufferPool = bufferPool;
+        this.executor = executor;
+    }
+    
+    /**
+     * Upload the given stream under the given key
+     * 
+     * @param bucketName
+     * @param keyName
+     * @param inputStream
+     * @param metadata
+     *            - The metadata of the object, with the content length of the
+     *            stream
+     * @return TRUE if the whole stream was uploaded
+     */
+    public boolean upload(String bucketName, String keyName, InputStream inputStream, ObjectMetadata metadata) {
+        long contentLength = metadata.getContentLength();
+        if (getBuffersPerPart(contentLength, 1) > bufferPool.getBufferCount()) {
+            LOG.error("Could not upload " + keyName + " of " + contentLength + " bytes in at most " 
+                    + MAX_PARTS + " parts");
+            return false;
+        }
+        return upload(bucketName, keyName, inputStream, metadata, contentLength, null, 0) == contentLength;
+    }
+    
+    /**
+     * Upload the given stream of unknown length under the given key, e.g. the
+     * body of a chunked request. A stream that fits in a single buffer is
+     * uploaded with a single request, a longer one as a multipart upload.
+     * 
+     * @param bucketName
+     * @param keyName
+     * @param inputStream
+     * @param metadata
+     *            - The metadata of the object, without content length
+     * @return the number of bytes uploaded, or -1 if the stream could not be
+     *         uploaded
+     */
+    public long uploadUnknownLength(String bucketName, String keyName, InputStream inputStream, 
+            ObjectMetadata metadata) {
+        List<byte[]> firstBuffers;
+        int firstPartSize;
+        try {
+            firstBuffers = bufferPool.acquire(1);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while uploading " + keyName);
+            return -1;
+        }
+        try {
+            firstPartSize = read(inputStream, firstBuffers);
+        } catch (IOException ioe) {
+            bufferPool.release(firstBuffers);
+            LOG.error("Could not read the stream to upload to " + keyName, ioe);
+            return -1;
+        }
+        
+        if (firstPartSize < bufferPool.getBufferSize()) {
+            try {
+                ObjectMetadata objectMetadata = getObjectMetadata(metadata);
+                objectMetadata.setContentLength(firstPartSize);
+                amazonS3Client.putObject(bucketName, keyName, newPartStream(firstBuffers, firstPartSize), 
+                        objectMetadata);
+                return firstPartSize;
+            } catch (AmazonServiceException ase) {
+                LOG.error(ase.getMessage(), ase);
+            } catch (AmazonClientException ace) {
+                LOG.error(ace.getMessage(), ace);
+            } finally {
+                bufferPool.release(firstBuffers);
+            }
+            return -1;
+        }
+        return upload(bucketName, keyName, inputStream, metadata, -1, firstBuffers, firstPartSize);
+    }
+    
+    /**
+     * Upload the stream part by part, with at most MAX_PARTS_IN_FLIGHT parts
+     * read and not uploaded yet
+     * 
+     * @param contentLength
+     *            - The length of the stream, or -1 if unknown
+     * @param firstBuffers
+     *            - The first part if already read, or null
+     * @return the number of bytes uploaded, or -1 if the upload failed
+     */
+    private long upload(String bucketName, String keyName, InputStream inputStream, ObjectMetadata metadata, 
+            long contentLength, List<byte[]> firstBuffers, int firstPartSize) {
+        String uploadId;
+        try {
+            uploadId = amazonS3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, 
+                    keyName, getObjectMetadata(metadata))).getUploadId();
+        } catch (AmazonServiceException ase) {
+            LOG.error(ase.getMessage(), ase);
+            return releaseFirstBuffers(firstBuffers);
+        } catch (AmazonClientException ace) {
+            LOG.error(ace.getMessage(), ace);
+            return releaseFirstBuffers(firstBuffers);
+        }
+        
+        long startTime = System.currentTimeMillis();
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        long uploadedBytes = 0;
+        boolean isSuccessful = true;
+        try {
+            for (int partNumber = 1; ; partNumber++) {
+                // Waits for the oldest part before reading a new one, so that
+                // an upload holds a bounded number of buffers
+                if (partNumber > MAX_PARTS_IN_FLIGHT 
+                        && parts.get(partNumber - 1 - MAX_PARTS_IN_FLIGHT).get() == null) {
+                    break;
+                }
+                
+                int buffersPerPart = getBuffersPerPart(contentLength, partNumber);
+                if (partNumber > MAX_PARTS || buffersPerPart > bufferPool.getBufferCount()) {
+                    LOG.error("Could not upload " + keyName + " in at most " + MAX_PARTS + " parts");
+                    isSuccessful = false;
+                    break;
+                }
+                
+                List<byte[]> buffers;
+                int partSize;
+                if (partNumber == 1 && firstBuffers != null) {
+                    buffers = firstBuffers;
+                    partSize = firstPartSize;
+                    firstBuffers = null;
+                } else {
+                    buffers = bufferPool.acquire(buffersPerPart);
+                    try {
+                        partSize = read(inputStream, buffers);
+                    } catch (IOException ioe) {
+                        bufferPool.release(buffers);
+                        throw ioe;
+                    }
+                }
+                
+                // A stream may end right after a full part, but an upload
+                // needs at least one part
+                if (partSize == 0 && partNumber > 1) {
+                    bufferPool.release(buffers);
+                    break;
+                }
+                
+                parts.add(executor.submit(uploadPart(bucketName, keyName, uploadId, partNumber, 
+                        buffers, partSize)));
+                uploadedBytes += partSize;
+                if (partSize < buffers.size() * bufferPool.getBufferSize() || isAnyPartFailed(parts)) {
+                    break;
+                }
+            }
+            
+            if (contentLength >= 0 && uploadedBytes != contentLength) {
+                LOG.error("Read " + uploadedBytes + " of " + contentLength + " bytes to upload to " + keyName);
+                isSuccessful = false;
+            }
+            
+            List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+            for (Future<PartETag> part : parts) {
+                PartETag partETag = part.get();
+                if (partETag == null) {
+                    isSuccessful = false;
+                }
+                partETags.add(partETag);
+            }
+            
+            if (isSuccessful) {
+                amazonS3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, keyName, 
+                        uploadId, partETags));
+                LOG.info("Uploaded " + uploadedBytes + " bytes to " + keyName + " in " + parts.size() 
+                        + " parts in " + (System.currentTimeMillis() - startTime) + " ms");
+                return uploadedBytes;
+            }
+        } catch (IOException ioe) {
+            LOG.error("Could not read the stream to upload to " + keyName, ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while uploading " + keyName);
+        } catch (ExecutionException ee) {
+            LOG.error("Could not upload a part of " + keyName, ee.getCause());
+        } catch (AmazonServiceException ase) {
+            LOG.error(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.error(ace.getMessage(), ace);
+        }
+        
+        releaseFirstBuffers(firstBuffers);
+        abort(bucketName, keyName, uploadId, parts);
+        return -1;
+    }
+    
+    private long releaseFirstBuffers(List<byte[]> firstBuffers) {
+        if (firstBuffers != null) {
+            bufferPool.release(firstBuffers);
+        }
+        return -1;
+    }
+    
+    /**
+     * The number of buffers of the given part. If the length is known, the
+     * parts are as small as possible to fit in the maximum number of parts.
+     * Otherwise the parts grow by one buffer every PARTS_PER_GROWTH parts, so
+     * that small streams are uploaded in small parts and large streams still
+     * fit in the maximum number of parts.
+     */
+    private int getBuffersPerPart(long contentLength, int partNumber) {
+        if (contentLength < 0) {
+            return 1 + (partNumber - 1) / PARTS_PER_GROWTH;
+        }
+        long maxPartBuffers = MAX_PARTS * (long) bufferPool.getBufferSize();
+        return (int) Math.max(1, (contentLength + maxPartBuffers - 1) / maxPartBuffers);
+    }
+    
+    /**
+     * The metadata of the object without its length, the length being given
+     * by each part
+     */
+    private ObjectMetadata getObjectMetadata(ObjectMetadata metadata) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        if (metadata.getContentType() != null) {
+            objectMetadata.setContentType(metadata.getContentType());
+        }
+        for (Map.Entry<String, String> userMetadata : metadata.getUserMetadata().entrySet()) {
+            objectMetadata.addUserMetadata(userMetadata.getKey(), userMetadata.getValue());
+        }
+        return objectMetadata;
+    }
+    
+    /**
+     * Fill the given buffers from the stream
+     * 
+     * @return the number of bytes read, less than the size of the buffers
+     *         only at the end of the stream
+     */
+    private int read(InputStream inputStream, List<byte[]> buffers) throws IOException {
+        int size = 0;
+        for (byte[] buffer : buffers) {
+            int offset = 0;
+            while (offset < buffer.length) {
+                int count = inputStream.read(buffer, offset, buffer.length - offset);
+                if (count < 0) {
+                    return size + offset;
+                }
+                offset += count;
+            }
+            size += offset;
+        }
+        return size;
+    }
+    
+    private boolean isAnyPartFailed(List<Future<PartETag>> parts) throws InterruptedException, 
+            ExecutionException {
+        for (Future<PartETag> part : parts) {
+            if (part.isDone() && part.get() == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private Callable<PartETag> uploadPart(final String bucketName, final String keyName, 
+            final String uploadId, final int partNumber, final List<byte[]> buffers, final int partSize) {
+        return new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+                try {
+                    for (int retries = 0; ; retries++) {
+                        UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                            .withBucketName(bucketName)
+                            .withKey(keyName)
+                            .withUploadId(uploadId)
+                            .withPartNumber(partNumber)
+                            .withPartSize(partSize)
+                            .withInputStream(newPartStream(buffers, partSize));
+                        try {
+                            return amazonS3Client.uploadPart(uploadPartRequest).getPartETag();
+                        } catch (AmazonClientException ace) {
+                            if (retries >= MAX_PART_RETRIES || !isRetryable(ace)) {
+                                LOG.error("Could not upload part " + partNumber + " of " + keyName 
+                                        + ": " + ace.getMessage());
+                                return null;
+                            }
+                            LOG.warn("Retrying part " + partNumber + " of " + keyName + ": " + ace.getMessage());
+                            Thread.sleep((long) (Math.random() * (RETRY_BASE_DELAY_MILLIS << retries)) + 1);
+                        }
+                    }
+                } finally {
+                    bufferPool.release(buffers);
+                }
+            }
+        };
+    }
+    
+    private boolean isRetryable(AmazonClientException ace) {
+        if (ace instanceof AmazonServiceException) {
+            int statusCode = ((AmazonServiceException) ace).getStatusCode();
+            return statusCode >= 500 || statusCode == 400 
+                    && "RequestTimeout".equals(((AmazonServiceException) ace).getErrorCode());
+        }
+        return true;
+    }
+    
+    private static InputStream newPartStream(List<byte[]> buffers, int partSize) {
+        Vector<InputStream> streams = new Vector<InputStream>(buffers.size());
+        int remaining = partSize;
+        for (byte[] buffer : buffers) {
+            if (remaining <= 0) {
+                break;
+            }
+            int length = Math.min(buffer.length, remaining);
+            streams.add(new ByteArrayInputStream(buffer, 0, length));
+            remaining -= length;
+        }
+        if (streams.isEmpty()) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return new SequenceInputStream(streams.elements());
+    }
+    
+    /**
+     * Abort the upload once the submitted parts are done, so that no part is
+     * uploaded after the abort
+     */
+    private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts) {
+        for (Future<PartETag> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                // Already logged
+            }
+        }
+        
+        try {
+            amazonS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+            LOG.warn("Aborted the upload of " + keyName);
+        } catch (AmazonServiceException ase) {
+            LOG.error(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.error(ace.getMessage(), ace);
+        }
+    }
+}
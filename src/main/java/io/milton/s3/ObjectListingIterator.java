@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Iterates over the objects of a bucket under a prefix. Listings are fetched
+ * lazily following the marker of the previous listing, and the next listing
+ * is already requested while the caller consumes the current one.
+ * 
+ * At most two listings (the current one and the prefetched one) are held in
+ * memory at any time, whatever the number of objects. With a delimiter, the
+ * objects of the "sub-folders" of the prefix are not listed.
+ */
+public class ObjectListingIterator implements Iterator<S3ObjectSummary> {
+
+    private final AmazonS3 amazonS3Client;
+    
+    private final ExecutorService executorService;
+    
+    private final ListObjectsRequest listObjectsRequest;
+    
+    private Iterator<S3ObjectSummary> currentListing;
+    
+    private Future<ObjectListing> nextListing;
+    
+    /**
+     * @param amazonS3Client
+     * @param executorService
+     *              - Fetches the next listings
+     * @param bucketName
+     * @param prefixKey
+     *              - The prefix of the keys, or null for all the keys
+     * @param delimiter
+     *              - The delimiter of the keys not to list below the prefix,
+     *              or null to list all the keys of the prefix
+     */
+    public ObjectListingIterator(AmazonS3 amazonS3Client, ExecutorService executorService, String bucketName, 
+            String prefixKey, String delimiter) {
+        this.amazonS3Client = amazonS3Client;
+        this.executorService = executorService;
+        this.listObjectsRequest = new ListObjectsRequest()
+            .withBucketName(bucketName)
+            .withPrefix(prefixKey)
+            .withDelimiter(delimiter);
+    }
+    
+    @Override
+    public boolean hasNext() {
+        if (currentListing == null) {
+            // The first listing is fetched on the caller thread
+            currentListing = nextListing(amazonS3Client.listObjects(listObjectsRequest));
+        }
+        
+        while (!currentListing.hasNext() && nextListing != null) {
+            currentListing = nextListing(awaitListing(nextListing));
+        }
+        return currentListing.hasNext();
+    }
+
+    @Override
+    public S3ObjectSummary next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentListing.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Object summaries are read-only");
+    }
+    
+    /**
+     * Start prefetching the listing after the given one, then return the
+     * objects of the given listing
+     */
+    private Iterator<S3ObjectSummary> nextListing(final ObjectListing objectListing) {
+        if (!objectListing.isTruncated()) {
+            nextListing = null;
+        } else {
+            nextListing = executorService.submit(new Callable<ObjectListing>() {
+                @Override
+                public ObjectListing call() throws Exception {
+                    return amazonS3Client.listNextBatchOfObjects(objectListing);
+                }
+            });
+        }
+        return objectListing.getObjectSummaries().iterator();
+    }
+    
+    private ObjectListing awaitListing(Future<ObjectListing> objectListing) {
+        try {
+            return objectListing.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while listing the next objects", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new AmazonClientException("Failed to list the next objects", ee.getCause());
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import io.milton.s3.util.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Reads a byte range of an object with several concurrent ranged GETs ahead
+ * of the reader, so that a large download is not limited by the throughput
+ * of a single connection.
+ * 
+ * The range is split in chunks of the size of the buffers of the pool. A
+ * window of chunks is fetched concurrently and the chunks are returned in
+ * order. The window grows while it makes the download faster and shrinks
+ * when it does not, between MIN_WINDOW and MAX_WINDOW chunks. A buffer is
+ * taken from the pool before a chunk is fetched, so that the memory used by
+ * all the downloads stays bounded by the pool.
+ * 
+ * A stream never waits for a buffer while it holds buffers: it fetches fewer
+ * chunks ahead when the pool is empty. A stream holding no buffer waits a
+ * little for one, then reads its next chunk with a plain GET streamed to the
+ * reader, so that downloads keep going even while slow readers hold all the
+ * buffers.
+ */
+public class ParallelRangeInputStream extends InputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelRangeInputStream.class);
+    
+    /**
+     * Bounds of the number of chunks fetched ahead of the reader
+     */
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_WINDOW = 6;
+    
+    /**
+     * Number of times a chunk is fetched again after a failed GET
+     */
+    private static final int MAX_CHUNK_RETRIES = 3;
+    
+    /**
+     * Time a stream holding no buffer waits for one before streaming its
+     * next chunk without buffer
+     */
+    private static final long BUFFER_WAIT_MILLIS = 500;
+    
+    /**
+     * Relative change of throughput that makes the window grow or shrink
+     */
+    private static final double THROUGHPUT_TOLERANCE = 0.1;
+    
+    private final AmazonS3 amazonS3Client;
+    
+    private final String bucketName;
+    
+    private final String keyName;
+    
+    private final BufferPool bufferPool;
+    
+    private final ExecutorService executor;
+    
+    /**
+     * The chunks being fetched or fetched, in order
+     */
+    private final LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+    
+    /**
+     * Position of the first byte of the next chunk to fetch, and of the last
+     * byte of the range
+     */
+    private long nextStart;
+    private final long finish;
+    
+    private int window = MIN_WINDOW;
+    
+    /**
+     * The chunk being read, and the position of the next byte to read in it
+     */
+    private Chunk current;
+    private int position;
+    
+    /**
+     * The chunk streamed without buffer when no buffer was free, and the
+     * number of its bytes left to read
+     */
+    private InputStream direct;
+    private long directRemaining;
+    
+    /**
+     * Bytes read since the window last changed, the time it changed, and the
+     * throughput measured before
+     */
+    private long epochBytes;
+    private long epochStartTime = System.currentTimeMillis();
+    private double previousThroughput;
+    
+    private boolean isClosed;
+    
+    /**
+     * @param amazonS3Client
+     * @param bucketName
+     * @param keyName
+     * @param start
+     *            - The position of the first byte to read
+     * @param finish
+     *            - The position of the last byte to read, included
+     * @param bufferPool
+     *            - The buffers of the chunks, a chunk having the size of a
+     *            buffer
+     * @param executor
+     *            - Fetches the chunks
+     */
+    public ParallelRangeInputStream(AmazonS3 amazonS3Client, String bucketName, String keyName, long start, 
+            long finish, BufferPool bufferPool, ExecutorService executor) {
+        this.amazonS3Client = amazonS3Client;
+        this.bucketName = bucketName;
+        this.keyName = keyName;
+        this.nextStart = start;
+        this.finish = finish;
+        this.bufferPool = bufferPool;
+        this.executor = executor;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        if (direct != null) {
+            int b = direct.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of " + keyName + ", " + directRemaining + " bytes missing");
+            }
+            directRemaining--;
+            return b;
+        }
+        return current.buffer[position++] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        if (direct != null) {
+            int count = direct.read(bytes, offset, (int) Math.min(length, directRemaining));
+            if (count < 0) {
+                throw new IOException("Unexpected end of " + keyName + ", " + directRemaining + " bytes missing");
+            }
+            directRemaining -= count;
+            return count;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.buffer, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+    
+    @Override
+    public int available() throws IOException {
+        return current != null ? current.length - position : 0;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        
+        closeDirect();
+        if (current != null) {
+            bufferPool.release(current.buffers);
+            current = null;
+        }
+        
+        // The buffer of a chunk being fetched is released once it is fetched
+        for (Chunk chunk : chunks) {
+            if (!chunk.future.cancel(false)) {
+                try {
+                    chunk.future.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ee) {
+                    // Not read anymore
+                }
+            }
+            bufferPool.release(chunk.buffers);
+        }
+        chunks.clear();
+    }
+    
+    /**
+     * Make the current chunk one with bytes left to read, fetching the next
+     * chunks ahead
+     * 
+     * @return FALSE at the end of the range
+     */
+    private boolean nextChunk() throws IOException {
+        if (isClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (direct != null) {
+            if (directRemaining > 0) {
+                return true;
+            }
+            closeDirect();
+        }
+        
+        if (current != null) {
+            bufferPool.release(current.buffers);
+            epochBytes += current.length;
+            current = null;
+            adaptWindow();
+        }
+        
+        fetchAhead();
+        if (direct != null) {
+            return true;
+        }
+        if (chunks.isEmpty()) {
+            return false;
+        }
+        
+        Chunk chunk = chunks.removeFirst();
+        try {
+            chunk.future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            bufferPool.release(chunk.buffers);
+            throw new IOException("Interrupted while reading " + keyName);
+        } catch (ExecutionException ee) {
+            bufferPool.release(chunk.buffers);
+            throw new IOException("Could not read " + keyName, ee.getCause());
+        }
+        current = chunk;
+        position = 0;
+        
+        // Fetches the chunk replacing the one taken while it is read
+        fetchAhead();
+        return current.length > 0 || nextChunk();
+    }
+    
+    /**
+     * Fetch the next chunks up to the window. Only waits for a buffer when
+     * the stream holds none, so that two streams never wait for each other
+     * while each holding buffers; streams the next chunk without buffer if
+     * none gets free in time.
+     */
+    private void fetchAhead() throws IOException {
+        while (chunks.size() < window && nextStart <= finish) {
+            boolean isHoldingBuffers = current != null || !chunks.isEmpty();
+            List<byte[]> buffers;
+            try {
+                buffers = bufferPool.tryAcquire(1, isHoldingBuffers ? 0 : BUFFER_WAIT_MILLIS, 
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + keyName);
+            }
+            
+            long chunkFinish = Math.min(finish, nextStart + bufferPool.getBufferSize() - 1);
+            if (buffers == null) {
+                if (!isHoldingBuffers) {
+                    openDirect(nextStart, chunkFinish);
+                    nextStart = chunkFinish + 1;
+                }
+                return;
+            }
+            
+            Chunk chunk = new Chunk(buffers, nextStart, chunkFinish);
+            chunk.future = executor.submit(fetch(chunk));
+            chunks.add(chunk);
+            nextStart = chunkFinish + 1;
+        }
+    }
+    
+    private void openDirect(long start, long finish) throws IOException {
+        LOG.debug("No buffer free, streaming bytes " + start + "-" + finish + " of " + keyName);
+        try {
+            GetObjectRequest getObjectRequest = new GetObjectRequest(bucketName, keyName);
+            getObjectRequest.setRange(start, finish);
+            direct = amazonS3Client.getObject(getObjectRequest).getObjectContent();
+            directRemaining = finish - start + 1;
+        } catch (AmazonClientException ace) {
+            throw new IOException("Could not read " + keyName, ace);
+        }
+    }
+    
+    private void closeDirect() throws IOException {
+        if (direct != null) {
+            InputStream inputStream = direct;
+            direct = null;
+            inputStream.close();
+        }
+    }
+    
+    /**
+     * Compare the throughput of the last window of chunks with the previous
+     * one: keep growing the window while it helps, shrink it when it does
+     * not
+     */
+    private void adaptWindow() {
+        if (epochBytes < (long) window * bufferPool.getBufferSize()) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        double throughput = epochBytes / (double) Math.max(1, now - epochStartTime);
+        if (throughput > previousThroughput * (1 + THROUGHPUT_TOLERANCE)) {
+            window = Math.min(MAX_WINDOW, window + 1);
+        } else if (throughput < previousThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+            window = Math.max(MIN_WINDOW, window - 1);
+        }
+        
+        LOG.debug("Reading " + keyName + " at " + (long) throughput + " bytes/ms with a window of " 
+                + window + " chunks");
+        previousThroughput = throughput;
+        epochBytes = 0;
+        epochStartTime = now;
+    }
+    
+    private Callable<Integer> fetch(final Chunk chunk) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                for (int retries = 0; ; retries++) {
+                    try {
+                        chunk.length = fetch(chunk.buffer, chunk.start, chunk.finish);
+                        return chunk.length;
+                    } catch (IOException ioe) {
+                        if (retries >= MAX_CHUNK_RETRIES) {
+                            throw ioe;
+                        }
+                        LOG.warn("Retrying bytes " + chunk.start + "-" + chunk.finish + " of " + keyName 
+                                + ": " + ioe.getMessage());
+                    } catch (AmazonClientException ace) {
+                        if (retries >= MAX_CHUNK_RETRIES) {
+                            throw ace;
+                        }
+                        LOG.warn("Retrying bytes " + chunk.start + "-" + chunk.finish + " of " + keyName 
+                                + ": " + ace.getMessage());
+                    }
+                }
+            }
+        };
+    }
+    
+    private int fetch(byte[] buffer, long start, long finish) throws IOException {
+        GetObjectRequest getObjectRequest = new GetObjectRequest(bucketName, keyName);
+        getObjectRequest.setRange(start, finish);
+        S3Object s3Object = amazonS3Client.getObject(getObjectRequest);
+        InputStream inputStream = s3Object.getObjectContent();
+        try {
+            int length = (int) (finish - start + 1);
+            int offset = 0;
+            while (offset < length) {
+                int count = inputStream.read(buffer, offset, length - offset);
+                if (count < 0) {
+                    break;
+                }
+                offset += count;
+            }
+            
+            // A response cut short would shift all the following bytes,
+            // the chunk is fetched again instead
+            if (offset != length) {
+                throw new IOException("Read " + offset + " of " + length + " bytes");
+            }
+            return offset;
+        } finally {
+            inputStream.close();
+        }
+    }
+    
+    /**
+     * A part of the range and the buffer it is fetched into
+     */
+    private static class Chunk {
+        
+        private final List<byte[]> buffers;
+        
+        private final byte[] buffer;
+        
+        private final long start;
+        
+        private final long finish;
+        
+        private volatile int length;
+        
+        private Future<Integer> future;
+        
+        public Chunk(List<byte[]> buffers, long start, long finish) {
+            this.buffers = buffers;
+            this.buffer = buffers.get(0);
+            this.start = start;
+            this.finish = finish;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import io.milton.s3.db.DynamoDBService;
+import io.milton.s3.util.AttributeKey;
+import io.milton.s3.util.NamedThreadFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+
+/**
+ * Writes the path index items of the entities stored before the path index,
+ * in place and while the table is in use.
+ *
+ * The table is scanned page by page and a path index item is written for
+ * every entity, unless its name already has one. Once every entity has its
+ * path index item, the table is marked as indexed and the entities are no
+ * longer looked up on the parent index. Running the migration again after a
+ * failed write finishes it.
+ */
+class PathIndexMigration implements Callable<Long> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PathIndexMigration.class);
+
+    /**
+     * Number of path index items written concurrently
+     */
+    private static final int CONCURRENT_WRITES = 8;
+
+    /**
+     * Number of scanned items between two progress reports
+     */
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final DynamoDBManagerImpl dynamoDBManager;
+
+    private final DynamoDBService dynamoDBService;
+
+    private final String tableName;
+
+    private final AtomicLong scannedItems = new AtomicLong();
+
+    private final AtomicLong indexedItems = new AtomicLong();
+
+    private final AtomicLong failedItems = new AtomicLong();
+
+    public PathIndexMigration(DynamoDBManagerImpl dynamoDBManager, DynamoDBService dynamoDBService,
+            String tableName) {
+        this.dynamoDBManager = dynamoDBManager;
+        this.dynamoDBService = dynamoDBService;
+        this.tableName = tableName;
+    }
+
+    /**
+     * Run the migration on a background thread
+     *
+     * @return The number of path index items written, once the migration is
+     *         done
+     */
+    public Future<Long> start() {
+        ExecutorService executorService = Executors.newSingleThreadExecutor(
+                new NamedThreadFactory("dynamodb-path-index-" + tableName));
+        try {
+            return executorService.submit(this);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Override
+    public Long call() throws Exception {
+        LOG.info("Writing the path index items of " + tableName);
+
+        ExecutorService writers = Executors.newFixedThreadPool(CONCURRENT_WRITES,
+                new NamedThreadFactory("dynamodb-path-index-writer"));
+
+        // Bound the number of scanned items waiting to be written
+        final Semaphore pendingWrites = new Semaphore(CONCURRENT_WRITES * 4);
+        try {
+            Iterator<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName,
+                    new HashMap<String, Condition>());
+            while (items.hasNext()) {
+                final Map<String, AttributeValue> item = items.next();
+                if (scannedItems.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+                    logProgress();
+                }
+
+                // Path index items & markers are not entities
+                final AttributeValue entityName = item.get(AttributeKey.ENTITY_NAME);
+                if (entityName == null) {
+                    continue;
+                }
+
+                AttributeValue parentId = item.get(AttributeKey.PARENT_UUID);
+                final String parentUniqueId = parentId != null ? parentId.getS() : AttributeKey.NOT_EXIST;
+                pendingWrites.acquire();
+                writers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            indexItem(parentUniqueId, entityName.getS(), item.get(AttributeKey.UUID).getS());
+                        } finally {
+                            pendingWrites.release();
+                        }
+                    }
+                });
+            }
+
+            // Wait for the last writes
+            pendingWrites.acquire(CONCURRENT_WRITES * 4);
+        } finally {
+            writers.shutdown();
+        }
+
+        logProgress();
+        if (failedItems.get() > 0) {
+            LOG.warn("The path index of " + tableName + " is incomplete, run the migration again");
+        } else {
+            dynamoDBManager.markPathIndexed(tableName);
+        }
+        return indexedItems.get();
+    }
+
+    /**
+     * Write the path index item of the entity, unless its name already has
+     * one. The item has no claim date, so that it is taken over at once if
+     * the entity was renamed since it was scanned.
+     */
+    private void indexItem(String parentId, String entityName, String uniqueId) {
+        Map<String, AttributeValue> pathItem = DynamoDBManagerImpl.newPathItem(parentId, entityName, uniqueId);
+        pathItem.remove(AttributeKey.CLAIMED_DATE);
+
+        Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+        expected.put(AttributeKey.UUID, new ExpectedAttributeValue(false));
+        if (dynamoDBService.putItem(tableName, pathItem, expected) != null) {
+            indexedItems.incrementAndGet();
+            return;
+        }
+
+        // Either the name has a path index item already, or the write failed
+        if (dynamoDBService.getItem(tableName, DynamoDBManagerImpl.getPrimaryKey(
+                DynamoDBManagerImpl.getPathUniqueId(parentId, entityName))).isEmpty()) {
+            failedItems.incrementAndGet();
+        }
+    }
+
+    private void logProgress() {
+        LOG.info("Path index of " + tableName + ": " + scannedItems.get() + " items scanned, "
+                + indexedItems.get() + " indexed, " + failedItems.get() + " failed");
+    }
+}
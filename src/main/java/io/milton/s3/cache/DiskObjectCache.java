@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import io.milton.s3.AmazonS3Manager;
+import io.milton.s3.util.NamedThreadFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Keeps the content of the objects read recently in files of a local
+ * directory, so that the objects downloaded again are served from the disk
+ * instead of Amazon S3.
+ * 
+ * The files are named after the bucket, key and ETag of the objects, with a
+ * prefix telling them from the other files of the directory. The least
+ * recently used objects are removed once the files use more than the
+ * given number of bytes. An object is written to a temporary file renamed
+ * once complete, so that a file of the cache is always complete, and the
+ * concurrent readers of an object not cached yet wait for a single download.
+ * A range of an object not cached yet is not waited for: the object is
+ * downloaded into the cache in the background, while the range is read from
+ * Amazon S3.
+ * 
+ * The keys of the objects are never reused by the storage service, a new
+ * file getting a new UUID and a replaced content a new revision, so the
+ * cached content of a key does not change. Objects deleted, moved or
+ * replaced by this node are removed from the cache, and the downloads of
+ * these objects in progress are not cached once complete. The objects deleted
+ * by other nodes are only evicted as the least recently used.
+ */
+public class DiskObjectCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiskObjectCache.class);
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    /**
+     * Objects larger than this part of the cache are not cached, so that a
+     * single object does not evict the whole cache
+     */
+    private static final int MAX_OBJECT_FRACTION = 16;
+    
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    
+    private static final String FILE_PREFIX = "s3object-";
+    
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    
+    /**
+     * Number of objects downloaded into the cache at the same time in the
+     * background
+     */
+    private static final int BACKGROUND_DOWNLOADS = 2;
+    
+    /**
+     * Number of objects waiting to be downloaded in the background, more
+     * objects are not cached until they are read again
+     */
+    private static final int MAX_QUEUED_DOWNLOADS = 64;
+    
+    private final File directory;
+    
+    private final long maxBytes;
+    
+    private final AmazonS3Manager amazonS3Manager;
+    
+    /**
+     * The cached objects by bucket & key, in access order. Guarded by itself.
+     */
+    private final LinkedHashMap<String, CachedObject> objects = 
+            new LinkedHashMap<String, CachedObject>(16, 0.75f, true);
+    
+    private long usedBytes;
+    
+    /**
+     * The objects being downloaded into the cache
+     */
+    private final ConcurrentMap<String, Download> downloads = new ConcurrentHashMap<String, Download>();
+    
+    private final ExecutorService backgroundExecutor = new ThreadPoolExecutor(BACKGROUND_DOWNLOADS, 
+            BACKGROUND_DOWNLOADS, 0L, TimeUnit.MILLISECONDS, 
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_DOWNLOADS), new NamedThreadFactory("cache-download"));
+    
+    /**
+     * @param directory
+     *            - The directory of the cached files, the files of a former
+     *            cache being deleted as the cache starts empty
+     * @param maxBytes
+     *            - The maximum number of bytes of the cached files
+     * @param amazonS3Manager
+     *            - Downloads the objects not cached
+     */
+    public DiskObjectCache(File directory, long maxBytes, AmazonS3Manager amazonS3Manager) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.amazonS3Manager = amazonS3Manager;
+        
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.error("Could not create cache directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(FILE_PREFIX)) {
+                    delete(file);
+                }
+            }
+        }
+        LOG.info("Caching up to " + maxBytes + " bytes of objects in " + directory);
+    }
+    
+    /**
+     * Whether an object of the given size is cached
+     */
+    public boolean isCacheable(long size) {
+        return size > 0 && size <= maxBytes / MAX_OBJECT_FRACTION;
+    }
+    
+    /**
+     * Send the given bytes of an object from the cache. The whole object is
+     * downloaded into the cache first if needed; for a range of an object not
+     * cached yet, it is downloaded in the background and nothing is sent.
+     * 
+     * @param bucketName
+     * @param keyName
+     * @param size
+     *            - The size of the object
+     * @param start
+     *            - The position of the first byte to send
+     * @param finish
+     *            - The position of the last byte to send, included
+     * @param target
+     *            - The channel to send the bytes to
+     * @return FALSE if the object is not cached and could not or should not
+     *         be downloaded first, nothing being sent
+     * @throws IOException
+     *             if the bytes could not be sent
+     */
+    public boolean transferTo(String bucketName, String keyName, long size, long start, long finish, 
+            WritableByteChannel target) throws IOException {
+        String cacheKey = bucketName + "/" + keyName;
+        CachedObject cachedObject = getCachedObject(cacheKey);
+        if (cachedObject == null) {
+            if (start > 0 || finish < size - 1) {
+                downloadInBackground(bucketName, keyName, cacheKey);
+                return false;
+            }
+            
+            cachedObject = download(bucketName, keyName, cacheKey);
+            if (cachedObject == null) {
+                return false;
+            }
+        }
+        
+        // A file evicted after it was opened stays readable until closed
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(cachedObject.file, "r");
+        } catch (IOException ioe) {
+            // Evicted before it was opened, the object may have been cached
+            // again since
+            LOG.warn("Could not open cached file of " + cacheKey + ": " + ioe.getMessage());
+            remove(cacheKey, cachedObject);
+            return false;
+        }
+        try {
+            FileChannel channel = file.getChannel();
+            long position = start;
+            long end = Math.min(finish, cachedObject.size - 1);
+            while (position <= end) {
+                long count = channel.transferTo(position, end - position + 1, target);
+                if (count <= 0) {
+                    throw new IOException("Could not send cached file of " + cacheKey);
+                }
+                position += count;
+            }
+        } finally {
+            file.close();
+        }
+        return true;
+    }
+    
+    /**
+     * Remove an object deleted or moved from the cache, a download of the
+     * object in progress not being cached
+     * 
+     * @param bucketName
+     * @param keyName
+     */
+    public void invalidate(String bucketName, String keyName) {
+        String cacheKey = bucketName + "/" + keyName;
+        synchronized (objects) {
+            Download download = downloads.remove(cacheKey);
+            if (download != null) {
+                download.invalidated = true;
+            }
+            remove(cacheKey, null);
+        }
+    }
+    
+    private CachedObject getCachedObject(String cacheKey) {
+        synchronized (objects) {
+            return objects.get(cacheKey);
+        }
+    }
+    
+    /**
+     * Download the object into the cache, or wait for the download of another
+     * reader of the same object
+     */
+    private CachedObject download(String bucketName, String keyName, String cacheKey) throws IOException {
+        Download download = new Download(bucketName, keyName, cacheKey);
+        Download currentDownload = downloads.putIfAbsent(cacheKey, download);
+        if (currentDownload == null) {
+            runDownload(download);
+        } else {
+            download = currentDownload;
+        }
+        
+        try {
+            return download.task.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + cacheKey);
+        } catch (ExecutionException ee) {
+            LOG.warn("Could not cache " + cacheKey, ee.getCause());
+            return null;
+        }
+    }
+    
+    /**
+     * Download the object into the cache with a background thread, unless it
+     * is being downloaded already or too many objects are waiting
+     */
+    private void downloadInBackground(String bucketName, String keyName, final String cacheKey) {
+        final Download download = new Download(bucketName, keyName, cacheKey);
+        if (downloads.putIfAbsent(cacheKey, download) != null) {
+            return;
+        }
+        
+        try {
+            backgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runDownload(download);
+                    try {
+                        download.task.get();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException ee) {
+                        LOG.warn("Could not cache " + cacheKey, ee.getCause());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            downloads.remove(cacheKey, download);
+        }
+    }
+    
+    private void runDownload(Download download) {
+        try {
+            download.task.run();
+        } finally {
+            downloads.remove(download.cacheKey, download);
+        }
+    }
+    
+    private CachedObject downloadObject(Download download) throws IOException {
+        String cacheKey = download.cacheKey;
+        S3Object s3Object = amazonS3Manager.findEntityByUniqueKey(download.bucketName, download.keyName);
+        if (s3Object == null) {
+            return null;
+        }
+        
+        String eTag = s3Object.getObjectMetadata().getETag();
+        long size = s3Object.getObjectMetadata().getContentLength();
+        File file = new File(directory, FILE_PREFIX 
+                + UUID.nameUUIDFromBytes((cacheKey + "/" + eTag).getBytes(UTF_8)));
+        File temporaryFile = new File(directory, file.getName() + "-" 
+                + Thread.currentThread().getId() + TEMPORARY_SUFFIX);
+        
+        InputStream inputStream = s3Object.getObjectContent();
+        try {
+            if (!isCacheable(size)) {
+                // Changed since its size was stored
+                return null;
+            }
+            
+            long length = 0;
+            OutputStream outputStream = new FileOutputStream(temporaryFile);
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                    length += count;
+                }
+            } finally {
+                outputStream.close();
+            }
+            
+            if (length != size || !temporaryFile.renameTo(file)) {
+                throw new IOException("Could not write cached file of " + cacheKey);
+            }
+        } catch (IOException ioe) {
+            delete(temporaryFile);
+            throw ioe;
+        } finally {
+            inputStream.close();
+        }
+        
+        CachedObject cachedObject = new CachedObject(file, size);
+        synchronized (objects) {
+            if (download.invalidated) {
+                // Deleted, moved or replaced while it was downloaded, the
+                // file being kept if cached by a later download
+                CachedObject current = objects.get(cacheKey);
+                if (current == null || !current.file.equals(file)) {
+                    delete(file);
+                }
+                return null;
+            }
+            put(cacheKey, cachedObject);
+        }
+        return cachedObject;
+    }
+    
+    private void put(String cacheKey, CachedObject cachedObject) {
+        synchronized (objects) {
+            CachedObject previous = objects.put(cacheKey, cachedObject);
+            if (previous != null) {
+                usedBytes -= previous.size;
+                if (!previous.file.equals(cachedObject.file)) {
+                    delete(previous.file);
+                }
+            }
+            usedBytes += cachedObject.size;
+            
+            // Evicts the least recently used objects
+            Iterator<Map.Entry<String, CachedObject>> iterator = objects.entrySet().iterator();
+            while (usedBytes > maxBytes && iterator.hasNext()) {
+                CachedObject evicted = iterator.next().getValue();
+                if (evicted == cachedObject) {
+                    continue;
+                }
+                iterator.remove();
+                usedBytes -= evicted.size;
+                delete(evicted.file);
+            }
+        }
+    }
+    
+    /**
+     * Remove the object of the given key, only if it is the given one unless
+     * that one is null
+     */
+    private void remove(String cacheKey, CachedObject expected) {
+        synchronized (objects) {
+            CachedObject cachedObject = objects.get(cacheKey);
+            if (cachedObject != null && (expected == null || cachedObject == expected)) {
+                objects.remove(cacheKey);
+                usedBytes -= cachedObject.size;
+                delete(cachedObject.file);
+            }
+        }
+    }
+    
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Could not delete cached file " + file);
+        }
+    }
+    
+    /**
+     * The download of an object into the cache
+     */
+    private class Download implements Callable<CachedObject> {
+        
+        private final String bucketName;
+        
+        private final String keyName;
+        
+        private final String cacheKey;
+        
+        private final FutureTask<CachedObject> task = new FutureTask<CachedObject>(this);
+        
+        /**
+         * Whether the object was invalidated since the download started.
+         * Guarded by the cached objects.
+         */
+        private boolean invalidated;
+        
+        public Download(String bucketName, String keyName, String cacheKey) {
+            this.bucketName = bucketName;
+            this.keyName = keyName;
+            this.cacheKey = cacheKey;
+        }
+        
+        @Override
+        public CachedObject call() throws Exception {
+            return downloadObject(this);
+        }
+    }
+    
+    /**
+     * A complete file of the cache
+     */
+    private static class CachedObject {
+        
+        private final File file;
+        
+        private final long size;
+        
+        public CachedObject(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
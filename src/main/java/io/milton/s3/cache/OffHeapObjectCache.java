@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the content of small objects in direct buffers, outside of the heap,
+ * so that the small files read often are served from memory without adding
+ * to the work of the garbage collector.
+ * 
+ * Only the objects up to the given size are admitted. The least recently
+ * used objects are removed once the buffers use more than the given number
+ * of bytes, their memory being freed with the buffers.
+ */
+public class OffHeapObjectCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapObjectCache.class);
+    
+    private final long maxBytes;
+    
+    private final int maxObjectBytes;
+    
+    /**
+     * The content of the cached objects by bucket & key, in access order.
+     * Guarded by itself.
+     */
+    private final LinkedHashMap<String, ByteBuffer> objects = 
+            new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    
+    private long usedBytes;
+    
+    /**
+     * @param maxBytes
+     *            - The maximum number of bytes of the cached objects
+     * @param maxObjectBytes
+     *            - The maximum size of a cached object
+     */
+    public OffHeapObjectCache(long maxBytes, int maxObjectBytes) {
+        this.maxBytes = maxBytes;
+        this.maxObjectBytes = maxObjectBytes;
+        LOG.info("Caching up to " + maxBytes + " bytes of objects of at most " + maxObjectBytes 
+                + " bytes off heap");
+    }
+    
+    /**
+     * Whether an object of the given size is admitted
+     */
+    public boolean isCacheable(long size) {
+        return size >= 0 && size <= maxObjectBytes && size <= maxBytes;
+    }
+    
+    /**
+     * @param bucketName
+     * @param keyName
+     * @return the content of the object, as a read-only buffer of its own
+     *         position & limit, or null if it is not cached
+     */
+    public ByteBuffer get(String bucketName, String keyName) {
+        ByteBuffer content;
+        synchronized (objects) {
+            content = objects.get(bucketName + "/" + keyName);
+        }
+        return content != null ? content.duplicate() : null;
+    }
+    
+    /**
+     * Cache the content of an object, if it is small enough
+     * 
+     * @param bucketName
+     * @param keyName
+     * @param content
+     * @param length
+     *            - The number of bytes of the content
+     */
+    public void put(String bucketName, String keyName, byte[] content, int length) {
+        if (!isCacheable(length)) {
+            return;
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(content, 0, length);
+        buffer.flip();
+        ByteBuffer readOnlyBuffer = buffer.asReadOnlyBuffer();
+        
+        synchronized (objects) {
+            ByteBuffer previous = objects.put(bucketName + "/" + keyName, readOnlyBuffer);
+            if (previous != null) {
+                usedBytes -= previous.capacity();
+            }
+            usedBytes += length;
+            
+            // Evicts the least recently used objects
+            Iterator<Map.Entry<String, ByteBuffer>> iterator = objects.entrySet().iterator();
+            while (usedBytes > maxBytes && iterator.hasNext()) {
+                ByteBuffer evicted = iterator.next().getValue();
+                if (evicted == readOnlyBuffer) {
+                    continue;
+                }
+                iterator.remove();
+                usedBytes -= evicted.capacity();
+            }
+        }
+    }
+    
+    /**
+     * Remove an object deleted or moved from the cache
+     * 
+     * @param bucketName
+     * @param keyName
+     */
+    public void invalidate(String bucketName, String keyName) {
+        synchronized (objects) {
+            ByteBuffer content = objects.remove(bucketName + "/" + keyName);
+            if (content != null) {
+                usedBytes -= content.capacity();
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
  */
 package io.milton.s3.controller;
 
+import io.milton.annotations.ChildOf;
 import io.milton.annotations.ChildrenOf;
 import io.milton.annotations.ContentLength;
 import io.milton.annotations.ContentType;
@@ -29,21 +30,27 @@ import io.milton.annotations.ModifiedDate;
 import io.milton.annotations.Move;
 import io.milton.annotations.Name;
 import io.milton.annotations.PutChild;
+import io.milton.annotations.QuotaUsed;
 import io.milton.annotations.ResourceController;
 import io.milton.annotations.Root;
 import io.milton.annotations.UniqueId;
+import io.milton.http.Range;
 import io.milton.s3.model.Entity;
 import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
 import io.milton.s3.service.AmazonStorageService;
 import io.milton.s3.service.AmazonStorageServiceImpl;
+import io.milton.s3.service.BucketState;
 import io.milton.s3.util.DateUtils;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.activation.MimetypesFileTypeMap;
 
@@ -53,7 +60,6 @@ import org.slf4j.LoggerFactory;
 
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.model.Bucket;
 
 @ResourceController
 public class AmazonS3Controller {
@@ -62,25 +68,35 @@ public class AmazonS3Controller {
     
     private static final String BUCKET_NAME = "milton-s3-demo";
     
+    /**
+     * Maximum time a request waits for the bucket & table while starting
+     */
+    private static final long STARTUP_WAIT_SECONDS = 10;
+    
     private final Region region = Region.getRegion(Regions.US_WEST_2);
     
     private final AmazonStorageService amazonStorageService;
     
     /**
 	 * Initialize Amazon Simple Storage Service environment for the given
-	 * repository
+	 * repository. The bucket & table are checked or created in the
+	 * background, so that the servlet filter does not wait for them.
 	 * 
 	 */
     public AmazonS3Controller() {
     	amazonStorageService = new AmazonStorageServiceImpl(region);
     	
     	// Tried to create bucket in Amazon S3
-    	Bucket bucket = amazonStorageService.createBucket(BUCKET_NAME);
-    	if (bucket == null) {
-    		LOG.error("Could not connect to domain " + BUCKET_NAME + ".s3-" + region.getName() + ".amazonaws.com");
-			throw new RuntimeException("Could not connect to domain"
-					+ BUCKET_NAME + ".s3-" + region.getName() + ".amazonaws.com");
-    	}
+    	amazonStorageService.startBucket(BUCKET_NAME);
+    }
+    
+    /**
+     * The readiness of the bucket & table, e.g. for a health check
+     * 
+     * @return BucketState
+     */
+    public BucketState getBucketState() {
+        return amazonStorageService.getBucketState(BUCKET_NAME);
     }
     
     /**
@@ -92,6 +108,21 @@ public class AmazonS3Controller {
      */
     @Root
     public Folder getRootFolder() throws Exception {
+        // Every request starts from the root folder, so that no request is
+        // served before the bucket & table are confirmed
+        BucketState bucketState = amazonStorageService.awaitBucket(BUCKET_NAME, STARTUP_WAIT_SECONDS, 
+                TimeUnit.SECONDS);
+        if (bucketState != BucketState.READY) {
+            if (bucketState == BucketState.FAILED) {
+                // Tries again for the next requests
+                amazonStorageService.startBucket(BUCKET_NAME);
+            }
+            LOG.error("Could not connect to domain " + BUCKET_NAME + ".s3-" + region.getName() 
+                    + ".amazonaws.com: " + bucketState);
+            throw new RuntimeException("Could not connect to domain "
+                    + BUCKET_NAME + ".s3-" + region.getName() + ".amazonaws.com: " + bucketState);
+        }
+        
 		LOG.info("Getting root folder [/] and create if it is not exist in the table "
 				+ BUCKET_NAME);
         return amazonStorageService.findRootFolder(BUCKET_NAME);
@@ -117,11 +148,36 @@ public class AmazonS3Controller {
         
         // Get all entities form Amazon DynamoDB
         List<Entity> children = amazonStorageService.findEntityByParent(BUCKET_NAME, parent);
+        if (children == null) {
+            // A partial listing would show the missing files as deleted
+            LOG.error("Could not list folder " + parent.getName() + " in bucket " + BUCKET_NAME);
+            throw new RuntimeException("Could not list folder " + parent.getName() + " in bucket " + BUCKET_NAME);
+        }
         LOG.info("Listing collection of folder " + parent.getName() + ": "
                 + children.size() + " items in bucket " + BUCKET_NAME);
         return children;
     }
     
+    /**
+     * Get a single child by its name, so that resolving a path does not list
+     * every folder along the path.
+     * 
+     * @param parent
+     * @param childName
+     * @return the child, or null if it does not exist
+     */
+    @ChildOf
+    public Entity getChild(Folder parent, String childName) {
+        if (parent == null) {
+            return null;
+        }
+        
+        Entity child = amazonStorageService.findEntityByName(BUCKET_NAME, parent, childName);
+        LOG.info("Getting child " + childName + " of folder " + parent.getName() + ": " 
+                + (child != null ? "found" : "not found") + " in bucket " + BUCKET_NAME);
+        return child;
+    }
+    
     @MakeCollection
     public Folder createFolder(Folder parent, String folderName) {
         LOG.info("Creating folder " + folderName + " in " + parent.getName() 
@@ -157,7 +213,9 @@ public class AmazonS3Controller {
         
         // Create a file and store into Amazon Simple Storage Service
         File newFile = parent.addFile(newName);
-        newFile.setSize(contentLength);
+        // The content length is unknown for chunked requests, the size is
+        // known once the file is uploaded
+        newFile.setSize(contentLength != null ? contentLength : File.UNKNOWN_SIZE);
         // Get default content type if cannot get via milton
         if (StringUtils.isEmpty(contentType)) {
         	contentType = new MimetypesFileTypeMap(inputStream).getContentType(newName);
@@ -177,6 +235,29 @@ public class AmazonS3Controller {
         return newFile;
     }
     
+    /**
+     * Replace the content of an existing file on a PUT over it. The file
+     * keeps its unique UUID, so that its name stays claimed by it.
+     * 
+     * @param file
+     * @param inputStream
+     * @param contentLength
+     * @return File
+     */
+    @PutChild
+    public File replaceFile(File file, InputStream inputStream, Long contentLength) {
+        LOG.info("Replacing the content of file " + file.getName() + " in the folder " 
+                + file.getParent().getName() + " in bucket " + BUCKET_NAME);
+        
+        file.setSize(contentLength != null ? contentLength : File.UNKNOWN_SIZE);
+        boolean isReplacedFile = amazonStorageService.replaceEntity(BUCKET_NAME, file, inputStream);
+        if (!isReplacedFile) {
+            LOG.error("Could not replace file " + file.getName() + " in bucket " + BUCKET_NAME);
+            throw new RuntimeException("Could not replace file " + file.getName() + " in bucket " + BUCKET_NAME);
+        }
+        return file;
+    }
+    
     @Move
     public void renameOrMoveEntity(Entity entity, Folder newParent, String newName) {
         boolean isRenamingAction = true;
@@ -243,6 +324,33 @@ public class AmazonS3Controller {
         return contentLength;
     }
     
+    /**
+     * The bytes used by a file, or by all the files under a folder as
+     * maintained on the folder item, without listing the folder
+     * 
+     * @param entity
+     * @return the used bytes
+     */
+    @QuotaUsed
+    public Long getQuotaUsed(Entity entity) {
+        if (entity instanceof File) {
+            return ((File) entity).getSize();
+        }
+        
+        // The root folder is cached, its aggregates are read again
+        Folder folder = (Folder) entity;
+        if (folder.getParent() == null) {
+            Folder rootFolder = amazonStorageService.findFolderAggregates(BUCKET_NAME, folder);
+            if (rootFolder != null) {
+                folder = rootFolder;
+            }
+        }
+        
+        LOG.info("Getting the quota used by folder " + folder.getName() + ": " + folder.getTotalBytes() 
+                + " bytes in " + folder.getFileCount() + " files");
+        return folder.getTotalBytes();
+    }
+    
     @ContentType
     public String getContentType(Entity entity) {
     	String contentType = "";
@@ -279,26 +387,69 @@ public class AmazonS3Controller {
         return uniqueId;
     }
     
+    /**
+     * Send the content of a file, or only the requested byte range. Milton
+     * calls this once per range of a multi-range request and writes the
+     * multipart/byteranges response around the ranges, so every range is a
+     * ranged GET on Amazon S3, or a read of the local cache, and only the
+     * requested bytes are transferred.
+     * 
+     * @param file
+     * @param outputStream
+     * @param range
+     *              - the byte range, or null for the whole content
+     * @throws IOException
+     */
     @Get
-    public InputStream downloadFile(File file) {
-		String keyName = file.getParent().getId().toString()
-				+ java.io.File.separatorChar + file.getId().toString();
+    public void downloadFile(File file, OutputStream outputStream, Range range) throws IOException {
+		String keyName = AmazonStorageServiceImpl.getAmazonS3UniqueKey(file);
         LOG.info("Downloading file " + file.toString() + " under folder "
-                + file.getParent().getName() + " in bucket " + BUCKET_NAME);
-        InputStream inputStream = amazonStorageService.downloadEntityByUniqueId(BUCKET_NAME, keyName);
-        if (inputStream == null) {
+                + file.getParent().getName() + " in bucket " + BUCKET_NAME 
+                + (range != null ? " range " + range : ""));
+        
+        // Downloads the whole file as a range, so that a large file is read
+        // with concurrent ranged GETs
+        long[] bounds = range != null ? getRangeBounds(range, file.getSize()) 
+                : file.getSize() > 0 ? new long[] { 0, file.getSize() - 1 } : null;
+        if (bounds == null) {
+            // Nothing to send for an empty file or a range after its end
+            return;
+        }
+        
+        boolean isSuccessful = amazonStorageService.sendEntityByUniqueId(BUCKET_NAME, keyName, 
+                file.getSize(), bounds[0], bounds[1], outputStream);
+        if (!isSuccessful) {
         	LOG.error("Could not download file " + file.getName() + " from bucket " + BUCKET_NAME);
         	throw new RuntimeException("Could not download file " + file.getName() 
         			+ " from bucket " + BUCKET_NAME);
         }
-        return inputStream;
+    }
+    
+    /**
+     * The first & last byte positions of the given range, or null if the
+     * range selects no byte. A range without start selects the last bytes,
+     * a range without finish selects the bytes up to the end.
+     */
+    private static long[] getRangeBounds(Range range, long size) {
+        long start;
+        long finish;
+        if (range.getStart() == null) {
+            start = range.getFinish() != null ? Math.max(0, size - range.getFinish()) : 0;
+            finish = size - 1;
+        } else {
+            start = range.getStart();
+            finish = range.getFinish() != null ? Math.min(range.getFinish(), size - 1) : size - 1;
+        }
+        if (start > finish) {
+            return null;
+        }
+        return new long[] { start, finish };
     }
     
     @Delete
     public void deleteFileOrFolder(Entity entity) {
         LOG.info("Deleting the entity " + entity.getName() + " in bucket " + BUCKET_NAME);
-        boolean isSuccessful = amazonStorageService.deleteEntityByUniqueId(BUCKET_NAME, 
-                entity.getId().toString());
+        boolean isSuccessful = amazonStorageService.deleteEntityByUniqueId(BUCKET_NAME, entity);
         if (!isSuccessful) {
             LOG.error("Could not delete the entity " + entity.getName() + " in the " + BUCKET_NAME);
             throw new RuntimeException("Could not delete the entity " + entity.getName() + " in the " + BUCKET_NAME);
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side token bucket limiting the capacity units consumed per second
+ * by one class of operations (reads or writes) on one table.
+ * 
+ * Requests take their estimated units up front and the difference with the
+ * capacity actually consumed, as reported by Amazon DynamoDB, is settled
+ * afterwards. The rate adapts to throttling: it is halved whenever a request
+ * is throttled, then grows back by a tenth of the provisioned capacity per
+ * second without throttling.
+ */
+public class AdaptiveRateLimiter {
+
+    /**
+     * Seconds of unused capacity kept for bursts, as Amazon DynamoDB retains
+     * up to 5 minutes of unused capacity
+     */
+    private static final double BURST_SECONDS = 300;
+    
+    /**
+     * The rate never falls below this share of the provisioned capacity
+     */
+    private static final double MIN_RATE_RATIO = 0.05;
+    
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    private final double maxRate;
+    
+    private final double minRate;
+    
+    private final double increaseStep;
+    
+    /**
+     * Current capacity units per second
+     */
+    private double rate;
+    
+    /**
+     * Available units, negative when requests have been granted in advance
+     */
+    private double tokens;
+    
+    private long lastRefillNanos;
+    
+    private long lastIncreaseNanos;
+    
+    /**
+     * @param provisionedCapacity
+     *            - The capacity units per second provisioned for the table
+     *            and its indexes
+     */
+    public AdaptiveRateLimiter(double provisionedCapacity) {
+        this.maxRate = Math.max(1, provisionedCapacity);
+        this.minRate = Math.max(0.5, maxRate * MIN_RATE_RATIO);
+        this.increaseStep = Math.max(1, maxRate / 10);
+        this.rate = maxRate;
+        this.tokens = maxRate * BURST_SECONDS;
+        this.lastRefillNanos = System.nanoTime();
+        this.lastIncreaseNanos = lastRefillNanos;
+    }
+    
+    /**
+     * Takes the given units, waiting until the bucket has paid back the
+     * units granted to the previous requests
+     * 
+     * @param units
+     *            - The estimated capacity units of the request
+     * @throws InterruptedException
+     */
+    public void acquire(double units) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= units;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * NANOS_PER_SECOND);
+        }
+        
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+    
+    /**
+     * Settles the units of a successful request and increases the rate if
+     * no request was throttled for a second
+     * 
+     * @param estimatedUnits
+     *            - The units taken by acquire
+     * @param consumedUnits
+     *            - The units consumed, or a negative value if unknown
+     */
+    public synchronized void onSuccess(double estimatedUnits, double consumedUnits) {
+        if (consumedUnits >= 0) {
+            tokens += estimatedUnits - consumedUnits;
+        }
+        
+        long now = System.nanoTime();
+        if (rate < maxRate && now - lastIncreaseNanos >= NANOS_PER_SECOND) {
+            rate = Math.min(maxRate, rate + increaseStep);
+            lastIncreaseNanos = now;
+        }
+    }
+    
+    /**
+     * Halves the rate and drops the burst capacity, the table having none
+     * left
+     */
+    public synchronized void onThrottled() {
+        refill();
+        rate = Math.max(minRate, rate / 2);
+        tokens = Math.min(tokens, 0);
+        lastIncreaseNanos = System.nanoTime();
+    }
+    
+    public synchronized double getRate() {
+        return rate;
+    }
+    
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(rate * BURST_SECONDS, tokens + rate * (now - lastRefillNanos) / NANOS_PER_SECOND);
+        lastRefillNanos = now;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveRateLimiter [rate=" + rate + ", maxRate=" + maxRate + ", tokens=" + tokens + "]";
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import io.milton.s3.db.mapper.DynamoDBEntityMapper;
+import io.milton.s3.util.AttributeKey;
+import io.milton.s3.util.NamedThreadFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+
+/**
+ * Rewrites the entity items of a table from the legacy schema to the compact
+ * schema, in place and while the table is in use.
+ * 
+ * The table is scanned page by page and every legacy item is replaced by a
+ * conditional put, expecting the item to be unchanged since it was scanned.
+ * Items written in the meantime are left as they are; running the migration
+ * again rewrites them.
+ */
+public class CompactSchemaMigration implements Callable<Long> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompactSchemaMigration.class);
+    
+    /**
+     * Number of items rewritten concurrently
+     */
+    private static final int CONCURRENT_WRITES = 8;
+    
+    /**
+     * Number of scanned items between two progress reports
+     */
+    private static final int PROGRESS_INTERVAL = 1000;
+    
+    private final DynamoDBService dynamoDBService;
+    
+    private final String tableName;
+    
+    private final AtomicLong scannedItems = new AtomicLong();
+    
+    private final AtomicLong migratedItems = new AtomicLong();
+    
+    private final AtomicLong skippedItems = new AtomicLong();
+    
+    public CompactSchemaMigration(DynamoDBService dynamoDBService, String tableName) {
+        this.dynamoDBService = dynamoDBService;
+        this.tableName = tableName;
+    }
+    
+    /**
+     * Run the migration on a background thread
+     * 
+     * @return The number of migrated items, once the migration is done
+     */
+    public Future<Long> start() {
+        ExecutorService executorService = Executors.newSingleThreadExecutor(
+                new NamedThreadFactory("dynamodb-migration-" + tableName));
+        try {
+            return executorService.submit(this);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+    
+    @Override
+    public Long call() throws Exception {
+        LOG.info("Migrating the items of " + tableName + " to the compact schema");
+        
+        ExecutorService writers = Executors.newFixedThreadPool(CONCURRENT_WRITES, 
+                new NamedThreadFactory("dynamodb-migration-writer"));
+        
+        // Bound the number of scanned items waiting to be written
+        final Semaphore pendingWrites = new Semaphore(CONCURRENT_WRITES * 4);
+        try {
+            Iterator<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, 
+                    new HashMap<String, Condition>());
+            while (items.hasNext()) {
+                final Map<String, AttributeValue> item = items.next();
+                if (scannedItems.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+                    logProgress();
+                }
+                
+                // Path index items are not entities
+                if (!item.containsKey(AttributeKey.ENTITY_NAME)) {
+                    continue;
+                }
+                
+                final Map<String, AttributeValue> compactItem = DynamoDBEntityMapper.convertItemToCompactItem(item);
+                if (compactItem == null) {
+                    continue;
+                }
+                
+                pendingWrites.acquire();
+                writers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            migrateItem(item, compactItem);
+                        } finally {
+                            pendingWrites.release();
+                        }
+                    }
+                });
+            }
+            
+            // Wait for the last writes
+            pendingWrites.acquire(CONCURRENT_WRITES * 4);
+        } finally {
+            writers.shutdown();
+        }
+        
+        logProgress();
+        return migratedItems.get();
+    }
+    
+    /**
+     * Replace the item by its compact form if it did not change since it was
+     * scanned
+     */
+    private void migrateItem(Map<String, AttributeValue> item, Map<String, AttributeValue> compactItem) {
+        Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            if (!AttributeKey.UUID.equals(attribute.getKey())) {
+                expected.put(attribute.getKey(), new ExpectedAttributeValue(attribute.getValue()));
+            }
+        }
+        for (String attributeName : compactItem.keySet()) {
+            if (!item.containsKey(attributeName)) {
+                expected.put(attributeName, new ExpectedAttributeValue(false));
+            }
+        }
+        
+        if (dynamoDBService.putItem(tableName, compactItem, expected) != null) {
+            migratedItems.incrementAndGet();
+        } else {
+            skippedItems.incrementAndGet();
+        }
+    }
+    
+    private void logProgress() {
+        LOG.info("Migration of " + tableName + " to the compact schema: " + scannedItems.get() 
+                + " items scanned, " + migratedItems.get() + " migrated, " + skippedItems.get() 
+                + " changed since scanned");
+    }
+}
@@ -17,8 +17,11 @@
 package io.milton.s3.db;
 
 import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
 
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -26,8 +29,10 @@ import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
 import com.amazonaws.services.dynamodbv2.model.Condition;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 
 public interface DynamoDBService {
 
@@ -62,10 +67,73 @@ public interface DynamoDBService {
 
     boolean isTableExist(String tableName);
 
+    /**
+     * Wait until the given table is ACTIVE, checking its status with an
+     * exponential backoff so that a table created within seconds is seen
+     * within seconds
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @return TRUE once the table is ACTIVE, FALSE if it did not become
+     *         active in time
+     */
+    boolean waitForTableActive(String tableName);
+
     Map<String, AttributeValue> newItem(Entity entity);
 
+    /**
+     * The attribute updates setting the modified date of an item, in the same
+     * schema as the items created by newItem
+     * 
+     * @param modifiedDate
+     *            - The new modified date
+     */
+    Map<String, AttributeValueUpdate> newModifiedDateUpdates(Date modifiedDate);
+
+    /**
+     * The attribute updates replacing the content attributes of a file item
+     * (size, content type, modified date & revision), in the same schema as
+     * the items created by newItem
+     * 
+     * @param file
+     *            - The file with its new content attributes
+     */
+    Map<String, AttributeValueUpdate> newContentUpdates(File file);
+
     PutItemResult putItem(String tableName, Map<String, AttributeValue> item);
 
+    /**
+     * Put given item into the table only if the current item matches the
+     * expected attribute values, in a single atomic write
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param item
+     *            - The item to put
+     * @param expected
+     *            - The expected values or existence of the attributes of the
+     *            current item
+     * @return The result of the put, or null if the condition failed or the
+     *         item could not be put
+     */
+    PutItemResult putItem(String tableName, Map<String, AttributeValue> item, 
+            Map<String, ExpectedAttributeValue> expected);
+
+    /**
+     * Puts or deletes multiple items. The writes are sent as BatchWriteItem
+     * requests of at most 25 items, the batches being sent concurrently.
+     * Unprocessed items are retried with a backoff.
+     * 
+     * A batch must not contain two writes for the same item.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param writeRequests
+     *            - The put and delete requests
+     * @return TRUE if all the writes succeeded, otherwise FALSE
+     */
+    boolean batchWriteItem(String tableName, List<WriteRequest> writeRequests);
+
     /**
      * Retrieves a set of Attributes for an item that matches the primary key.
      * The GetItem operation provides an eventually-consistent read by default.
@@ -83,9 +151,105 @@ public interface DynamoDBService {
     Map<String, AttributeValue> getItem(String tableName,
             HashMap<String, AttributeValue> primaryKey);
 
-    List<Map<String, AttributeValue>> getItem(String tableName,
+    /**
+     * Retrieves an item that matches the primary key with the given
+     * consistency level, returning only the given attributes
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKey
+     *            - The primary key of the item
+     * @param readOptions
+     *            - The consistency level & attributes of the read
+     * @return The item, or an empty item if it does not exist
+     */
+    Map<String, AttributeValue> getItem(String tableName,
+            HashMap<String, AttributeValue> primaryKey, ReadOptions readOptions);
+
+    /**
+     * Retrieves the items matching the given primary keys. The keys are sent
+     * as BatchGetItem requests of at most 100 keys, the batches being
+     * requested concurrently. Unprocessed keys are retried with a backoff.
+     * 
+     * The items are returned in no particular order.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKeys
+     *            - The primary keys of the items
+     * @return The items found for the given keys, or null if any of the
+     *         batches failed, never a part of the items
+     */
+    List<Map<String, AttributeValue>> batchGetItem(String tableName,
+            List<Map<String, AttributeValue>> primaryKeys);
+
+    /**
+     * Retrieves the items matching the given primary keys with the given
+     * consistency level, returning only the given attributes
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKeys
+     *            - The primary keys of the items
+     * @param readOptions
+     *            - The consistency level & attributes of the reads
+     * @return The items found for the given keys, or null if any of the
+     *         batches failed
+     */
+    List<Map<String, AttributeValue>> batchGetItem(String tableName,
+            List<Map<String, AttributeValue>> primaryKeys, ReadOptions readOptions);
+
+    /**
+     * Scans the table for the items matching the given conditions. The items
+     * are read page by page while iterating, the next page being fetched
+     * while the current one is consumed.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param conditions
+     *            - The scan filter
+     * @return A lazy iterator over the matching items
+     */
+    Iterator<Map<String, AttributeValue>> getItem(String tableName,
             Map<String, Condition> conditions);
 
+    /**
+     * Finds items based on the key conditions of the given secondary index.
+     * Only the items matching the index key are read, so the cost depends on
+     * the number of matching items rather than the size of the table.
+     *
+     * Queries on a global secondary index are always eventually consistent.
+     *
+     * @param tableName
+     *            - The name of the table
+     * @param indexName
+     *            - The name of the secondary index to query
+     * @param keyConditions
+     *            - The conditions on the hash key and (optionally) the range
+     *            key of the index
+     * @return A lazy iterator over the matching items
+     */
+    Iterator<Map<String, AttributeValue>> queryItem(String tableName, String indexName,
+            Map<String, Condition> keyConditions);
+
+    /**
+     * Finds items based on the key conditions of the given secondary index,
+     * returning only the given attributes. Queries on a global secondary
+     * index do not support consistent reads.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param indexName
+     *            - The name of the secondary index to query
+     * @param keyConditions
+     *            - The conditions on the keys of the index
+     * @param readOptions
+     *            - The consistency level & attributes of the query
+     * @return A lazy iterator over the matching items
+     */
+    Iterator<Map<String, AttributeValue>> queryItem(String tableName, String indexName,
+            Map<String, Condition> keyConditions, ReadOptions readOptions);
+
     /**
      * Edits an existing item's attributes. You can perform a conditional update
      * (insert a new attribute name-value pair if it doesn't exist, or replace
@@ -103,6 +267,27 @@ public interface DynamoDBService {
             HashMap<String, AttributeValue> primaryKey,
             Map<String, AttributeValueUpdate> updateItems);
 
+    /**
+     * Edits an existing item's attributes only if it matches the expected
+     * attribute values, in a single atomic write
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKey
+     *            - The primary key of the item
+     * @param updateItems
+     *            - The attribute updates
+     * @param expected
+     *            - The expected values or existence of the attributes of the
+     *            item
+     * @return The result of the update with the attributes of the item
+     *         before the update, or null if the condition failed or the item
+     *         could not be updated
+     */
+    UpdateItemResult updateItem(String tableName,
+            HashMap<String, AttributeValue> primaryKey,
+            Map<String, AttributeValueUpdate> updateItems, Map<String, ExpectedAttributeValue> expected);
+
     /**
      * Deletes a single item in a table by primary key
      * 
@@ -117,4 +302,21 @@ public interface DynamoDBService {
      */
     DeleteItemResult deleteItem(String tableName,
             HashMap<String, AttributeValue> primaryKey);
+
+    /**
+     * Deletes an item only if it matches the expected attribute values, in a
+     * single atomic write
+     * 
+     * @param tableName
+     *              - The name of the table
+     * @param primaryKey
+     *              - The primary key of the item
+     * @param expected
+     *              - The expected values or existence of the attributes of
+     *              the item
+     * @return The result of the delete, or null if the condition failed or
+     *         the item could not be deleted
+     */
+    DeleteItemResult deleteItem(String tableName,
+            HashMap<String, AttributeValue> primaryKey, Map<String, ExpectedAttributeValue> expected);
 }
@@ -16,30 +16,49 @@
  */
 package io.milton.s3.db;
 
+import io.milton.s3.db.mapper.DynamoDBEntityMapper;
 import io.milton.s3.model.Entity;
 import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
 import io.milton.s3.util.AttributeKey;
 import io.milton.s3.util.DateUtils;
+import io.milton.s3.util.NamedThreadFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
 import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
@@ -47,29 +66,88 @@ import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
 import com.amazonaws.services.dynamodbv2.model.DeleteTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DeleteTableResult;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
 import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.Select;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
 import com.amazonaws.services.dynamodbv2.model.TableStatus;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 
 
 public class DynamoDBServiceImpl implements DynamoDBService {
 
     private static final Logger LOG = LoggerFactory.getLogger(DynamoDBServiceImpl.class);
     
+    /**
+     * Maximum number of keys of a single BatchGetItem request
+     */
+    private static final int MAX_BATCH_GET_KEYS = 100;
+    
+    /**
+     * Maximum number of items of a single BatchWriteItem request
+     */
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    
+    /**
+     * Number of batch requests sent concurrently
+     */
+    private static final int BATCH_CONCURRENCY = 8;
+    
+    /**
+     * Number of times unprocessed keys of a batch are retried
+     */
+    private static final int MAX_BATCH_RETRIES = 8;
+    
+    /**
+     * Number of times a throttled or failed request is retried
+     */
+    private static final int MAX_RETRIES = 10;
+    
+    /**
+     * Base & maximum delays of the exponential backoff between two retries
+     */
+    private static final long RETRY_BASE_DELAY_MILLIS = 50;
+    private static final long RETRY_MAX_DELAY_MILLIS = 10 * 1000;
+    
+    /**
+     * Capacity units provisioned for new tables and their index
+     */
+    private static final long PROVISIONED_READ_CAPACITY = 10L;
+    private static final long PROVISIONED_WRITE_CAPACITY = 10L;
+    
+    /**
+     * Initial & maximum delays between two checks of the status of a table
+     * being created or deleted, and the time given up after
+     */
+    private static final long TABLE_POLL_INITIAL_DELAY_MILLIS = 250;
+    private static final long TABLE_POLL_MAX_DELAY_MILLIS = 5 * 1000;
+    private static final long TABLE_POLL_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    
     /**
      * Important: Be sure to fill in your AWS access credentials in the
      * AwsCredentials.properties file before you try to run this class.
@@ -78,6 +156,32 @@ public class DynamoDBServiceImpl implements DynamoDBService {
      */
     private final AmazonDynamoDBClient dynamoDBClient;
     
+    /**
+     * Whether new items are written in the compact schema
+     */
+    private final boolean isCompactSchema;
+    
+    /**
+     * The rate limiters of the reads & writes of each table and of the reads
+     * of each of its indexes, created on first use from the capacity
+     * provisioned for the table or index
+     */
+    private final ConcurrentMap<String, AdaptiveRateLimiter> rateLimiters = 
+            new ConcurrentHashMap<String, AdaptiveRateLimiter>();
+    
+    /**
+     * Fetches the next page of a scan or query while the current one is
+     * being consumed
+     */
+    private final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(
+            new NamedThreadFactory("dynamodb-prefetch"));
+    
+    /**
+     * Sends the chunks of batch requests concurrently
+     */
+    private final ExecutorService batchExecutor = Executors.newFixedThreadPool(BATCH_CONCURRENCY, 
+            new NamedThreadFactory("dynamodb-batch"));
+    
     /**
      * The only information needed to create a client are security credentials
      * consisting of the AWS Access Key ID and Secret Access Key. All other
@@ -89,10 +193,26 @@ public class DynamoDBServiceImpl implements DynamoDBService {
      * @see com.amazonaws.regions.Region
      */
     public DynamoDBServiceImpl(Region region) {
+        this(region, false);
+    }
+    
+    /**
+     * @param region
+     *            - The region of the tables
+     * @param isCompactSchema
+     *            - TRUE to write new items in the compact schema, with short
+     *            attribute names, a type byte and numeric dates
+     */
+    public DynamoDBServiceImpl(Region region, boolean isCompactSchema) {
         LOG.info("Initialize Amazon DynamoDB environment...!!!");
         
-        dynamoDBClient = new AmazonDynamoDBClient(new ClasspathPropertiesFileCredentialsProvider());
+        // Requests are retried by this class, so that throttling slows down
+        // the rate limiter of the table before retrying. The table requests
+        // are retried by executeTableRequest.
+        dynamoDBClient = new AmazonDynamoDBClient(new ClasspathPropertiesFileCredentialsProvider(),
+                new ClientConfiguration().withMaxErrorRetry(0));
         dynamoDBClient.setRegion(region);
+        this.isCompactSchema = isCompactSchema;
     }
     
     @Override
@@ -100,6 +220,10 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         List<AttributeDefinition> attributeDefinitions= new ArrayList<AttributeDefinition>();
         attributeDefinitions.add(new AttributeDefinition().withAttributeName(AttributeKey.UUID)
         		.withAttributeType(ScalarAttributeType.S));
+        attributeDefinitions.add(new AttributeDefinition().withAttributeName(AttributeKey.PARENT_UUID)
+                .withAttributeType(ScalarAttributeType.S));
+        attributeDefinitions.add(new AttributeDefinition().withAttributeName(AttributeKey.ENTITY_NAME)
+                .withAttributeType(ScalarAttributeType.S));
         
         List<KeySchemaElement> keySchemaElement = new ArrayList<KeySchemaElement>();
         keySchemaElement.add(new KeySchemaElement().withAttributeName(AttributeKey.UUID)
@@ -107,26 +231,46 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         
         // Provide the initial provisioned throughput values as Java long data types
         ProvisionedThroughput provisionedThroughput = new ProvisionedThroughput()
-            .withReadCapacityUnits(10L)
-            .withWriteCapacityUnits(10L);
+            .withReadCapacityUnits(PROVISIONED_READ_CAPACITY)
+            .withWriteCapacityUnits(PROVISIONED_WRITE_CAPACITY);
+        
+        // Index the children of every folder by their parent UUID & name, so
+        // that listing a folder only reads the items of that folder
+        List<KeySchemaElement> parentIndexKeySchema = new ArrayList<KeySchemaElement>();
+        parentIndexKeySchema.add(new KeySchemaElement().withAttributeName(AttributeKey.PARENT_UUID)
+                .withKeyType(KeyType.HASH));
+        parentIndexKeySchema.add(new KeySchemaElement().withAttributeName(AttributeKey.ENTITY_NAME)
+                .withKeyType(KeyType.RANGE));
+        
+        GlobalSecondaryIndex parentIndex = new GlobalSecondaryIndex()
+            .withIndexName(AttributeKey.PARENT_INDEX)
+            .withKeySchema(parentIndexKeySchema)
+            .withProjection(new Projection().withProjectionType(ProjectionType.ALL))
+            .withProvisionedThroughput(provisionedThroughput);
         
-        CreateTableRequest createTableRequest = new CreateTableRequest()
+        final CreateTableRequest createTableRequest = new CreateTableRequest()
             .withTableName(tableName)
             .withAttributeDefinitions(attributeDefinitions)
             .withKeySchema(keySchemaElement)
+            .withGlobalSecondaryIndexes(parentIndex)
             .withProvisionedThroughput(provisionedThroughput);
         
         try {
-            CreateTableResult createdTableDescription = dynamoDBClient.createTable(createTableRequest);
+            CreateTableResult createdTableDescription = executeTableRequest(tableName, 
+                    new Request<CreateTableResult>() {
+                @Override
+                public CreateTableResult execute() {
+                    return dynamoDBClient.createTable(createTableRequest);
+                }
+            });
             LOG.info("Creating table description: " + createdTableDescription);
             
             // Wait for it to become active
-            waitForTableAvailable(tableName);
-            if (describeTable(tableName) != null) {
-            	return true;
-            }
+            return waitForTableActive(tableName);
         } catch (ResourceInUseException rie) {
+            // Created concurrently, e.g. by another server starting up
             LOG.warn("Table " + tableName + " already exists");
+            return waitForTableActive(tableName);
 		} catch (AmazonServiceException ase) {
 			LOG.error(ase.getMessage(), ase);
 		} catch (AmazonClientException ace) {
@@ -138,15 +282,27 @@ public class DynamoDBServiceImpl implements DynamoDBService {
     @Override
     public boolean deleteTable(String tableName) {
         try {
-        	DeleteTableRequest deleteTableRequest = new DeleteTableRequest().withTableName(tableName);
-            DeleteTableResult deleteTableResult = dynamoDBClient.deleteTable(deleteTableRequest);
+        	final DeleteTableRequest deleteTableRequest = new DeleteTableRequest().withTableName(tableName);
+            DeleteTableResult deleteTableResult = executeTableRequest(tableName, new Request<DeleteTableResult>() {
+                @Override
+                public DeleteTableResult execute() {
+                    return dynamoDBClient.deleteTable(deleteTableRequest);
+                }
+            });
+            Iterator<String> rateLimiterKeys = rateLimiters.keySet().iterator();
+            while (rateLimiterKeys.hasNext()) {
+                if (rateLimiterKeys.next().startsWith(tableName + ":")) {
+                    rateLimiterKeys.remove();
+                }
+            }
             if (deleteTableRequest != null) {
             	LOG.info("Deleting table description: " + deleteTableResult);
             	
             	// Waiting for table deleted
-            	waitForTableDeleted(tableName);
-            	LOG.info("Successfully deleted table " + tableName);
-            	return true;
+            	if (waitForTableDeleted(tableName)) {
+            	    LOG.info("Successfully deleted table " + tableName);
+            	    return true;
+            	}
             }
 		} catch (ResourceInUseException rie) {
             LOG.warn("Table " + tableName + " already exists");
@@ -170,6 +326,10 @@ public class DynamoDBServiceImpl implements DynamoDBService {
     
     @Override
     public Map<String, AttributeValue> newItem(Entity entity) {
+        if (isCompactSchema) {
+            return DynamoDBEntityMapper.convertEntityToCompactItem(entity);
+        }
+        
         Map<String, AttributeValue> newItem = new HashMap<String, AttributeValue>();
         newItem.put(AttributeKey.UUID, new AttributeValue().withS(entity.getId().toString()));
         newItem.put(AttributeKey.ENTITY_NAME, new AttributeValue().withS(entity.getName()));
@@ -181,25 +341,37 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         	parentUniqueId = folder.getId().toString();
         }
         
-        int fileSize = 0;
+        long fileSize = 0;
         String contentType = AttributeKey.NOT_EXIST;
         if (entity instanceof File) {
-            fileSize = (int) ((File) entity).getSize();
+            fileSize = ((File) entity).getSize();
             contentType = ((File) entity).getContentType();
         }
         
         newItem.put(AttributeKey.PARENT_UUID, new AttributeValue().withS(parentUniqueId));
 		newItem.put(AttributeKey.IS_DIRECTORY, new AttributeValue()
 				.withN(Integer.toString(entity.isDirectory() ? 1 : 0)));
-        newItem.put(AttributeKey.FILE_SIZE, new AttributeValue().withN(Integer.toString(fileSize)));
+        newItem.put(AttributeKey.FILE_SIZE, new AttributeValue().withN(Long.toString(fileSize)));
         newItem.put(AttributeKey.CONTENT_TYPE, new AttributeValue().withS(contentType));
 		newItem.put(AttributeKey.CREATED_DATE, new AttributeValue()
 				.withS(DateUtils.dateToString(entity.getCreatedDate())));
 		newItem.put(AttributeKey.MODIFIED_DATE, new AttributeValue()
 				.withS(DateUtils.dateToString(entity.getModifiedDate())));
+		DynamoDBEntityMapper.putFolderAggregates(newItem, entity);
+		DynamoDBEntityMapper.putRevision(newItem, entity);
         return newItem;
     }
 
+    @Override
+    public Map<String, AttributeValueUpdate> newModifiedDateUpdates(Date modifiedDate) {
+        return DynamoDBEntityMapper.convertModifiedDateToUpdates(modifiedDate, isCompactSchema);
+    }
+
+    @Override
+    public Map<String, AttributeValueUpdate> newContentUpdates(File file) {
+        return DynamoDBEntityMapper.convertContentToUpdates(file, isCompactSchema);
+    }
+
     /**
      * Put given item into the table. If the item exists, it replaces the entire
      * item. Instead of replacing the entire item, if you want to update only
@@ -217,8 +389,20 @@ public class DynamoDBServiceImpl implements DynamoDBService {
     	LOG.info("Successfully putted item " + item.toString() + " into " + tableName);
     	
         try {
-            PutItemRequest putItemRequest = new PutItemRequest(tableName, item);
-            PutItemResult putItemResult = dynamoDBClient.putItem(putItemRequest);
+            final PutItemRequest putItemRequest = new PutItemRequest(tableName, item)
+                .withReturnValues(ReturnValue.ALL_OLD)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            PutItemResult putItemResult = execute(tableName, true, 1, new Request<PutItemResult>() {
+                @Override
+                public PutItemResult execute() {
+                    return dynamoDBClient.putItem(putItemRequest);
+                }
+                
+                @Override
+                public ConsumedCapacity getConsumedCapacity(PutItemResult result) {
+                    return result.getConsumedCapacity();
+                }
+            });
 			LOG.info("Putted status: " + putItemResult);
             return putItemResult;
         } catch (AmazonServiceException ase) {
@@ -229,16 +413,111 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         return null;
     }
     
+    @Override
+    public PutItemResult putItem(String tableName, Map<String, AttributeValue> item,
+            Map<String, ExpectedAttributeValue> expected) {
+        try {
+            final PutItemRequest putItemRequest = new PutItemRequest(tableName, item).withExpected(expected)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            return execute(tableName, true, 1, new Request<PutItemResult>() {
+                @Override
+                public PutItemResult execute() {
+                    return dynamoDBClient.putItem(putItemRequest);
+                }
+                
+                @Override
+                public ConsumedCapacity getConsumedCapacity(PutItemResult result) {
+                    return result.getConsumedCapacity();
+                }
+            });
+        } catch (ConditionalCheckFailedException ccfe) {
+            LOG.info("Did not put item " + item + " into " + tableName + ", expected " + expected 
+                    + " does not match the current item");
+        } catch (AmazonServiceException ase) {
+            LOG.error("Failed to put given item into the " + tableName, ase);
+        } catch (AmazonClientException ace) {
+            LOG.error("Failed to put given item into the " + tableName, ace);
+        }
+        return null;
+    }
+    
+    @Override
+    public boolean batchWriteItem(final String tableName, List<WriteRequest> writeRequests) {
+        if (writeRequests == null || writeRequests.isEmpty()) {
+            return true;
+        }
+        
+        List<Callable<Boolean>> batches = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < writeRequests.size(); i += MAX_BATCH_WRITE_ITEMS) {
+            final List<WriteRequest> requests = writeRequests.subList(i, 
+                    Math.min(i + MAX_BATCH_WRITE_ITEMS, writeRequests.size()));
+            batches.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    batchWriteChunk(tableName, requests);
+                    return Boolean.TRUE;
+                }
+            });
+        }
+        
+        boolean isSuccessful = true;
+        try {
+            // A single batch is sent from the caller thread
+            if (batches.size() == 1) {
+                batches.get(0).call();
+            } else {
+                for (Future<Boolean> batch : batchExecutor.invokeAll(batches)) {
+                    try {
+                        batch.get();
+                    } catch (ExecutionException ee) {
+                        LOG.error("Failed to write items in batch into " + tableName, ee.getCause());
+                        isSuccessful = false;
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while writing items in batch into " + tableName);
+            return false;
+        } catch (Exception ex) {
+            LOG.error("Failed to write items in batch into " + tableName, ex);
+            return false;
+        }
+        
+        LOG.info("Written " + writeRequests.size() + " items in batch into " + tableName 
+                + ", status: " + isSuccessful);
+        return isSuccessful;
+    }
+    
     @Override
     public Map<String, AttributeValue> getItem(String tableName, HashMap<String, AttributeValue> primaryKey) {
+        return getItem(tableName, primaryKey, ReadOptions.consistent());
+    }
+    
+    @Override
+    public Map<String, AttributeValue> getItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            ReadOptions readOptions) {
         LOG.info("Retrieves a set of Attributes for an item that matches the primary key "
-                + primaryKey + " from the table " + tableName);
+                + primaryKey + " from the table " + tableName + " with " + readOptions);
         
     	try {
-    		GetItemRequest getItemRequest = new GetItemRequest().withTableName(tableName)
+    		final GetItemRequest getItemRequest = new GetItemRequest().withTableName(tableName)
     				.withKey(primaryKey)
-    				.withConsistentRead(true);
-            GetItemResult getItemResult = dynamoDBClient.getItem(getItemRequest);
+    				.withConsistentRead(readOptions.isConsistentRead())
+    				.withAttributesToGet(readOptions.getAttributesToGet())
+    				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            GetItemResult getItemResult = execute(tableName, false, getReadUnits(1, readOptions), 
+                    new Request<GetItemResult>() {
+                @Override
+                public GetItemResult execute() {
+                    return dynamoDBClient.getItem(getItemRequest);
+                }
+                
+                @Override
+                public ConsumedCapacity getConsumedCapacity(GetItemResult result) {
+                    return result.getConsumedCapacity();
+                }
+            });
             Map<String, AttributeValue> item = getItemResult.getItem();
             if (item == null || item.isEmpty()) {
 				LOG.warn("Could not find any item for the given UUID: "
@@ -258,17 +537,129 @@ public class DynamoDBServiceImpl implements DynamoDBService {
     }
     
     @Override
-    public List<Map<String, AttributeValue>> getItem(String tableName, Map<String, Condition> conditions) {
-        ScanRequest scanRequest = new ScanRequest(tableName).withScanFilter(conditions);
-        ScanResult scanResult = dynamoDBClient.scan(scanRequest);
-        int count = scanResult.getCount();
-        if (count == 0) {
-        	return Collections.emptyList();
+    public List<Map<String, AttributeValue>> batchGetItem(String tableName, 
+            List<Map<String, AttributeValue>> primaryKeys) {
+        return batchGetItem(tableName, primaryKeys, ReadOptions.consistent());
+    }
+    
+    @Override
+    public List<Map<String, AttributeValue>> batchGetItem(final String tableName, 
+            List<Map<String, AttributeValue>> primaryKeys, final ReadOptions readOptions) {
+        if (primaryKeys == null || primaryKeys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        List<Callable<List<Map<String, AttributeValue>>>> batches = 
+                new ArrayList<Callable<List<Map<String, AttributeValue>>>>();
+        for (int i = 0; i < primaryKeys.size(); i += MAX_BATCH_GET_KEYS) {
+            final List<Map<String, AttributeValue>> keys = primaryKeys.subList(i, 
+                    Math.min(i + MAX_BATCH_GET_KEYS, primaryKeys.size()));
+            batches.add(new Callable<List<Map<String, AttributeValue>>>() {
+                @Override
+                public List<Map<String, AttributeValue>> call() throws Exception {
+                    return batchGetChunk(tableName, keys, readOptions);
+                }
+            });
         }
         
-		LOG.info("Successful by getting items from " + tableName
-				+ " based on conditions: " + conditions.toString() + ": " + count + " items");
-        return scanResult.getItems();
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>(primaryKeys.size());
+        try {
+            // A single batch is sent from the caller thread
+            if (batches.size() == 1) {
+                items.addAll(batches.get(0).call());
+                return items;
+            }
+            
+            for (Future<List<Map<String, AttributeValue>>> batch : batchExecutor.invokeAll(batches)) {
+                items.addAll(batch.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while getting items in batch from " + tableName);
+            return null;
+        } catch (ExecutionException ee) {
+            LOG.error("Failed to get items in batch from " + tableName, ee.getCause());
+            return null;
+        } catch (Exception ex) {
+            LOG.error("Failed to get items in batch from " + tableName, ex);
+            return null;
+        }
+        
+        LOG.info("Successful by getting " + items.size() + " items in batch for " + primaryKeys.size() 
+                + " keys from " + tableName);
+        return items;
+    }
+    
+    @Override
+    public Iterator<Map<String, AttributeValue>> getItem(final String tableName, 
+            final Map<String, Condition> conditions) {
+        return new PagedItemIterator(prefetchExecutor) {
+            @Override
+            protected Page fetchPage(Map<String, AttributeValue> exclusiveStartKey) {
+                final ScanRequest scanRequest = new ScanRequest(tableName)
+                    .withExclusiveStartKey(exclusiveStartKey)
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+                if (conditions != null && !conditions.isEmpty()) {
+                    scanRequest.setScanFilter(conditions);
+                }
+                ScanResult scanResult = execute(tableName, false, 1, new Request<ScanResult>() {
+                    @Override
+                    public ScanResult execute() {
+                        return dynamoDBClient.scan(scanRequest);
+                    }
+                    
+                    @Override
+                    public ConsumedCapacity getConsumedCapacity(ScanResult result) {
+                        return result.getConsumedCapacity();
+                    }
+                });
+                LOG.info("Successful by getting items from " + tableName + " based on conditions: " 
+                        + conditions + ": " + scanResult.getCount() + " items");
+                return new Page(scanResult.getItems(), scanResult.getLastEvaluatedKey());
+            }
+        };
+    }
+    
+    @Override
+    public Iterator<Map<String, AttributeValue>> queryItem(String tableName, String indexName,
+            Map<String, Condition> keyConditions) {
+        return queryItem(tableName, indexName, keyConditions, ReadOptions.eventual());
+    }
+    
+    @Override
+    public Iterator<Map<String, AttributeValue>> queryItem(final String tableName, final String indexName,
+            final Map<String, Condition> keyConditions, final ReadOptions readOptions) {
+        return new PagedItemIterator(prefetchExecutor) {
+            @Override
+            protected Page fetchPage(Map<String, AttributeValue> exclusiveStartKey) {
+                final QueryRequest queryRequest = new QueryRequest(tableName)
+                    .withIndexName(indexName)
+                    .withKeyConditions(keyConditions)
+                    .withConsistentRead(readOptions.isConsistentRead())
+                    .withExclusiveStartKey(exclusiveStartKey)
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+                if (readOptions.getAttributesToGet() != null) {
+                    queryRequest.withSelect(Select.SPECIFIC_ATTRIBUTES)
+                        .withAttributesToGet(readOptions.getAttributesToGet());
+                }
+                // A query on an index consumes the capacity of the index
+                QueryResult queryResult = execute(tableName, getRateLimiter(tableName, indexName, false), 1, 
+                        new Request<QueryResult>() {
+                    @Override
+                    public QueryResult execute() {
+                        return dynamoDBClient.query(queryRequest);
+                    }
+                    
+                    @Override
+                    public ConsumedCapacity getConsumedCapacity(QueryResult result) {
+                        return result.getConsumedCapacity();
+                    }
+                });
+                LOG.info("Successful by querying items from " + tableName + " on index " + indexName
+                        + " based on conditions: " + keyConditions + ": " + queryResult.getCount() + " items");
+                return new Page(queryResult.getItems(), queryResult.getLastEvaluatedKey());
+            }
+        };
     }
     
     @Override
@@ -277,51 +668,446 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         Map<String, AttributeValueUpdate> attributeValueUpdates = new HashMap<String, AttributeValueUpdate>();
         attributeValueUpdates.putAll(updateItems);
         
-        UpdateItemRequest updateItemRequest = new UpdateItemRequest()
+        final UpdateItemRequest updateItemRequest = new UpdateItemRequest()
             .withTableName(tableName)
-            .withKey(primaryKey).withReturnValues(ReturnValue.UPDATED_NEW)
-            .withAttributeUpdates(updateItems);
+            .withKey(primaryKey).withReturnValues(ReturnValue.ALL_NEW)
+            .withAttributeUpdates(updateItems)
+            .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
         
-        UpdateItemResult updateItemResult = dynamoDBClient.updateItem(updateItemRequest);
+        UpdateItemResult updateItemResult = execute(tableName, true, 1, new Request<UpdateItemResult>() {
+            @Override
+            public UpdateItemResult execute() {
+                return dynamoDBClient.updateItem(updateItemRequest);
+            }
+            
+            @Override
+            public ConsumedCapacity getConsumedCapacity(UpdateItemResult result) {
+                return result.getConsumedCapacity();
+            }
+        });
 		LOG.info("Successful by updating item from " + tableName + ": " + updateItemResult); 
         return updateItemResult;
     }
 
+    @Override
+    public UpdateItemResult updateItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            Map<String, AttributeValueUpdate> updateItems, Map<String, ExpectedAttributeValue> expected) {
+        try {
+            final UpdateItemRequest updateItemRequest = new UpdateItemRequest()
+                .withTableName(tableName)
+                .withKey(primaryKey)
+                .withAttributeUpdates(updateItems)
+                .withExpected(expected)
+                .withReturnValues(ReturnValue.ALL_OLD)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            return execute(tableName, true, 1, new Request<UpdateItemResult>() {
+                @Override
+                public UpdateItemResult execute() {
+                    return dynamoDBClient.updateItem(updateItemRequest);
+                }
+                
+                @Override
+                public ConsumedCapacity getConsumedCapacity(UpdateItemResult result) {
+                    return result.getConsumedCapacity();
+                }
+            });
+        } catch (ConditionalCheckFailedException ccfe) {
+            LOG.info("Did not update item " + primaryKey + " in " + tableName + ", expected " + expected 
+                    + " does not match the current item");
+        } catch (AmazonServiceException ase) {
+            LOG.error("Failed to update item " + primaryKey + " in " + tableName, ase);
+        } catch (AmazonClientException ace) {
+            LOG.error("Failed to update item " + primaryKey + " in " + tableName, ace);
+        }
+        return null;
+    }
+
     @Override
     public DeleteItemResult deleteItem(String tableName, HashMap<String, AttributeValue> primaryKey) {
-        DeleteItemRequest deleteItemRequest = new DeleteItemRequest()
+        final DeleteItemRequest deleteItemRequest = new DeleteItemRequest()
             .withTableName(tableName)
-            .withKey(primaryKey);
+            .withKey(primaryKey)
+            .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            
+        DeleteItemResult deleteItemResult = execute(tableName, true, 1, new Request<DeleteItemResult>() {
+            @Override
+            public DeleteItemResult execute() {
+                return dynamoDBClient.deleteItem(deleteItemRequest);
+            }
             
-        DeleteItemResult deleteItemResult = dynamoDBClient.deleteItem(deleteItemRequest);
+            @Override
+            public ConsumedCapacity getConsumedCapacity(DeleteItemResult result) {
+                return result.getConsumedCapacity();
+            }
+        });
         LOG.info("Successful by deleting item in " + tableName);
         return deleteItemResult;
     }
+    
+    @Override
+    public DeleteItemResult deleteItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            Map<String, ExpectedAttributeValue> expected) {
+        try {
+            final DeleteItemRequest deleteItemRequest = new DeleteItemRequest()
+                .withTableName(tableName)
+                .withKey(primaryKey)
+                .withExpected(expected)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            return execute(tableName, true, 1, new Request<DeleteItemResult>() {
+                @Override
+                public DeleteItemResult execute() {
+                    return dynamoDBClient.deleteItem(deleteItemRequest);
+                }
+                
+                @Override
+                public ConsumedCapacity getConsumedCapacity(DeleteItemResult result) {
+                    return result.getConsumedCapacity();
+                }
+            });
+        } catch (ConditionalCheckFailedException ccfe) {
+            LOG.info("Did not delete item " + primaryKey + " from " + tableName + ", expected " + expected 
+                    + " does not match the current item");
+        } catch (AmazonServiceException ase) {
+            LOG.error("Failed to delete item " + primaryKey + " from " + tableName, ase);
+        } catch (AmazonClientException ace) {
+            LOG.error("Failed to delete item " + primaryKey + " from " + tableName, ace);
+        }
+        return null;
+    }
 
-    private void waitForTableAvailable(String tableName) {
-        LOG.info("Waiting for table " + tableName + " to become ACTIVE...");
+    /**
+     * Get the items of at most 100 keys, retrying the unprocessed keys until
+     * all of them have been read
+     */
+    private List<Map<String, AttributeValue>> batchGetChunk(final String tableName, 
+            List<Map<String, AttributeValue>> keys, ReadOptions readOptions) {
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>(keys.size());
         
-        long startTime = System.currentTimeMillis();
-        long endTime = startTime + (10 * 60 * 1000);
-        while (System.currentTimeMillis() < endTime) {
-            DescribeTableRequest describeTableRequest = new DescribeTableRequest().withTableName(tableName);
-            TableDescription tableDescription = dynamoDBClient.describeTable(describeTableRequest).getTable();
+        Map<String, KeysAndAttributes> requestItems = new HashMap<String, KeysAndAttributes>();
+        requestItems.put(tableName, new KeysAndAttributes().withKeys(keys)
+                .withConsistentRead(readOptions.isConsistentRead())
+                .withAttributesToGet(readOptions.getAttributesToGet()));
+        
+        int retries = 0;
+        while (requestItems != null && !requestItems.isEmpty()) {
+            final BatchGetItemRequest batchGetItemRequest = new BatchGetItemRequest().withRequestItems(requestItems)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            double estimatedUnits = getReadUnits(requestItems.get(tableName).getKeys().size(), readOptions);
+            BatchGetItemResult batchGetItemResult = execute(tableName, false, estimatedUnits, 
+                    new Request<BatchGetItemResult>() {
+                @Override
+                public BatchGetItemResult execute() {
+                    return dynamoDBClient.batchGetItem(batchGetItemRequest);
+                }
+                
+                @Override
+                public ConsumedCapacity getConsumedCapacity(BatchGetItemResult result) {
+                    return getTableConsumedCapacity(tableName, result.getConsumedCapacity());
+                }
+            });
+            
+            List<Map<String, AttributeValue>> responses = batchGetItemResult.getResponses().get(tableName);
+            if (responses != null) {
+                items.addAll(responses);
+            }
             
-            // Display current status of table
-            String tableStatus = tableDescription.getTableStatus();
-            LOG.info("Current state for table " + tableName + ": " + tableStatus);
-            if (tableStatus.equals(TableStatus.ACTIVE.toString())) {
-                return;
+            requestItems = batchGetItemResult.getUnprocessedKeys();
+            if (requestItems != null && !requestItems.isEmpty()) {
+                if (++retries > MAX_BATCH_RETRIES) {
+                    throw new AmazonClientException("Unprocessed keys remain after " + MAX_BATCH_RETRIES 
+                            + " retries of a batch get from " + tableName);
+                }
+                
+                // Keys are left unprocessed when the table is out of capacity
+                getRateLimiter(tableName, false).onThrottled();
+                backoff(retries);
+            }
+        }
+        return items;
+    }
+    
+    /**
+     * Write at most 25 items, retrying the unprocessed items until all of
+     * them have been written
+     */
+    private void batchWriteChunk(final String tableName, List<WriteRequest> writeRequests) {
+        Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+        requestItems.put(tableName, writeRequests);
+        
+        int retries = 0;
+        while (requestItems != null && !requestItems.isEmpty()) {
+            final BatchWriteItemRequest batchWriteItemRequest = new BatchWriteItemRequest()
+                .withRequestItems(requestItems)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            BatchWriteItemResult batchWriteItemResult = execute(tableName, true, 
+                    requestItems.get(tableName).size(), new Request<BatchWriteItemResult>() {
+                @Override
+                public BatchWriteItemResult execute() {
+                    return dynamoDBClient.batchWriteItem(batchWriteItemRequest);
+                }
+                
+                @Override
+                public ConsumedCapacity getConsumedCapacity(BatchWriteItemResult result) {
+                    return getTableConsumedCapacity(tableName, result.getConsumedCapacity());
+                }
+            });
+            
+            requestItems = batchWriteItemResult.getUnprocessedItems();
+            if (requestItems != null && !requestItems.isEmpty()) {
+                if (++retries > MAX_BATCH_RETRIES) {
+                    throw new AmazonClientException("Unprocessed items remain after " + MAX_BATCH_RETRIES 
+                            + " retries of a batch write into " + tableName);
+                }
+                
+                getRateLimiter(tableName, true).onThrottled();
+                backoff(retries);
+            }
+        }
+    }
+    
+    /**
+     * Sends a request once the rate limiter of the table allows it, retrying
+     * on throttling, server errors and I/O failures such as timeouts.
+     * Throttling halves the rate of the limiter before retrying.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param isWrite
+     *            - TRUE if the request consumes write capacity
+     * @param estimatedUnits
+     *            - The capacity units the request is expected to consume
+     * @param request
+     *            - The request to send
+     * @return The result of the request
+     */
+    private <T> T execute(String tableName, boolean isWrite, double estimatedUnits, Request<T> request) {
+        return execute(tableName, getRateLimiter(tableName, isWrite), estimatedUnits, request);
+    }
+    
+    /**
+     * Sends a request on a table itself (create, delete, describe), which
+     * consumes no capacity of the table, with the same retries as the
+     * requests on items
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param request
+     *            - The request to send
+     * @return The result of the request
+     */
+    private <T> T executeTableRequest(String tableName, Request<T> request) {
+        return execute(tableName, null, 0, request);
+    }
+    
+    /**
+     * @param rateLimiter
+     *            - The rate limiter of the capacity the request consumes, or
+     *            null if it consumes none
+     */
+    private <T> T execute(String tableName, AdaptiveRateLimiter rateLimiter, double estimatedUnits, 
+            Request<T> request) {
+        int retries = 0;
+        while (true) {
+            if (rateLimiter != null) {
+                try {
+                    rateLimiter.acquire(estimatedUnits);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new AmazonClientException("Interrupted while waiting for capacity of " + tableName, ie);
+                }
             }
             
             try {
-                Thread.sleep(1000 * 20);
-            } catch (Exception ex) {
-                LOG.warn(ex.getMessage());
+                T result = request.execute();
+                if (rateLimiter != null) {
+                    ConsumedCapacity consumedCapacity = request.getConsumedCapacity(result);
+                    rateLimiter.onSuccess(estimatedUnits, consumedCapacity != null 
+                            && consumedCapacity.getCapacityUnits() != null ? consumedCapacity.getCapacityUnits() : -1);
+                }
+                return result;
+            } catch (AmazonServiceException ase) {
+                if (isThrottling(ase)) {
+                    if (rateLimiter != null) {
+                        rateLimiter.onThrottled();
+                    }
+                    LOG.warn("Throttled by " + tableName + (rateLimiter != null ? ", " + rateLimiter : ""));
+                } else if (ase.getStatusCode() < 500) {
+                    throw ase;
+                }
+                
+                if (++retries > MAX_RETRIES) {
+                    throw ase;
+                }
+            } catch (AmazonClientException ace) {
+                // Other client errors, e.g. a response that cannot be
+                // parsed, fail again
+                if (!(ace.getCause() instanceof IOException) || ++retries > MAX_RETRIES) {
+                    throw ace;
+                }
+                LOG.warn("Retrying request to " + tableName + ": " + ace.getMessage());
             }
+            backoff(retries);
         }
+    }
+    
+    private boolean isThrottling(AmazonServiceException ase) {
+        return ase instanceof ProvisionedThroughputExceededException 
+                || "ThrottlingException".equals(ase.getErrorCode())
+                || "LimitExceededException".equals(ase.getErrorCode());
+    }
+    
+    /**
+     * Capacity units of a read, eventually consistent reads consuming half
+     * the units of consistent ones
+     */
+    private double getReadUnits(int items, ReadOptions readOptions) {
+        return readOptions.isConsistentRead() ? items : items / 2.0;
+    }
+    
+    private ConsumedCapacity getTableConsumedCapacity(String tableName, List<ConsumedCapacity> consumedCapacities) {
+        if (consumedCapacities != null) {
+            for (ConsumedCapacity consumedCapacity : consumedCapacities) {
+                if (tableName.equals(consumedCapacity.getTableName())) {
+                    return consumedCapacity;
+                }
+            }
+        }
+        return null;
+    }
+    
+    private AdaptiveRateLimiter getRateLimiter(String tableName, boolean isWrite) {
+        return getRateLimiter(tableName, null, isWrite);
+    }
+    
+    /**
+     * @param indexName
+     *            - The index the requests are sent to, or null for the table
+     */
+    private AdaptiveRateLimiter getRateLimiter(String tableName, String indexName, boolean isWrite) {
+        String key = getRateLimiterKey(tableName, indexName, isWrite);
+        AdaptiveRateLimiter rateLimiter = rateLimiters.get(key);
+        if (rateLimiter == null) {
+            rateLimiter = new AdaptiveRateLimiter(getProvisionedCapacity(tableName, indexName, isWrite));
+            AdaptiveRateLimiter existing = rateLimiters.putIfAbsent(key, rateLimiter);
+            if (existing != null) {
+                rateLimiter = existing;
+            }
+        }
+        return rateLimiter;
+    }
+    
+    private String getRateLimiterKey(String tableName, String indexName, boolean isWrite) {
+        return tableName + ":" + (indexName != null ? indexName + ":" : "") + (isWrite ? "write" : "read");
+    }
+    
+    /**
+     * The capacity units the requests to the table or index draw on: the
+     * reads of the table or of the global secondary index, and the writes of
+     * the table and of its global secondary indexes, the consumed capacity
+     * returned by a write including the capacity consumed on the indexes
+     */
+    private double getProvisionedCapacity(String tableName, String indexName, boolean isWrite) {
+        long defaultCapacity = isWrite ? PROVISIONED_WRITE_CAPACITY : PROVISIONED_READ_CAPACITY;
+        try {
+            TableDescription tableDescription = describeTable(tableName);
+            if (tableDescription == null) {
+                return defaultCapacity;
+            }
+            
+            double capacity = 0;
+            boolean isGlobalIndex = false;
+            if (tableDescription.getGlobalSecondaryIndexes() != null) {
+                for (GlobalSecondaryIndexDescription index : tableDescription.getGlobalSecondaryIndexes()) {
+                    if (isWrite) {
+                        capacity += getCapacityUnits(index.getProvisionedThroughput(), isWrite);
+                    } else if (index.getIndexName().equals(indexName)) {
+                        capacity += getCapacityUnits(index.getProvisionedThroughput(), isWrite);
+                        isGlobalIndex = true;
+                    }
+                }
+            }
+            
+            // A local secondary index draws on the capacity of the table
+            if (!isGlobalIndex) {
+                capacity += getCapacityUnits(tableDescription.getProvisionedThroughput(), isWrite);
+            }
+            return capacity > 0 ? capacity : defaultCapacity;
+        } catch (AmazonClientException ace) {
+            LOG.warn("Could not get provisioned capacity of " + tableName + ": " + ace.getMessage());
+        }
+        return defaultCapacity;
+    }
+    
+    private long getCapacityUnits(ProvisionedThroughputDescription provisionedThroughput, boolean isWrite) {
+        if (provisionedThroughput == null) {
+            return 0;
+        }
+        Long capacityUnits = isWrite ? provisionedThroughput.getWriteCapacityUnits() 
+                : provisionedThroughput.getReadCapacityUnits();
+        return capacityUnits != null ? capacityUnits : 0;
+    }
+    
+    /**
+     * Wait before retrying, with an exponential backoff and full jitter so
+     * that the requests throttled together are not retried together
+     */
+    private void backoff(int retries) {
+        long maxDelay = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << Math.min(retries, 10));
+        try {
+            Thread.sleep((long) (Math.random() * maxDelay) + 1);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while retrying a request", ie);
+        }
+    }
+    
+    /**
+     * A request to Amazon DynamoDB and the capacity it consumed
+     */
+    private static abstract class Request<T> {
+        
+        public abstract T execute();
+        
+        /**
+         * The capacity consumed by the request, none for the requests on a
+         * table itself
+         */
+        public ConsumedCapacity getConsumedCapacity(T result) {
+            return null;
+        }
+    }
+    
+    @Override
+    public boolean waitForTableActive(String tableName) {
+        LOG.info("Waiting for table " + tableName + " to become ACTIVE...");
         
-        throw new RuntimeException("Table " + tableName + " never went active");
+        long endTime = System.currentTimeMillis() + TABLE_POLL_TIMEOUT_MILLIS;
+        long delay = TABLE_POLL_INITIAL_DELAY_MILLIS;
+        while (System.currentTimeMillis() < endTime) {
+            try {
+                TableDescription tableDescription = describeTableOrFail(tableName);
+                
+                // Display current status of table
+                String tableStatus = tableDescription.getTableStatus();
+                LOG.info("Current state for table " + tableName + ": " + tableStatus);
+                if (tableStatus.equals(TableStatus.ACTIVE.toString())) {
+                    return true;
+                }
+            } catch (ResourceNotFoundException rnfe) {
+                // Not visible yet right after it was created
+                LOG.warn(rnfe.getMessage());
+            } catch (AmazonClientException ace) {
+                LOG.warn("Could not get the status of table " + tableName + ": " + ace.getMessage());
+            }
+            
+            if (!sleep(delay)) {
+                return false;
+            }
+            delay = Math.min(delay * 2, TABLE_POLL_MAX_DELAY_MILLIS);
+        }
+        
+        LOG.error("Table " + tableName + " never went active");
+        return false;
     }
 
     /**
@@ -337,8 +1123,7 @@ public class DynamoDBServiceImpl implements DynamoDBService {
      */
     private TableDescription describeTable(String tableName) {
         try {
-            DescribeTableRequest describeTableRequest = new DescribeTableRequest().withTableName(tableName);
-            TableDescription tableDescription = dynamoDBClient.describeTable(describeTableRequest).getTable();
+            TableDescription tableDescription = describeTableOrFail(tableName);
             if (tableDescription != null) {
                 LOG.info("Table description of " + tableName + ": " + tableDescription);
             }
@@ -349,32 +1134,58 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         return null;
     }
     
-    private void waitForTableDeleted(String tableName) {
+    /**
+     * Describe the table with retries, throwing ResourceNotFoundException if
+     * it does not exist
+     */
+    private TableDescription describeTableOrFail(String tableName) {
+        final DescribeTableRequest describeTableRequest = new DescribeTableRequest().withTableName(tableName);
+        return executeTableRequest(tableName, new Request<DescribeTableResult>() {
+            @Override
+            public DescribeTableResult execute() {
+                return dynamoDBClient.describeTable(describeTableRequest);
+            }
+        }).getTable();
+    }
+    
+    private boolean waitForTableDeleted(String tableName) {
         LOG.info("Waiting for table " + tableName + " while status DELETING...");
 
-        long startTime = System.currentTimeMillis();
-        long endTime = startTime + (10 * 60 * 1000);
+        long endTime = System.currentTimeMillis() + TABLE_POLL_TIMEOUT_MILLIS;
+        long delay = TABLE_POLL_INITIAL_DELAY_MILLIS;
         while (System.currentTimeMillis() < endTime) {
             try {
-                DescribeTableRequest describeTableRequest = new DescribeTableRequest().withTableName(tableName);
-                TableDescription tableDescription = dynamoDBClient.describeTable(describeTableRequest)
-                        .getTable();
+                TableDescription tableDescription = describeTableOrFail(tableName);
                 String tableStatus = tableDescription.getTableStatus();
                 LOG.info("Current state for table " + tableName + ": " + tableStatus);
-                if (tableStatus.equals(TableStatus.ACTIVE.toString())) {
-                    return;
-                }
             } catch (ResourceNotFoundException rne) {
                 LOG.warn("Table " + tableName + " is not found. It was deleted.");
-                return;
+                return true;
+            } catch (AmazonClientException ace) {
+                LOG.warn("Could not get the status of table " + tableName + ": " + ace.getMessage());
             }
             
-            try {
-                Thread.sleep(1000 * 20);
-            } catch (Exception ex) {
-                LOG.warn(ex.getMessage());
+            if (!sleep(delay)) {
+                return false;
             }
+            delay = Math.min(delay * 2, TABLE_POLL_MAX_DELAY_MILLIS);
+        }
+        
+        LOG.error("Table " + tableName + " was never deleted");
+        return false;
+    }
+    
+    /**
+     * @return FALSE if the thread was interrupted while sleeping
+     */
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while waiting for a table");
+            return false;
         }
-        throw new RuntimeException("Table " + tableName + " was never deleted");
     }
 }
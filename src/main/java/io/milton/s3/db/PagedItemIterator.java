@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Iterates over the items of a paginated Scan or Query. Pages are fetched
+ * lazily following the LastEvaluatedKey of the previous page. Once more than
+ * half of the current page has been consumed, the next page is requested
+ * while the caller consumes the rest of it; a caller reading only the first
+ * items never pays for a second page.
+ * 
+ * At most two pages (the current one and the prefetched one) are held in
+ * memory at any time, whatever the number of matching items.
+ */
+public abstract class PagedItemIterator implements Iterator<Map<String, AttributeValue>> {
+
+    private final ExecutorService executorService;
+    
+    /**
+     * The items of the current page, and the position of the next one
+     */
+    private List<Map<String, AttributeValue>> currentPage;
+    private int position;
+    
+    /**
+     * The last evaluated key of the current page, null on the last page
+     */
+    private Map<String, AttributeValue> lastEvaluatedKey;
+    
+    /**
+     * The next page, once requested
+     */
+    private Future<Page> nextPage;
+    
+    public PagedItemIterator(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+    
+    /**
+     * Fetch one page of items
+     * 
+     * @param exclusiveStartKey
+     *              - the last evaluated key of the previous page, or null
+     *              for the first page
+     * @return The items and the last evaluated key of the page
+     */
+    protected abstract Page fetchPage(Map<String, AttributeValue> exclusiveStartKey);
+    
+    @Override
+    public boolean hasNext() {
+        if (currentPage == null) {
+            // The first page is fetched on the caller thread
+            setPage(fetchPage(null));
+        }
+        
+        while (position == currentPage.size() && lastEvaluatedKey != null) {
+            setPage(nextPage != null ? awaitPage(nextPage) : fetchPage(lastEvaluatedKey));
+        }
+        return position < currentPage.size();
+    }
+
+    @Override
+    public Map<String, AttributeValue> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map<String, AttributeValue> item = currentPage.get(position++);
+        
+        // Prefetches once the caller is reading on, while items of the page
+        // are left to overlap with the request
+        if (nextPage == null && lastEvaluatedKey != null && position < currentPage.size() 
+                && position * 2 > currentPage.size()) {
+            final Map<String, AttributeValue> exclusiveStartKey = lastEvaluatedKey;
+            nextPage = executorService.submit(new Callable<Page>() {
+                @Override
+                public Page call() throws Exception {
+                    return fetchPage(exclusiveStartKey);
+                }
+            });
+        }
+        return item;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Items are read-only");
+    }
+    
+    private void setPage(Page page) {
+        List<Map<String, AttributeValue>> items = page.getItems();
+        currentPage = items != null ? items : Collections.<Map<String, AttributeValue>> emptyList();
+        position = 0;
+        
+        Map<String, AttributeValue> pageLastEvaluatedKey = page.getLastEvaluatedKey();
+        lastEvaluatedKey = pageLastEvaluatedKey == null || pageLastEvaluatedKey.isEmpty() 
+                ? null : pageLastEvaluatedKey;
+        nextPage = null;
+    }
+    
+    private Page awaitPage(Future<Page> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while fetching the next page of items", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new AmazonClientException("Failed to fetch the next page of items", ee.getCause());
+        }
+    }
+    
+    /**
+     * One page of a Scan or Query result
+     */
+    public static class Page {
+        
+        private final List<Map<String, AttributeValue>> items;
+        
+        private final Map<String, AttributeValue> lastEvaluatedKey;
+        
+        public Page(List<Map<String, AttributeValue>> items, Map<String, AttributeValue> lastEvaluatedKey) {
+            this.items = items;
+            this.lastEvaluatedKey = lastEvaluatedKey;
+        }
+
+        public List<Map<String, AttributeValue>> getItems() {
+            return items;
+        }
+
+        public Map<String, AttributeValue> getLastEvaluatedKey() {
+            return lastEvaluatedKey;
+        }
+    }
+}
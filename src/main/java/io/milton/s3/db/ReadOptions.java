@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Options of a read: the consistency level and the attributes to return.
+ * 
+ * Strongly consistent reads always return the last written value but
+ * consume twice the read capacity of eventually consistent reads. Reading
+ * only the needed attributes reduces the size of the responses.
+ */
+public class ReadOptions {
+
+    private static final ReadOptions CONSISTENT = new ReadOptions(true, null);
+    
+    private static final ReadOptions EVENTUAL = new ReadOptions(false, null);
+    
+    private final boolean consistentRead;
+    
+    private final List<String> attributesToGet;
+    
+    private ReadOptions(boolean consistentRead, List<String> attributesToGet) {
+        this.consistentRead = consistentRead;
+        this.attributesToGet = attributesToGet;
+    }
+    
+    /**
+     * Strongly consistent read of all the attributes, for the checks made
+     * before a write
+     */
+    public static ReadOptions consistent() {
+        return CONSISTENT;
+    }
+    
+    /**
+     * Eventually consistent read of all the attributes
+     */
+    public static ReadOptions eventual() {
+        return EVENTUAL;
+    }
+    
+    /**
+     * Read only the given attributes with the same consistency level
+     * 
+     * @param attributeNames
+     *              - the names of the attributes to return
+     */
+    public ReadOptions withAttributes(String... attributeNames) {
+        return new ReadOptions(consistentRead, 
+                Collections.unmodifiableList(Arrays.asList(attributeNames)));
+    }
+
+    public boolean isConsistentRead() {
+        return consistentRead;
+    }
+
+    /**
+     * @return The names of the attributes to return, or null for all the
+     *         attributes
+     */
+    public List<String> getAttributesToGet() {
+        return attributesToGet;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadOptions [consistentRead=" + consistentRead + ", attributesToGet=" 
+                + attributesToGet + "]";
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
+import io.milton.s3.util.AttributeKey;
+import io.milton.s3.util.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Coalesces the puts and deletes of items in front of another
+ * DynamoDBService and writes them with BatchWriteItem, either every flush
+ * interval or as soon as a full batch of 25 writes is pending.
+ * 
+ * Only the last pending write of an item is kept, and the writes are
+ * flushed one batch after the other, so the writes of an item are applied
+ * in the order they were made. Reads of this node see the pending writes:
+ * single items are answered from the pending writes, while scans and
+ * queries flush the pending writes of the table first.
+ * 
+ * Conditional writes and updates go straight to DynamoDB. They only flush
+ * the table first if the same item has a pending write, so that the
+ * condition is checked against its latest value, and do not stop the
+ * batching of the other items.
+ * 
+ * A put still returns the former item (ALL_OLD): from the pending writes if
+ * the item has one, otherwise read from DynamoDB, the write itself being
+ * batched. The writes of an item hold its lock, so that the former item
+ * returned by a put is the one it replaces, as with DynamoDB.
+ */
+public class WriteBehindDynamoDBService implements DynamoDBService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindDynamoDBService.class);
+    
+    /**
+     * Maximum number of items of a single BatchWriteItem request
+     */
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    
+    /**
+     * Pending writes of a table above which the writer flushes synchronously,
+     * so that the pending writes stay bounded when DynamoDB is slow
+     */
+    private static final int MAX_PENDING_WRITES = 10000;
+    
+    /**
+     * Number of locks the items are spread over
+     */
+    private static final int ITEM_LOCKS = 64;
+    
+    private final DynamoDBService dynamoDBService;
+    
+    /**
+     * Pending writes of every table, by the unique UUID of the item
+     */
+    private final Map<String, LinkedHashMap<String, PendingWrite>> pendingWrites = 
+            new HashMap<String, LinkedHashMap<String, PendingWrite>>();
+    
+    /**
+     * Writes of every table being flushed, by the unique UUID of the item
+     */
+    private final Map<String, Map<String, PendingWrite>> flushingWrites = 
+            new HashMap<String, Map<String, PendingWrite>>();
+    
+    /**
+     * Only one batch is flushed at a time to keep the writes of an item in
+     * order
+     */
+    private final Lock flushLock = new ReentrantLock();
+    
+    /**
+     * Held by the writes of the items whose table & unique UUID hash to them
+     */
+    private final Object[] itemLocks = new Object[ITEM_LOCKS];
+    
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("dynamodb-write-behind"));
+    
+    /**
+     * @param dynamoDBService
+     *            - the service the writes are flushed to
+     * @param flushIntervalMillis
+     *            - the maximum time a write stays pending
+     */
+    public WriteBehindDynamoDBService(DynamoDBService dynamoDBService, long flushIntervalMillis) {
+        this.dynamoDBService = dynamoDBService;
+        for (int i = 0; i < itemLocks.length; i++) {
+            itemLocks[i] = new Object();
+        }
+        
+        flushExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // An exception would cancel the next flushes
+                try {
+                    flush();
+                } catch (RuntimeException ex) {
+                    LOG.error("Failed to flush the pending writes", ex);
+                }
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        
+        // Do not lose the pending writes when the server stops
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "dynamodb-write-behind-shutdown"));
+    }
+    
+    @Override
+    public boolean createTable(String tableName) {
+        return dynamoDBService.createTable(tableName);
+    }
+
+    @Override
+    public boolean deleteTable(String tableName) {
+        synchronized (pendingWrites) {
+            pendingWrites.remove(tableName);
+            flushingWrites.remove(tableName);
+        }
+        return dynamoDBService.deleteTable(tableName);
+    }
+
+    @Override
+    public boolean isTableExist(String tableName) {
+        return dynamoDBService.isTableExist(tableName);
+    }
+
+    @Override
+    public boolean waitForTableActive(String tableName) {
+        return dynamoDBService.waitForTableActive(tableName);
+    }
+
+    @Override
+    public Map<String, AttributeValue> newItem(Entity entity) {
+        return dynamoDBService.newItem(entity);
+    }
+
+    @Override
+    public Map<String, AttributeValueUpdate> newModifiedDateUpdates(Date modifiedDate) {
+        return dynamoDBService.newModifiedDateUpdates(modifiedDate);
+    }
+
+    @Override
+    public Map<String, AttributeValueUpdate> newContentUpdates(File file) {
+        return dynamoDBService.newContentUpdates(file);
+    }
+
+    @Override
+    public PutItemResult putItem(String tableName, Map<String, AttributeValue> item) {
+        if (item == null || item.isEmpty()) {
+            LOG.warn("Does not support store null or empty entity in table " + tableName);
+            return null;
+        }
+        
+        // The former item is returned like a put of DynamoDB would, e.g.
+        // for the change of size of a file stored again. An item missing
+        // from DynamoDB, or which could not be read, is returned as empty.
+        String uniqueId = getUniqueId(item);
+        synchronized (getItemLock(tableName, uniqueId)) {
+            Map<String, AttributeValue> oldItem;
+            PendingWrite pendingWrite = findPendingWrite(tableName, uniqueId);
+            if (pendingWrite != null) {
+                oldItem = pendingWrite.getItem();
+            } else {
+                oldItem = dynamoDBService.getItem(tableName, getPrimaryKey(uniqueId), ReadOptions.consistent());
+            }
+            
+            addPendingWrite(tableName, uniqueId, new PendingWrite(item));
+            return new PutItemResult().withAttributes(oldItem.isEmpty() ? null : oldItem);
+        }
+    }
+
+    @Override
+    public PutItemResult putItem(String tableName, Map<String, AttributeValue> item,
+            Map<String, ExpectedAttributeValue> expected) {
+        // The condition must be checked against the pending write of the
+        // item, which cannot be batched with it
+        String uniqueId = getUniqueId(item);
+        synchronized (getItemLock(tableName, uniqueId)) {
+            flushIfPending(tableName, uniqueId);
+            return dynamoDBService.putItem(tableName, item, expected);
+        }
+    }
+
+    @Override
+    public boolean batchWriteItem(String tableName, List<WriteRequest> writeRequests) {
+        flush(tableName);
+        return dynamoDBService.batchWriteItem(tableName, writeRequests);
+    }
+
+    @Override
+    public Map<String, AttributeValue> getItem(String tableName, HashMap<String, AttributeValue> primaryKey) {
+        return getItem(tableName, primaryKey, ReadOptions.consistent());
+    }
+
+    @Override
+    public Map<String, AttributeValue> getItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            ReadOptions readOptions) {
+        PendingWrite pendingWrite = findPendingWrite(tableName, getUniqueId(primaryKey));
+        if (pendingWrite != null) {
+            return pendingWrite.getItem();
+        }
+        return dynamoDBService.getItem(tableName, primaryKey, readOptions);
+    }
+
+    @Override
+    public List<Map<String, AttributeValue>> batchGetItem(String tableName,
+            List<Map<String, AttributeValue>> primaryKeys) {
+        return batchGetItem(tableName, primaryKeys, ReadOptions.consistent());
+    }
+
+    @Override
+    public List<Map<String, AttributeValue>> batchGetItem(String tableName,
+            List<Map<String, AttributeValue>> primaryKeys, ReadOptions readOptions) {
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        List<Map<String, AttributeValue>> unknownKeys = new ArrayList<Map<String, AttributeValue>>();
+        for (Map<String, AttributeValue> primaryKey : primaryKeys) {
+            PendingWrite pendingWrite = findPendingWrite(tableName, getUniqueId(primaryKey));
+            if (pendingWrite == null) {
+                unknownKeys.add(primaryKey);
+            } else if (!pendingWrite.isDelete()) {
+                items.add(pendingWrite.getItem());
+            }
+        }
+        
+        List<Map<String, AttributeValue>> storedItems = dynamoDBService.batchGetItem(tableName, unknownKeys, 
+                readOptions);
+        if (storedItems == null) {
+            return null;
+        }
+        items.addAll(storedItems);
+        return items;
+    }
+
+    @Override
+    public Iterator<Map<String, AttributeValue>> getItem(String tableName, Map<String, Condition> conditions) {
+        flush(tableName);
+        return dynamoDBService.getItem(tableName, conditions);
+    }
+
+    @Override
+    public Iterator<Map<String, AttributeValue>> queryItem(String tableName, String indexName,
+            Map<String, Condition> keyConditions) {
+        flush(tableName);
+        return dynamoDBService.queryItem(tableName, indexName, keyConditions);
+    }
+
+    @Override
+    public Iterator<Map<String, AttributeValue>> queryItem(String tableName, String indexName,
+            Map<String, Condition> keyConditions, ReadOptions readOptions) {
+        flush(tableName);
+        return dynamoDBService.queryItem(tableName, indexName, keyConditions, readOptions);
+    }
+
+    @Override
+    public UpdateItemResult updateItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            Map<String, AttributeValueUpdate> updateItems) {
+        // The update must be applied after the pending put of the item
+        String uniqueId = getUniqueId(primaryKey);
+        synchronized (getItemLock(tableName, uniqueId)) {
+            flushIfPending(tableName, uniqueId);
+            return dynamoDBService.updateItem(tableName, primaryKey, updateItems);
+        }
+    }
+    
+    @Override
+    public UpdateItemResult updateItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            Map<String, AttributeValueUpdate> updateItems, Map<String, ExpectedAttributeValue> expected) {
+        String uniqueId = getUniqueId(primaryKey);
+        synchronized (getItemLock(tableName, uniqueId)) {
+            flushIfPending(tableName, uniqueId);
+            return dynamoDBService.updateItem(tableName, primaryKey, updateItems, expected);
+        }
+    }
+
+    @Override
+    public DeleteItemResult deleteItem(String tableName, HashMap<String, AttributeValue> primaryKey) {
+        String uniqueId = getUniqueId(primaryKey);
+        synchronized (getItemLock(tableName, uniqueId)) {
+            addPendingWrite(tableName, uniqueId, new PendingWrite(primaryKey, true));
+        }
+        return new DeleteItemResult();
+    }
+    
+    @Override
+    public DeleteItemResult deleteItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            Map<String, ExpectedAttributeValue> expected) {
+        String uniqueId = getUniqueId(primaryKey);
+        synchronized (getItemLock(tableName, uniqueId)) {
+            flushIfPending(tableName, uniqueId);
+            return dynamoDBService.deleteItem(tableName, primaryKey, expected);
+        }
+    }
+    
+    /**
+     * Flush the pending writes of all the tables
+     */
+    public void flush() {
+        List<String> tableNames;
+        synchronized (pendingWrites) {
+            tableNames = new ArrayList<String>(pendingWrites.keySet());
+        }
+        
+        for (String tableName : tableNames) {
+            flush(tableName);
+        }
+    }
+    
+    /**
+     * Write the pending writes of the given table with BatchWriteItem. The
+     * writes that failed are pending again, unless the item was written
+     * again in the meantime.
+     * 
+     * @param tableName
+     *              - the name of the table
+     */
+    public void flush(String tableName) {
+        flushLock.lock();
+        try {
+            Map<String, PendingWrite> writes;
+            synchronized (pendingWrites) {
+                writes = pendingWrites.remove(tableName);
+                if (writes == null || writes.isEmpty()) {
+                    return;
+                }
+                flushingWrites.put(tableName, writes);
+            }
+            
+            List<WriteRequest> writeRequests = new ArrayList<WriteRequest>(writes.size());
+            for (PendingWrite write : writes.values()) {
+                writeRequests.add(write.getWriteRequest());
+            }
+            
+            boolean isSuccessful = false;
+            try {
+                isSuccessful = dynamoDBService.batchWriteItem(tableName, writeRequests);
+            } finally {
+                synchronized (pendingWrites) {
+                    flushingWrites.remove(tableName);
+                    if (!isSuccessful) {
+                        LOG.warn("Failed to flush " + writes.size() + " writes into " + tableName 
+                                + ", they will be retried");
+                        LinkedHashMap<String, PendingWrite> pending = getPendingWrites(tableName);
+                        for (Map.Entry<String, PendingWrite> write : writes.entrySet()) {
+                            if (!pending.containsKey(write.getKey())) {
+                                pending.put(write.getKey(), write.getValue());
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+    
+    /**
+     * Flush the pending writes of the given table if the given item has a
+     * pending write or one being flushed, so that a write sent straight to
+     * DynamoDB is applied after it
+     */
+    private void flushIfPending(String tableName, String uniqueId) {
+        if (findPendingWrite(tableName, uniqueId) != null) {
+            flush(tableName);
+        }
+    }
+    
+    private void addPendingWrite(final String tableName, String uniqueId, PendingWrite pendingWrite) {
+        int pendingCount;
+        synchronized (pendingWrites) {
+            LinkedHashMap<String, PendingWrite> pending = getPendingWrites(tableName);
+            
+            // Only the last write of an item is kept, moved to the end of the
+            // batch
+            pending.remove(uniqueId);
+            pending.put(uniqueId, pendingWrite);
+            pendingCount = pending.size();
+        }
+        
+        if (pendingCount >= MAX_PENDING_WRITES) {
+            flush(tableName);
+        } else if (pendingCount % MAX_BATCH_WRITE_ITEMS == 0) {
+            flushExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush(tableName);
+                }
+            });
+        }
+    }
+    
+    /**
+     * The latest write of the given item not yet written to DynamoDB
+     */
+    private PendingWrite findPendingWrite(String tableName, String uniqueId) {
+        synchronized (pendingWrites) {
+            Map<String, PendingWrite> pending = pendingWrites.get(tableName);
+            if (pending != null && pending.containsKey(uniqueId)) {
+                return pending.get(uniqueId);
+            }
+            
+            Map<String, PendingWrite> flushing = flushingWrites.get(tableName);
+            if (flushing != null) {
+                return flushing.get(uniqueId);
+            }
+        }
+        return null;
+    }
+    
+    private LinkedHashMap<String, PendingWrite> getPendingWrites(String tableName) {
+        LinkedHashMap<String, PendingWrite> pending = pendingWrites.get(tableName);
+        if (pending == null) {
+            pending = new LinkedHashMap<String, PendingWrite>();
+            pendingWrites.put(tableName, pending);
+        }
+        return pending;
+    }
+    
+    private Object getItemLock(String tableName, String uniqueId) {
+        int hash = 31 * tableName.hashCode() + uniqueId.hashCode();
+        return itemLocks[(hash & Integer.MAX_VALUE) % itemLocks.length];
+    }
+    
+    private String getUniqueId(Map<String, AttributeValue> item) {
+        return item.get(AttributeKey.UUID).getS();
+    }
+    
+    private HashMap<String, AttributeValue> getPrimaryKey(String uniqueId) {
+        HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+        primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(uniqueId));
+        return primaryKey;
+    }
+    
+    /**
+     * A put or a delete of an item not yet written to DynamoDB
+     */
+    private static class PendingWrite {
+        
+        private final Map<String, AttributeValue> item;
+        
+        private final boolean isDelete;
+        
+        PendingWrite(Map<String, AttributeValue> item) {
+            this(item, false);
+        }
+        
+        PendingWrite(Map<String, AttributeValue> item, boolean isDelete) {
+            this.item = item;
+            this.isDelete = isDelete;
+        }
+        
+        boolean isDelete() {
+            return isDelete;
+        }
+        
+        /**
+         * The item as it will be once written, an empty item if it is deleted
+         */
+        Map<String, AttributeValue> getItem() {
+            if (isDelete) {
+                return Collections.emptyMap();
+            }
+            return item;
+        }
+        
+        WriteRequest getWriteRequest() {
+            if (isDelete) {
+                return new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(item));
+            }
+            return new WriteRequest().withPutRequest(new PutRequest().withItem(item));
+        }
+    }
+}
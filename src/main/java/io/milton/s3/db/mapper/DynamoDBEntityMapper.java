@@ -22,51 +22,358 @@ import io.milton.s3.model.Folder;
 import io.milton.s3.util.AttributeKey;
 import io.milton.s3.util.DateUtils;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeAction;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
 
 public class DynamoDBEntityMapper {
+    
+    /**
+     * The attributes read to convert an item to an entity, in both the
+     * legacy and the compact schema
+     */
+    public static final String[] ENTITY_ATTRIBUTES = { AttributeKey.UUID, AttributeKey.ENTITY_NAME,
+            AttributeKey.PARENT_UUID, AttributeKey.IS_DIRECTORY, AttributeKey.FILE_SIZE,
+            AttributeKey.CONTENT_TYPE, AttributeKey.CREATED_DATE, AttributeKey.MODIFIED_DATE,
+            AttributeKey.COMPACT_TYPE, AttributeKey.COMPACT_FILE_SIZE, AttributeKey.COMPACT_CONTENT_TYPE,
+            AttributeKey.COMPACT_CREATED_DATE, AttributeKey.COMPACT_MODIFIED_DATE,
+            AttributeKey.CHILD_COUNT, AttributeKey.FILE_COUNT, AttributeKey.TOTAL_BYTES, 
+            AttributeKey.REVISION };
 
-	public static List<Entity> convertItemsToEntities(Folder parent, List<Map<String, AttributeValue>> items) {
-        if (items.isEmpty()) {
-            Collections.emptyList();
+	/**
+	 * Convert the items to entities one by one while iterating, so that only
+	 * the entities are kept in memory and not the whole raw result
+	 * 
+	 * @param parent
+	 * @param items
+	 * @return a list of entities
+	 */
+	public static List<Entity> convertItemsToEntities(Folder parent, Iterator<Map<String, AttributeValue>> items) {
+        Iterator<Entity> entities = iterateItemsAsEntities(parent, items);
+        if (!entities.hasNext()) {
+            return Collections.emptyList();
         }
         
         List<Entity> childrens = new ArrayList<Entity>();
-        for (Map<String, AttributeValue> item : items) {
-        	Entity entity = convertItemToEntity(parent, item);
-            childrens.add(entity);
+        while (entities.hasNext()) {
+            childrens.add(entities.next());
         }
-        
         return childrens;
     }
+	
+	/**
+	 * Convert the items to entities lazily, an item being read & converted
+	 * only when its entity is asked for. The empty items are skipped.
+	 * 
+	 * @param parent
+	 * @param items
+	 * @return an iterator over the entities
+	 */
+	public static Iterator<Entity> iterateItemsAsEntities(final Folder parent, 
+	        final Iterator<Map<String, AttributeValue>> items) {
+	    return new Iterator<Entity>() {
+	        
+	        private Entity nextEntity;
+	        
+	        @Override
+	        public boolean hasNext() {
+	            while (nextEntity == null && items.hasNext()) {
+	                nextEntity = convertItemToEntity(parent, items.next());
+	            }
+	            return nextEntity != null;
+	        }
+	        
+	        @Override
+	        public Entity next() {
+	            if (!hasNext()) {
+	                throw new NoSuchElementException();
+	            }
+	            Entity entity = nextEntity;
+	            nextEntity = null;
+	            return entity;
+	        }
+	        
+	        @Override
+	        public void remove() {
+	            throw new UnsupportedOperationException("Entities are read-only");
+	        }
+	    };
+	}
     
+	/**
+	 * Convert an item to an entity. Every attribute is read from its compact
+	 * form if the item has it, otherwise from its legacy form, so that items
+	 * of both schemas and partially migrated items can be read.
+	 * 
+	 * @param parent
+	 * @param item
+	 * @return the entity, or null if the item is empty
+	 */
 	public static Entity convertItemToEntity(Folder parent, Map<String, AttributeValue> item) {
 	    if (item == null || item.isEmpty()) {
 	        return null;
 	    }
 	    
-    	Date createdDate = DateUtils.dateFromString(item.get(AttributeKey.CREATED_DATE).getS());
-        Date modifiedDate = DateUtils.dateFromString(item.get(AttributeKey.MODIFIED_DATE).getS());
+    	Date createdDate = getDate(item, AttributeKey.COMPACT_CREATED_DATE, AttributeKey.CREATED_DATE);
+        Date modifiedDate = getDate(item, AttributeKey.COMPACT_MODIFIED_DATE, AttributeKey.MODIFIED_DATE);
         
         String uniqueId = item.get(AttributeKey.UUID).getS();
         String entityName = item.get(AttributeKey.ENTITY_NAME).getS();
-        if (Integer.valueOf(item.get(AttributeKey.IS_DIRECTORY).getN()) == 1) {
+        if (isDirectory(item)) {
 			Folder folder = new Folder(UUID.fromString(uniqueId), entityName,
 					createdDate, modifiedDate, parent);
+			folder.setChildCount(getLong(item, AttributeKey.CHILD_COUNT));
+			folder.setFileCount(getLong(item, AttributeKey.FILE_COUNT));
+			folder.setTotalBytes(getLong(item, AttributeKey.TOTAL_BYTES));
             return folder;
         } else {
 			File file = new File(UUID.fromString(uniqueId), entityName,
 					createdDate, modifiedDate, parent);
-            file.setContentType(item.get(AttributeKey.CONTENT_TYPE).getS());
-            file.setSize(new Long(item.get(AttributeKey.FILE_SIZE).getN()));
+			AttributeValue contentType = item.containsKey(AttributeKey.COMPACT_CONTENT_TYPE) 
+			        ? item.get(AttributeKey.COMPACT_CONTENT_TYPE) : item.get(AttributeKey.CONTENT_TYPE);
+			if (contentType != null) {
+			    file.setContentType(contentType.getS());
+			}
+			AttributeValue fileSize = item.containsKey(AttributeKey.COMPACT_FILE_SIZE) 
+			        ? item.get(AttributeKey.COMPACT_FILE_SIZE) : item.get(AttributeKey.FILE_SIZE);
+            file.setSize(Long.parseLong(fileSize.getN()));
+            AttributeValue revision = item.get(AttributeKey.REVISION);
+            if (revision != null) {
+                file.setRevision(revision.getS());
+            }
             return file;
         }
     }
+	
+	/**
+	 * Convert an entity to an item of the compact schema
+	 * 
+	 * @param entity
+	 * @return the item
+	 */
+	public static Map<String, AttributeValue> convertEntityToCompactItem(Entity entity) {
+	    Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+	    item.put(AttributeKey.UUID, new AttributeValue().withS(entity.getId().toString()));
+	    item.put(AttributeKey.ENTITY_NAME, new AttributeValue().withS(entity.getName()));
+	    
+	    String parentUniqueId = AttributeKey.NOT_EXIST;
+	    if (entity.getParent() != null) {
+	        parentUniqueId = entity.getParent().getId().toString();
+	    }
+	    item.put(AttributeKey.PARENT_UUID, new AttributeValue().withS(parentUniqueId));
+	    item.put(AttributeKey.COMPACT_TYPE, getType(entity.isDirectory()));
+	    
+	    // Folders have no size & content type
+	    if (entity instanceof File) {
+	        File file = (File) entity;
+	        item.put(AttributeKey.COMPACT_FILE_SIZE, new AttributeValue().withN(Long.toString(file.getSize())));
+	        if (StringUtils.isNotEmpty(file.getContentType())) {
+	            item.put(AttributeKey.COMPACT_CONTENT_TYPE, new AttributeValue().withS(file.getContentType()));
+	        }
+	    }
+	    putRevision(item, entity);
+	    
+	    item.put(AttributeKey.COMPACT_CREATED_DATE, getDate(entity.getCreatedDate()));
+	    item.put(AttributeKey.COMPACT_MODIFIED_DATE, getDate(entity.getModifiedDate()));
+	    putFolderAggregates(item, entity);
+	    return item;
+	}
+	
+	/**
+	 * Add the aggregates of the given entity to its item if it is a folder,
+	 * so that storing a folder again keeps them. Missing aggregates are 0.
+	 * 
+	 * @param item
+	 * @param entity
+	 */
+	public static void putFolderAggregates(Map<String, AttributeValue> item, Entity entity) {
+	    if (!(entity instanceof Folder)) {
+	        return;
+	    }
+	    
+	    Folder folder = (Folder) entity;
+	    putLong(item, AttributeKey.CHILD_COUNT, folder.getChildCount());
+	    putLong(item, AttributeKey.FILE_COUNT, folder.getFileCount());
+	    putLong(item, AttributeKey.TOTAL_BYTES, folder.getTotalBytes());
+	}
+	
+	/**
+	 * Add the revision of the given entity to its item if it is a file whose
+	 * content was replaced
+	 * 
+	 * @param item
+	 * @param entity
+	 */
+	public static void putRevision(Map<String, AttributeValue> item, Entity entity) {
+	    if (entity instanceof File && ((File) entity).getRevision() != null) {
+	        item.put(AttributeKey.REVISION, new AttributeValue().withS(((File) entity).getRevision()));
+	    }
+	}
+	
+	/**
+	 * Rewrite the legacy attributes of an item in their compact form, keeping
+	 * the other attributes as they are
+	 * 
+	 * @param item
+	 * @return the compact item, or null if the item has no legacy attribute
+	 */
+	public static Map<String, AttributeValue> convertItemToCompactItem(Map<String, AttributeValue> item) {
+	    if (!item.containsKey(AttributeKey.IS_DIRECTORY) && !item.containsKey(AttributeKey.FILE_SIZE)
+	            && !item.containsKey(AttributeKey.CONTENT_TYPE) && !item.containsKey(AttributeKey.CREATED_DATE)
+	            && !item.containsKey(AttributeKey.MODIFIED_DATE)) {
+	        return null;
+	    }
+	    
+	    Map<String, AttributeValue> compactItem = new HashMap<String, AttributeValue>(item);
+	    compactItem.remove(AttributeKey.IS_DIRECTORY);
+	    compactItem.remove(AttributeKey.FILE_SIZE);
+	    compactItem.remove(AttributeKey.CONTENT_TYPE);
+	    compactItem.remove(AttributeKey.CREATED_DATE);
+	    compactItem.remove(AttributeKey.MODIFIED_DATE);
+	    
+	    boolean isDirectory = isDirectory(item);
+	    compactItem.put(AttributeKey.COMPACT_TYPE, getType(isDirectory));
+	    if (!isDirectory) {
+	        if (!compactItem.containsKey(AttributeKey.COMPACT_FILE_SIZE) && item.containsKey(AttributeKey.FILE_SIZE)) {
+	            compactItem.put(AttributeKey.COMPACT_FILE_SIZE, item.get(AttributeKey.FILE_SIZE));
+	        }
+	        AttributeValue contentType = item.get(AttributeKey.CONTENT_TYPE);
+	        if (!compactItem.containsKey(AttributeKey.COMPACT_CONTENT_TYPE) && contentType != null 
+	                && !AttributeKey.NOT_EXIST.equals(contentType.getS())) {
+	            compactItem.put(AttributeKey.COMPACT_CONTENT_TYPE, contentType);
+	        }
+	    }
+	    
+	    Date createdDate = getDate(item, AttributeKey.COMPACT_CREATED_DATE, AttributeKey.CREATED_DATE);
+	    if (createdDate != null) {
+	        compactItem.put(AttributeKey.COMPACT_CREATED_DATE, getDate(createdDate));
+	    }
+	    Date modifiedDate = getDate(item, AttributeKey.COMPACT_MODIFIED_DATE, AttributeKey.MODIFIED_DATE);
+	    if (modifiedDate != null) {
+	        compactItem.put(AttributeKey.COMPACT_MODIFIED_DATE, getDate(modifiedDate));
+	    }
+	    return compactItem;
+	}
+	
+	/**
+	 * The updates setting the modified date of an item in the given schema,
+	 * removing the other form of the attribute
+	 * 
+	 * @param modifiedDate
+	 * @param isCompactSchema
+	 * @return the attribute updates
+	 */
+	public static Map<String, AttributeValueUpdate> convertModifiedDateToUpdates(Date modifiedDate, 
+	        boolean isCompactSchema) {
+	    Map<String, AttributeValueUpdate> updateItems = new HashMap<String, AttributeValueUpdate>();
+	    if (isCompactSchema) {
+	        updateItems.put(AttributeKey.COMPACT_MODIFIED_DATE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.PUT).withValue(getDate(modifiedDate)));
+	        updateItems.put(AttributeKey.MODIFIED_DATE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.DELETE));
+	    } else {
+	        updateItems.put(AttributeKey.MODIFIED_DATE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.PUT).withValue(new AttributeValue()
+	            .withS(DateUtils.dateToString(modifiedDate))));
+	        updateItems.put(AttributeKey.COMPACT_MODIFIED_DATE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.DELETE));
+	    }
+	    return updateItems;
+	}
+	
+	/**
+	 * The updates replacing the content attributes of a file in the given
+	 * schema: size, content type, modified date & revision
+	 * 
+	 * @param file
+	 * @param isCompactSchema
+	 * @return the attribute updates
+	 */
+	public static Map<String, AttributeValueUpdate> convertContentToUpdates(File file, 
+	        boolean isCompactSchema) {
+	    Map<String, AttributeValueUpdate> updateItems = convertModifiedDateToUpdates(file.getModifiedDate(), 
+	            isCompactSchema);
+	    AttributeValue size = new AttributeValue().withN(Long.toString(file.getSize()));
+	    AttributeValue contentType = new AttributeValue().withS(StringUtils.isNotEmpty(file.getContentType()) 
+	            ? file.getContentType() : AttributeKey.NOT_EXIST);
+	    if (isCompactSchema) {
+	        updateItems.put(AttributeKey.COMPACT_FILE_SIZE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.PUT).withValue(size));
+	        updateItems.put(AttributeKey.FILE_SIZE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.DELETE));
+	        updateItems.put(AttributeKey.COMPACT_CONTENT_TYPE, StringUtils.isNotEmpty(file.getContentType()) 
+	            ? new AttributeValueUpdate().withAction(AttributeAction.PUT).withValue(contentType) 
+	            : new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+	        updateItems.put(AttributeKey.CONTENT_TYPE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.DELETE));
+	    } else {
+	        updateItems.put(AttributeKey.FILE_SIZE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.PUT).withValue(size));
+	        updateItems.put(AttributeKey.COMPACT_FILE_SIZE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.DELETE));
+	        updateItems.put(AttributeKey.CONTENT_TYPE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.PUT).withValue(contentType));
+	        updateItems.put(AttributeKey.COMPACT_CONTENT_TYPE, new AttributeValueUpdate()
+	            .withAction(AttributeAction.DELETE));
+	    }
+	    updateItems.put(AttributeKey.REVISION, file.getRevision() != null 
+	            ? new AttributeValueUpdate().withAction(AttributeAction.PUT)
+	                .withValue(new AttributeValue().withS(file.getRevision())) 
+	            : new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+	    return updateItems;
+	}
+	
+	private static boolean isDirectory(Map<String, AttributeValue> item) {
+	    AttributeValue type = item.get(AttributeKey.COMPACT_TYPE);
+	    if (type != null) {
+	        return type.getB().get(0) == AttributeKey.TYPE_FOLDER;
+	    }
+	    return Integer.valueOf(item.get(AttributeKey.IS_DIRECTORY).getN()) == 1;
+	}
+	
+	private static AttributeValue getType(boolean isDirectory) {
+	    byte[] type = { isDirectory ? AttributeKey.TYPE_FOLDER : AttributeKey.TYPE_FILE };
+	    return new AttributeValue().withB(ByteBuffer.wrap(type));
+	}
+	
+	private static Date getDate(Map<String, AttributeValue> item, String compactName, String legacyName) {
+	    AttributeValue compactDate = item.get(compactName);
+	    if (compactDate != null) {
+	        return new Date(Long.parseLong(compactDate.getN()));
+	    }
+	    
+	    AttributeValue legacyDate = item.get(legacyName);
+	    if (legacyDate != null) {
+	        return DateUtils.dateFromString(legacyDate.getS());
+	    }
+	    return null;
+	}
+	
+	private static long getLong(Map<String, AttributeValue> item, String name) {
+	    AttributeValue value = item.get(name);
+	    return value != null ? Long.parseLong(value.getN()) : 0L;
+	}
+	
+	private static void putLong(Map<String, AttributeValue> item, String name, long value) {
+	    if (value != 0) {
+	        item.put(name, new AttributeValue().withN(Long.toString(value)));
+	    }
+	}
+	
+	private static AttributeValue getDate(Date date) {
+	    return new AttributeValue().withN(Long.toString(date.getTime()));
+	}
 }
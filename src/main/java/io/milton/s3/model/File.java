@@ -21,9 +21,21 @@ import java.util.UUID;
 
 public class File extends Entity {
     
+    /**
+     * Size of a file being uploaded without content length, known once it is
+     * uploaded
+     */
+    public static final long UNKNOWN_SIZE = -1;
+    
     private long size;
     
     private String contentType;
+    
+    /**
+     * Revision of the content, part of the key of its object so that a new
+     * content is stored under a new key. Null for a content never replaced.
+     */
+    private String revision;
 
     public File(String fileName, Folder parent) {
         super(fileName, parent);
@@ -52,6 +64,14 @@ public class File extends Entity {
         this.contentType = contentType;
     }
     
+    public String getRevision() {
+        return revision;
+    }
+    
+    public void setRevision(String revision) {
+        this.revision = revision;
+    }
+    
     @Override
 	public String toString() {
 		return "Entity [id=" + getId() + ", name=" + getName()
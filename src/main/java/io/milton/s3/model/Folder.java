@@ -21,6 +21,18 @@ import java.util.UUID;
 
 public class Folder extends Entity {
     
+    /**
+     * Number of direct children
+     */
+    private long childCount;
+    
+    /**
+     * Number of files & bytes of all the files under this folder
+     */
+    private long fileCount;
+    
+    private long totalBytes;
+    
     public Folder(String folderName, Folder parent) {
         super(folderName, parent);
     }
@@ -40,4 +52,28 @@ public class Folder extends Entity {
         Folder folder = new Folder(folderName, this);
         return folder;
     }
+    
+    public long getChildCount() {
+        return childCount;
+    }
+    
+    public void setChildCount(long childCount) {
+        this.childCount = childCount;
+    }
+    
+    public long getFileCount() {
+        return fileCount;
+    }
+    
+    public void setFileCount(long fileCount) {
+        this.fileCount = fileCount;
+    }
+    
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+    
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
 }
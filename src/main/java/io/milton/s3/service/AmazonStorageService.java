@@ -17,10 +17,15 @@
 package io.milton.s3.service;
 
 import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.s3.model.Bucket;
 
@@ -35,6 +40,34 @@ public interface AmazonStorageService {
      */
     Bucket createBucket(String bucketName);
     
+    /**
+     * Create the bucket & its table in the background, checking both
+     * concurrently. Does nothing if the bucket is already starting or ready.
+     * 
+     * @param bucketName
+     *              - the bucket name
+     * @return the bucket, or null once it could not be created
+     */
+    Future<Bucket> startBucket(String bucketName);
+    
+    /**
+     * The readiness of the bucket started by startBucket
+     * 
+     * @param bucketName
+     */
+    BucketState getBucketState(String bucketName);
+    
+    /**
+     * Wait until the bucket started by startBucket is ready, at most the given
+     * time
+     * 
+     * @param bucketName
+     * @param timeout
+     * @param unit
+     * @return the readiness of the bucket, STARTING if it is still not ready
+     */
+    BucketState awaitBucket(String bucketName, long timeout, TimeUnit unit);
+    
 	/**
 	 * Remove storage database in Amazon S3
 	 * 
@@ -47,19 +80,125 @@ public interface AmazonStorageService {
     
     Entity findEntityByUniqueId(String bucketName, Entity entity);
     
+    /**
+     * Read the given folder again with its current aggregates (child count,
+     * file count & total bytes), e.g. for the cached root folder
+     * 
+     * @param bucketName
+     * @param folder
+     * @return the folder, or null if it does not exist anymore
+     */
+    Folder findFolderAggregates(String bucketName, Folder folder);
+    
+    /**
+     * List the files & folders of the given folder
+     * 
+     * @param bucketName
+     * @param parent
+     * @return the children, or null if they could not all be read, never a
+     *         part of them
+     */
     List<Entity> findEntityByParent(String bucketName, Folder parent);
     
+    /**
+     * Find the child of the given parent by its name without listing the
+     * parent
+     * 
+     * @param bucketName
+     * @param parent
+     * @param entityName
+     * @return the child, or null if it does not exist
+     */
+    Entity findEntityByName(String bucketName, Folder parent, String entityName);
+    
+    /**
+     * Resolve a path relative to the root folder of the bucket
+     * 
+     * @param bucketName
+     * @param path
+     *              - the names of the entities separated by '/'
+     * @return the entity at the end of the path, or null if it does not exist
+     */
+    Entity findEntityByPath(String bucketName, String path);
+    
     boolean putEntity(String bucketName, Entity entity, InputStream inputStream);
     
-    boolean copyEntityByUniqueId(String bucketName, Entity entity, Folder newParent, 
+    /**
+     * Replace the content of an existing file, keeping its unique UUID, e.g.
+     * for a PUT over the file. The content is stored under a new revision of
+     * the file; the size, modified date & revision of the file are updated.
+     * 
+     * @param bucketName
+     * @param file
+     *              - the file, with its parent & new size
+     * @param inputStream
+     * @return FALSE if the content or the file could not be stored
+     */
+    boolean replaceEntity(String bucketName, File file, InputStream inputStream);
+    
+    /**
+     * Copy a file, or a folder with everything under it, with server-side
+     * copies. The copies get new unique UUIDs.
+     *
+     * @param bucketName
+     * @param entity
+     *              - the file or folder, with its parent
+     * @param newParent
+     * @param newBucketName
+     *              - the bucket of the new parent, the same bucket if empty
+     * @param newName
+     * @return TRUE if everything was copied
+     */
+    boolean copyEntityByUniqueId(String bucketName, Entity entity, Folder newParent,
             String newBucketName, String newName);
     
     boolean updateEntityByUniqueId(String bucketName, Entity entity, Folder newParent, 
             String newEntityName, boolean isRenamingAction);
     
-    boolean deleteEntityByUniqueId(String bucketName, String uniqueId);
+    /**
+     * Delete a file, or a folder with everything under it
+     * 
+     * @param bucketName
+     * @param entity
+     *              - the file or folder, with its parent
+     * @return TRUE if everything was deleted
+     */
+    boolean deleteEntityByUniqueId(String bucketName, Entity entity);
     
     boolean downloadEntityByUniqueId(String bucketName, String keyNotAvailable, java.io.File destinationFile);
     
     InputStream downloadEntityByUniqueId(String bucketName, String keyName);
+    
+    /**
+     * Download the given byte range of a file
+     * 
+     * @param bucketName
+     * @param keyName
+     * @param start
+     *              - the position of the first byte
+     * @param finish
+     *              - the position of the last byte, included
+     * @return the content of the range, or null if it could not be read
+     */
+    InputStream downloadEntityByUniqueId(String bucketName, String keyName, long start, long finish);
+    
+    /**
+     * Send the given byte range of a file to the given stream, from the local
+     * cache if the file is small enough to be cached
+     * 
+     * @param bucketName
+     * @param keyName
+     * @param size
+     *              - the size of the file
+     * @param start
+     *              - the position of the first byte
+     * @param finish
+     *              - the position of the last byte, included
+     * @param outputStream
+     * @return FALSE if the file could not be read, nothing being sent
+     * @throws IOException
+     *              if the bytes could not be sent
+     */
+    boolean sendEntityByUniqueId(String bucketName, String keyName, long size, long start, long finish, 
+            OutputStream outputStream) throws IOException;
 }
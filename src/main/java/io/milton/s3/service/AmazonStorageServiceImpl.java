@@ -20,25 +20,97 @@ import io.milton.s3.AmazonS3Manager;
 import io.milton.s3.AmazonS3ManagerImpl;
 import io.milton.s3.DynamoDBManager;
 import io.milton.s3.DynamoDBManagerImpl;
+import io.milton.s3.cache.DiskObjectCache;
+import io.milton.s3.cache.OffHeapObjectCache;
 import io.milton.s3.model.Entity;
 import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
+import io.milton.s3.util.NamedThreadFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 public class AmazonStorageServiceImpl implements AmazonStorageService {
 	
+    private static final Logger LOG = LoggerFactory.getLogger(AmazonStorageServiceImpl.class);
+    
+    /**
+     * Number of folder listings & file deletions run concurrently by a
+     * folder delete
+     */
+    private static final int DELETE_CONCURRENCY = 16;
+    
+    /**
+     * Number of folder listings & server-side object copies run concurrently
+     * by a folder copy
+     */
+    private static final int COPY_CONCURRENCY = 32;
+    
+    /**
+     * Default directory, under the temporary directory, and size of the local
+     * cache of the downloaded files
+     */
+    private static final String CACHE_DIRECTORY_NAME = "milton-s3-cache";
+    private static final long CACHE_BYTES = 1024L * 1024 * 1024;
+    
+    /**
+     * Default size of the memory cache of the small files, and maximum size
+     * of a file kept in memory
+     */
+    private static final long MEMORY_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final int MEMORY_CACHE_MAX_OBJECT_BYTES = 64 * 1024;
+    
+    /**
+     * Size of the buffer copying a download to the response
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * Number of listed files whose metadata are read in a single batch
+     */
+    private static final int LISTING_BATCH_SIZE = 100;
+    
+    /**
+     * Separates the unique UUID of a file from its revision in the key of its
+     * object, it never occurs in a UUID
+     */
+    private static final char REVISION_SEPARATOR = '.';
+    
     /**
      * Amazon DynamoDB Storage
      */
@@ -49,53 +121,273 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
      */
     private final AmazonS3Manager amazonS3Manager;
     
+    /**
+     * Root folder of every bucket, resolved once for the process lifetime
+     */
+    private final ConcurrentMap<String, Folder> rootFolders = new ConcurrentHashMap<String, Folder>();
+    
+    /**
+     * Background creation of the buckets & their tables
+     */
+    private final ConcurrentMap<String, Future<Bucket>> bucketStartups = 
+            new ConcurrentHashMap<String, Future<Bucket>>();
+    
+    private final ExecutorService startupExecutor = Executors.newCachedThreadPool(
+            new NamedThreadFactory("bucket-startup"));
+    
+    /**
+     * Local disk cache of the downloaded files, null if disabled
+     */
+    private final DiskObjectCache objectCache;
+    
+    /**
+     * Off-heap cache of the small files, null if disabled
+     */
+    private final OffHeapObjectCache memoryCache;
+    
+    private final SubtreeDeleter subtreeDeleter;
+    
+    private final SubtreeCopier subtreeCopier;
+    
     public AmazonStorageServiceImpl(Region region) {
-        dynamoDBManager = new DynamoDBManagerImpl(region);
+        this(region, 0);
+    }
+    
+    /**
+     * @param region
+     *            - The region of the bucket & table
+     * @param writeBehindMillis
+     *            - The maximum time a metadata write stays pending before it is
+     *            written in batch, writes are synchronous if it is 0
+     */
+    public AmazonStorageServiceImpl(Region region, long writeBehindMillis) {
+        this(region, writeBehindMillis, false);
+    }
+    
+    /**
+     * @param region
+     *            - The region of the bucket & table
+     * @param writeBehindMillis
+     *            - The maximum time a metadata write stays pending before it is
+     *            written in batch, writes are synchronous if it is 0
+     * @param isCompactSchema
+     *            - TRUE to write the metadata in the compact schema
+     */
+    public AmazonStorageServiceImpl(Region region, long writeBehindMillis, boolean isCompactSchema) {
+        this(region, writeBehindMillis, isCompactSchema, 
+                new java.io.File(System.getProperty("java.io.tmpdir"), CACHE_DIRECTORY_NAME), CACHE_BYTES, 
+                MEMORY_CACHE_BYTES);
+    }
+    
+    /**
+     * @param region
+     *            - The region of the bucket & table
+     * @param writeBehindMillis
+     *            - The maximum time a metadata write stays pending before it is
+     *            written in batch, writes are synchronous if it is 0
+     * @param isCompactSchema
+     *            - TRUE to write the metadata in the compact schema
+     * @param cacheDirectory
+     *            - The directory of the local cache of the downloaded files
+     * @param cacheBytes
+     *            - The maximum size of the local cache, no cache if it is 0
+     * @param memoryCacheBytes
+     *            - The maximum size of the memory cache of the small files, no
+     *            cache if it is 0
+     */
+    public AmazonStorageServiceImpl(Region region, long writeBehindMillis, boolean isCompactSchema, 
+            java.io.File cacheDirectory, long cacheBytes, long memoryCacheBytes) {
+        dynamoDBManager = new DynamoDBManagerImpl(region, writeBehindMillis, isCompactSchema);
         amazonS3Manager = new AmazonS3ManagerImpl(region);
+        objectCache = cacheBytes > 0 ? new DiskObjectCache(cacheDirectory, cacheBytes, amazonS3Manager) : null;
+        memoryCache = memoryCacheBytes > 0 
+                ? new OffHeapObjectCache(memoryCacheBytes, MEMORY_CACHE_MAX_OBJECT_BYTES) : null;
+        subtreeDeleter = new SubtreeDeleter(dynamoDBManager, amazonS3Manager, 
+                Executors.newFixedThreadPool(DELETE_CONCURRENCY, new NamedThreadFactory("subtree-delete")), 
+                new SubtreeDeleter.DeleteListener() {
+                    @Override
+                    public void onDeleted(String bucketName, String keyName) {
+                        invalidateCache(bucketName, keyName);
+                    }
+                });
+        subtreeCopier = new SubtreeCopier(dynamoDBManager, amazonS3Manager, 
+                Executors.newFixedThreadPool(COPY_CONCURRENCY, new NamedThreadFactory("subtree-copy")));
     }
     
     @Override
-    public Bucket createBucket(String bucketName) {
+    public Bucket createBucket(final String bucketName) {
+        // Checks the table while the bucket is checked, both may have to be
+        // created
+        Future<Boolean> table = startupExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return dynamoDBManager.createTable(bucketName);
+            }
+        });
+        
         Bucket bucket = amazonS3Manager.createBucket(bucketName);
-        if (bucket == null) {
+        boolean isSuccessful = false;
+        try {
+            isSuccessful = table.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while creating table " + bucketName);
+        } catch (ExecutionException ee) {
+            LOG.error("Could not create table " + bucketName, ee.getCause());
+        }
+        
+        if (bucket == null || !isSuccessful) {
         	return null;
         }
+        return bucket;
+    }
+    
+    @Override
+    public synchronized Future<Bucket> startBucket(final String bucketName) {
+        Future<Bucket> startup = bucketStartups.get(bucketName);
+        if (startup != null && getBucketState(startup) != BucketState.FAILED) {
+            return startup;
+        }
         
-        boolean isSuccessful = dynamoDBManager.createTable(bucketName);
-        if (isSuccessful) {
-    		return bucket;
-    	}
-        return null;
+        startup = startupExecutor.submit(new Callable<Bucket>() {
+            @Override
+            public Bucket call() throws Exception {
+                long startTime = System.currentTimeMillis();
+                Bucket bucket = createBucket(bucketName);
+                if (bucket != null) {
+                    LOG.info("Bucket " + bucketName + " is ready after " 
+                            + (System.currentTimeMillis() - startTime) + " ms");
+                } else {
+                    LOG.error("Could not start bucket " + bucketName);
+                }
+                return bucket;
+            }
+        });
+        bucketStartups.put(bucketName, startup);
+        return startup;
+    }
+    
+    @Override
+    public BucketState getBucketState(String bucketName) {
+        Future<Bucket> startup = bucketStartups.get(bucketName);
+        if (startup == null) {
+            return BucketState.FAILED;
+        }
+        return getBucketState(startup);
     }
     
     @Override
-	public void deleteBucket(String bucketName) {
+    public BucketState awaitBucket(String bucketName, long timeout, TimeUnit unit) {
+        Future<Bucket> startup = bucketStartups.get(bucketName);
+        if (startup == null) {
+            return BucketState.FAILED;
+        }
+        
+        try {
+            return startup.get(timeout, unit) != null ? BucketState.READY : BucketState.FAILED;
+        } catch (TimeoutException te) {
+            return BucketState.STARTING;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return getBucketState(startup);
+        } catch (ExecutionException ee) {
+            return BucketState.FAILED;
+        } catch (CancellationException ce) {
+            return BucketState.FAILED;
+        }
+    }
+    
+    private BucketState getBucketState(Future<Bucket> startup) {
+        if (!startup.isDone()) {
+            return BucketState.STARTING;
+        }
+        
+        try {
+            return startup.get() != null ? BucketState.READY : BucketState.FAILED;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            LOG.error("Could not start bucket", ee.getCause());
+        } catch (CancellationException ce) {
+            LOG.warn("Startup of bucket was cancelled");
+        }
+        return BucketState.FAILED;
+    }
+    
+    @Override
+	public void deleteBucket(final String bucketName) {
+        // Drops the table while the objects are purged, its items don't
+        // need to be deleted one by one
+        Future<Boolean> table = startupExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return dynamoDBManager.deleteTable(bucketName);
+            }
+        });
+        
     	// Deletes the specified bucket in Amazon S3
-    	if (amazonS3Manager.deleteBucket(bucketName)) {
-    		dynamoDBManager.deleteTable(bucketName);
+    	if (!amazonS3Manager.deleteBucket(bucketName)) {
+    	    LOG.warn("Could not delete bucket " + bucketName);
     	}
+    	try {
+    	    if (!table.get()) {
+    	        LOG.warn("Could not delete table " + bucketName);
+    	    }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while deleting table " + bucketName);
+        } catch (ExecutionException ee) {
+            LOG.error("Could not delete table " + bucketName, ee.getCause());
+        }
+    	rootFolders.remove(bucketName);
+    	bucketStartups.remove(bucketName);
 	}
     
     @Override
     public Folder findRootFolder(String bucketName) {
-        Folder rootFolder = (Folder) dynamoDBManager.findRootFolder(bucketName);
+        Folder rootFolder = rootFolders.get(bucketName);
+        if (rootFolder != null) {
+            return rootFolder;
+        }
+        
+        rootFolder = dynamoDBManager.findRootFolder(bucketName);
         if (rootFolder == null) {
-            rootFolder = new Folder("/", null);
             // Tries to create new folder for the given UUID
             // if it does not exist in Amazon S3
-            dynamoDBManager.putEntity(bucketName, rootFolder);
+            rootFolder = dynamoDBManager.createRootFolder(bucketName);
+            if (rootFolder == null) {
+                return null;
+            }
+        }
+        
+        Folder cachedFolder = rootFolders.putIfAbsent(bucketName, rootFolder);
+        if (cachedFolder != null) {
+            return cachedFolder;
         }
         return rootFolder;
     }
 
+    @Override
+    public Folder findFolderAggregates(String bucketName, Folder folder) {
+        Entity entity = dynamoDBManager.findEntityByUniqueId(bucketName, folder.getId().toString(), 
+                folder.getParent());
+        if (!(entity instanceof Folder)) {
+            return null;
+        }
+        return (Folder) entity;
+    }
+    
     @Override
     public Entity findEntityByUniqueId(String bucketName, Entity entity) {
         if (entity == null)
         	return null;
         
-        S3Object s3Object = amazonS3Manager.findEntityByUniqueKey(bucketName, entity.getId().toString());
-        if (s3Object == null)
+        // Only files are stored in Amazon S3, checks the object with a HEAD
+        // request instead of reading it
+        if (entity instanceof File 
+                && !amazonS3Manager.isExistEntity(bucketName, getAmazonS3UniqueKey(entity))) {
         	return null;
+        }
         return dynamoDBManager.findEntityByUniqueId(bucketName, entity);
     }
 
@@ -105,20 +397,33 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
     		return Collections.emptyList();
     	}
     	
-    	// Get all files of current folder have already existing in Amazon S3
-    	List<S3ObjectSummary> objectSummaries = amazonS3Manager.findEntityByPrefixKey(bucketName, 
-    	        parent.getId().toString());
+    	// Get all files of current folder have already existing in Amazon S3,
+    	// listing the objects lazily and getting the metadata of the files in
+    	// batches as the objects are listed
     	List<Entity> children = new ArrayList<Entity>();
-    	for (S3ObjectSummary objectSummary : objectSummaries) {
-    	    String uniqueId = objectSummary.getKey();
-    	    
-    	    // Search by only unique UUID of entity
-    	    uniqueId = uniqueId.substring(uniqueId.indexOf("/") + 1);
-    		File file = (File) dynamoDBManager.findEntityByUniqueId(bucketName, uniqueId, parent);
-    		if (file != null) {
-    		    file.setSize(objectSummary.getSize());
-    		    children.add(file);
-    		}
+    	Map<String, Long> fileSizes = new LinkedHashMap<String, Long>();
+    	try {
+    	    Iterator<S3ObjectSummary> objectSummaries = amazonS3Manager.iterateEntityByPrefixKey(bucketName, 
+    	            parent.getId().toString() + java.io.File.separatorChar, 
+    	            String.valueOf(java.io.File.separatorChar));
+    	    while (objectSummaries.hasNext()) {
+    	        S3ObjectSummary objectSummary = objectSummaries.next();
+    	        String objectName = objectSummary.getKey();
+    	        
+    	        // Search by only unique UUID & revision of entity
+    	        objectName = objectName.substring(objectName.indexOf(java.io.File.separatorChar) + 1);
+    	        fileSizes.put(objectName, objectSummary.getSize());
+    	        if (fileSizes.size() == LISTING_BATCH_SIZE && !addFiles(bucketName, parent, fileSizes, children)) {
+    	            return null;
+    	        }
+    	    }
+    	} catch (AmazonClientException ace) {
+    	    LOG.error("Could not list the files of folder " + parent.getName() + " in bucket " + bucketName, 
+    	            ace);
+    	    return null;
+    	}
+    	if (!addFiles(bucketName, parent, fileSizes, children)) {
+    	    return null;
     	}
     	
     	// Get all folders of current folder have already existing in Amazon DynamoDB
@@ -133,6 +438,63 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
         return children;
     }
     
+    /**
+     * Get the metadata of the listed files in a batch and add them to the
+     * children, then clear the listed files. A file is only added if the
+     * object of its current revision is listed, so that a file whose content
+     * is being replaced is listed once.
+     * 
+     * @return FALSE if the metadata could not be read
+     */
+    private boolean addFiles(String bucketName, Folder parent, Map<String, Long> fileSizes, 
+            List<Entity> children) {
+        if (fileSizes.isEmpty()) {
+            return true;
+        }
+        
+        Set<String> uniqueIds = new LinkedHashSet<String>();
+        for (String objectName : fileSizes.keySet()) {
+            int revisionIndex = objectName.indexOf(REVISION_SEPARATOR);
+            uniqueIds.add(revisionIndex < 0 ? objectName : objectName.substring(0, revisionIndex));
+        }
+        List<Entity> files = dynamoDBManager.findEntityByUniqueIds(bucketName, 
+                new ArrayList<String>(uniqueIds), parent);
+        if (files == null) {
+            LOG.error("Could not read the files of folder " + parent.getName() + " in bucket " + bucketName);
+            return false;
+        }
+        for (Entity entity : files) {
+            Long size = fileSizes.get(getObjectName(entity));
+            if (size != null) {
+                ((File) entity).setSize(size);
+                children.add(entity);
+            }
+        }
+        fileSizes.clear();
+        return true;
+    }
+    
+    @Override
+    public Entity findEntityByName(String bucketName, Folder parent, String entityName) {
+        if (parent == null) {
+            return null;
+        }
+        return dynamoDBManager.findEntityByName(bucketName, parent, entityName);
+    }
+    
+    @Override
+    public Entity findEntityByPath(String bucketName, String path) {
+        Folder rootFolder = findRootFolder(bucketName);
+        if (rootFolder == null) {
+            return null;
+        }
+        return dynamoDBManager.findEntityByPath(bucketName, rootFolder, path);
+    }
+    
+    /**
+     * Store the content of a file in Amazon S3 then its item in Amazon
+     * DynamoDB
+     */
     @Override
 	public boolean putEntity(String bucketName, Entity entity, InputStream inputStream) {
     	if (entity == null) {
@@ -140,81 +502,176 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
     	}
     	
     	// Only store file in Amazon S3
-    	if (entity instanceof File) {
-    	    String keyName = getAmazonS3UniqueKey(entity);
-    	    
-			// Additional metadata instructing Amazon S3 how to handle the
-			// uploaded data (e.g. custom user metadata, hooks for specifying
-			// content type, etc.).
-    	    ObjectMetadata metadata = new ObjectMetadata();
-    	    metadata.setContentType(((File) entity).getContentType());
-    	    
-    	    // Always set the content length, even if it's already set
-    	    metadata.setContentLength(((File) entity).getSize());
-    	    boolean isUploaded = amazonS3Manager.uploadEntity(bucketName, keyName, inputStream, metadata);
-    	    if (!isUploaded) {
-    	    	return false;
-    	    }
+    	if (entity instanceof File && !uploadContent(bucketName, (File) entity, inputStream)) {
+    	    return false;
     	}
     	
     	// Store folder as hierarchy in Amazon DynamoDB
-    	return dynamoDBManager.putEntity(bucketName, entity);
+    	if (!dynamoDBManager.putEntity(bucketName, entity)) {
+    	    // The name is taken or the item could not be stored, the
+    	    // uploaded object would never be reached
+    	    if (entity instanceof File) {
+    	        deleteContent(bucketName, getAmazonS3UniqueKey(entity));
+    	    }
+    	    return false;
+    	}
+    	return true;
 	}
     
+    /**
+     * The new content is uploaded under a new revision of the file, so under
+     * a new key, then the item is switched to it with a single atomic update.
+     * The content of a key never changes, so the caches of every node never
+     * serve a replaced content, and a failed replace leaves the file as it
+     * was. The former content is deleted once the file is switched.
+     */
+    @Override
+    public boolean replaceEntity(String bucketName, File file, InputStream inputStream) {
+        if (file == null) {
+            return false;
+        }
+        
+        String revision = file.getRevision();
+        file.setModifiedDate(new Date());
+        file.setRevision(UUID.randomUUID().toString());
+        if (!uploadContent(bucketName, file, inputStream)) {
+            file.setRevision(revision);
+            return false;
+        }
+        
+        File formerFile = dynamoDBManager.replaceEntity(bucketName, file);
+        if (formerFile == null) {
+            deleteContent(bucketName, getAmazonS3UniqueKey(file));
+            file.setRevision(revision);
+            return false;
+        }
+        deleteContent(bucketName, getAmazonS3UniqueKey(formerFile));
+        return true;
+    }
+    
+    /**
+     * Upload the content of a file under its key. A small file is kept in
+     * the memory cache as it is uploaded, its key being new.
+     * 
+     * @return FALSE if the content could not be uploaded
+     */
+    private boolean uploadContent(String bucketName, File file, InputStream inputStream) {
+	    String keyName = getAmazonS3UniqueKey(file);
+	    
+		// Additional metadata instructing Amazon S3 how to handle the
+		// uploaded data (e.g. custom user metadata, hooks for specifying
+		// content type, etc.).
+	    ObjectMetadata metadata = new ObjectMetadata();
+	    metadata.setContentType(file.getContentType());
+	    
+	    if (memoryCache != null && memoryCache.isCacheable(file.getSize())) {
+	        // Small files are kept in memory as they are uploaded
+	        byte[] content;
+	        try {
+	            content = readContent(inputStream, (int) file.getSize());
+	        } catch (IOException ioe) {
+	            LOG.error("Could not read the content of " + keyName, ioe);
+	            return false;
+	        }
+	        if (content == null) {
+	            return false;
+	        }
+	        metadata.setContentLength(content.length);
+	        if (!amazonS3Manager.uploadEntity(bucketName, keyName, new ByteArrayInputStream(content), metadata)) {
+	            return false;
+	        }
+	        memoryCache.put(bucketName, keyName, content, content.length);
+	    } else if (file.getSize() == File.UNKNOWN_SIZE) {
+	        // Streams the body through bounded buffers and stores the size
+	        // actually uploaded
+	        long size = amazonS3Manager.uploadEntityOfUnknownLength(bucketName, keyName, inputStream, 
+	                metadata);
+	        if (size < 0) {
+	            return false;
+	        }
+	        file.setSize(size);
+	    } else {
+	        // Always set the content length, even if it's already set
+	        metadata.setContentLength(file.getSize());
+	        return amazonS3Manager.uploadEntity(bucketName, keyName, inputStream, metadata);
+	    }
+	    return true;
+    }
+    
+    /**
+     * Delete an object no file refers to anymore, and its cached content
+     */
+    private void deleteContent(String bucketName, String keyName) {
+        amazonS3Manager.deleteEntity(bucketName, keyName);
+        invalidateCache(bucketName, keyName);
+    }
+    
     @Override
     public boolean copyEntityByUniqueId(String bucketName, Entity entity, Folder newParent, 
             String newBucketName, String newName) {
-        String sourceKeyName = getAmazonS3UniqueKey(entity);
-        String targetKeyName = newParent.getId().toString()
-                + java.io.File.separatorChar + entity.getId().toString();
-        
-        // Copies a source object to a new destination in Amazon S3
-        boolean isSuccessful = amazonS3Manager.copyEntity(bucketName, sourceKeyName, newBucketName, 
-                targetKeyName);
-        if (isSuccessful) {
-            entity.setParent(newParent);
-            entity.setName(newName);
-            // Store folder as hierarchy in Amazon DynamoDB
-            return dynamoDBManager.putEntity(bucketName, entity);
+        if (entity == null || newParent == null) {
+            return false;
         }
-        return false;
+        
+        // If target bucket name is null or empty, that mean copy inside current
+        // bucket.
+        String targetBucketName = StringUtils.isEmpty(newBucketName) ? bucketName : newBucketName;
+        return subtreeCopier.copy(bucketName, entity, newParent, targetBucketName, newName);
     }
 
     @Override
     public boolean updateEntityByUniqueId(String bucketName, Entity entity, Folder newParent, 
             String newEntityName, boolean isRenamingAction) {
-        if (!isRenamingAction) {
-            String sourceKeyName = getAmazonS3UniqueKey(entity);
-            String destinationKeyName = newParent.getId().toString()
-                    + java.io.File.separatorChar + entity.getId().toString();
-            
-            // We must update entity in S3 because action is moving file
-            boolean isSuccess = amazonS3Manager.copyEntity(bucketName, sourceKeyName, null, 
-                    destinationKeyName);
-            if (isSuccess == false) {
-                return false;
-            }
-            
-            // Remove old entity after moved
-            amazonS3Manager.deleteEntity(bucketName, sourceKeyName);
+        if (isRenamingAction) {
+            return dynamoDBManager.updateEntityByUniqueId(bucketName, entity, newParent,
+                    newEntityName, isRenamingAction);
         }
         
-        // Update stored entity in DynamoDB
-        return dynamoDBManager.updateEntityByUniqueId(bucketName, entity, newParent,
-                newEntityName, isRenamingAction);
+        String sourceKeyName = getAmazonS3UniqueKey(entity);
+        String destinationKeyName = getAmazonS3UniqueKey(newParent, entity);
+        
+        // We must update entity in S3 because action is moving file
+        boolean isSuccess = amazonS3Manager.copyEntity(bucketName, sourceKeyName, null, 
+                destinationKeyName);
+        if (isSuccess == false) {
+            return false;
+        }
+        
+        // Update stored entity in DynamoDB, which fails if the new name is
+        // taken in the new parent
+        if (!dynamoDBManager.updateEntityByUniqueId(bucketName, entity, newParent,
+                newEntityName, isRenamingAction)) {
+            amazonS3Manager.deleteEntity(bucketName, destinationKeyName);
+            return false;
+        }
+        
+        // Remove old entity after moved
+        amazonS3Manager.deleteEntity(bucketName, sourceKeyName);
+        invalidateCache(bucketName, sourceKeyName);
+        return true;
     }
     
     @Override
-    public boolean deleteEntityByUniqueId(String bucketName, String uniqueId) {
-        if (StringUtils.isEmpty(uniqueId)) {
+    public boolean deleteEntityByUniqueId(String bucketName, Entity entity) {
+        if (entity == null) {
             return false;
         }
         
-        // Tried to remove file based on unique UUID in Amazon S3
-        if (!amazonS3Manager.deleteEntity(bucketName, uniqueId)) {
+        // The root folder is never deleted
+        if (entity instanceof Folder) {
+            if (entity.getParent() == null) {
+                return false;
+            }
+            return subtreeDeleter.delete(bucketName, (Folder) entity);
+        }
+        
+        // Tried to remove file based on its key in Amazon S3
+        String keyName = getAmazonS3UniqueKey(entity);
+        if (!amazonS3Manager.deleteEntity(bucketName, keyName)) {
             return false;
         }
-        return dynamoDBManager.deleteEntityByUniqueId(bucketName, uniqueId);
+        invalidateCache(bucketName, keyName);
+        return dynamoDBManager.deleteEntityByUniqueId(bucketName, entity.getId().toString());
     }
 
 	@Override
@@ -228,15 +685,149 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
 		return amazonS3Manager.downloadEntity(bucketName, keyName);
 	}
 
-	private String getAmazonS3UniqueKey(Entity entity) {
-        String keyName = null;
-        if (entity.getParent() == null) {
-            keyName = entity.getId().toString();
-        } else {
-            keyName = entity.getParent().getId().toString()
-                    + java.io.File.separatorChar + entity.getId().toString();
+	@Override
+	public InputStream downloadEntityByUniqueId(String bucketName, String keyName, long start, long finish) {
+		return amazonS3Manager.downloadEntity(bucketName, keyName, start, finish);
+	}
+
+	@Override
+	public boolean sendEntityByUniqueId(String bucketName, String keyName, long size, long start, 
+	        long finish, OutputStream outputStream) throws IOException {
+	    if (memoryCache != null && memoryCache.isCacheable(size)) {
+	        ByteBuffer content = memoryCache.get(bucketName, keyName);
+	        if (content == null) {
+	            content = downloadSmallEntity(bucketName, keyName, (int) size);
+	        }
+	        if (content != null) {
+	            sendContent(content, start, finish, outputStream);
+	            return true;
+	        }
+	    }
+	    
+	    if (objectCache != null && objectCache.isCacheable(size)) {
+	        // The channel is not closed, as it would close the stream
+	        WritableByteChannel target = Channels.newChannel(outputStream);
+	        if (objectCache.transferTo(bucketName, keyName, size, start, finish, target)) {
+	            return true;
+	        }
+	    }
+	    
+	    InputStream inputStream = downloadEntityByUniqueId(bucketName, keyName, start, finish);
+	    if (inputStream == null) {
+	        return false;
+	    }
+	    try {
+	        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+	        int count;
+	        while ((count = inputStream.read(buffer)) != -1) {
+	            outputStream.write(buffer, 0, count);
+	        }
+	    } finally {
+	        inputStream.close();
+	    }
+	    return true;
+	}
+
+    private void invalidateCache(String bucketName, String keyName) {
+        if (memoryCache != null) {
+            memoryCache.invalidate(bucketName, keyName);
+        }
+        if (objectCache != null) {
+            objectCache.invalidate(bucketName, keyName);
         }
-        return keyName;
     }
+    
+    /**
+     * Download a small file whole and keep it in memory
+     * 
+     * @return the content of the file, or null if it could not be read
+     */
+    private ByteBuffer downloadSmallEntity(String bucketName, String keyName, int size) throws IOException {
+        InputStream inputStream = amazonS3Manager.downloadEntity(bucketName, keyName);
+        if (inputStream == null) {
+            return null;
+        }
+        
+        byte[] content;
+        try {
+            content = readContent(inputStream, size);
+        } finally {
+            inputStream.close();
+        }
+        if (content == null) {
+            return null;
+        }
+        memoryCache.put(bucketName, keyName, content, content.length);
+        return ByteBuffer.wrap(content);
+    }
+    
+    /**
+     * Read a stream of the given number of bytes
+     * 
+     * @return the bytes, or null if the stream is shorter or longer
+     */
+    private static byte[] readContent(InputStream inputStream, int size) throws IOException {
+        byte[] content = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            int count = inputStream.read(content, offset, size - offset);
+            if (count < 0) {
+                LOG.warn("Read " + offset + " of " + size + " bytes");
+                return null;
+            }
+            offset += count;
+        }
+        if (inputStream.read() != -1) {
+            // The content does not match its size, e.g. a larger object
+            // stored under the key since the size was read
+            LOG.warn("Read more than " + size + " bytes");
+            return null;
+        }
+        return content;
+    }
+    
+    private static void sendContent(ByteBuffer content, long start, long finish, OutputStream outputStream) 
+            throws IOException {
+        if (start >= content.limit()) {
+            return;
+        }
+        content.limit((int) Math.min(finish + 1, content.limit()));
+        content.position((int) start);
+        
+        // The channel is not closed, as it would close the stream
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        while (content.hasRemaining()) {
+            target.write(content);
+        }
+    }
+    
+    /**
+     * The key of the object of an entity: its parent & unique UUID, followed
+     * by its revision for a file whose content was replaced
+     */
+	public static String getAmazonS3UniqueKey(Entity entity) {
+        return getAmazonS3UniqueKey(entity.getParent(), entity);
+    }
+	
+	/**
+	 * The key of the object of an entity under the given parent
+	 */
+	static String getAmazonS3UniqueKey(Folder parent, Entity entity) {
+	    String keyName = getObjectName(entity);
+	    if (parent != null) {
+	        keyName = parent.getId().toString() + java.io.File.separatorChar + keyName;
+	    }
+	    return keyName;
+	}
+	
+	/**
+	 * The last part of the key of the object of an entity, after its parent
+	 */
+	private static String getObjectName(Entity entity) {
+	    if (entity instanceof File && ((File) entity).getRevision() != null) {
+	        return entity.getId().toString() + REVISION_SEPARATOR + ((File) entity).getRevision();
+	    }
+	    return entity.getId().toString();
+	}
 	
 }
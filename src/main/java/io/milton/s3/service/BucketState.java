@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.service;
+
+/**
+ * Readiness of a bucket started in the background, so that the server can
+ * start before its bucket & table are confirmed
+ */
+public enum BucketState {
+    
+    /**
+     * The bucket or the table is still being checked or created
+     */
+    STARTING,
+    
+    /**
+     * The bucket & the table exist and the table is ACTIVE
+     */
+    READY,
+    
+    /**
+     * The bucket or the table could not be created, or the bucket was never
+     * started
+     */
+    FAILED
+}
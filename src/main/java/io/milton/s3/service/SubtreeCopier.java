@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.service;
+
+import io.milton.s3.AmazonS3Manager;
+import io.milton.s3.DynamoDBManager;
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
+import io.milton.s3.model.Folder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies a file, or a folder with everything under it, on the server side.
+ * 
+ * Every copy gets a fresh UUID. The source subtree is listed level by level,
+ * then the objects of the files are copied concurrently with server-side
+ * copies, and the items of the copies are stored with batch writes as their
+ * objects are copied. The items of the copied subfolders are stored last,
+ * with the aggregates computed from the listing, so that the content of the
+ * subfolders only shows up once it is complete; the files directly in the
+ * top folder show up as they are copied. If a copy fails, the copies not
+ * started yet are skipped, and once the running ones are done everything
+ * copied so far is deleted again.
+ */
+public class SubtreeCopier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubtreeCopier.class);
+    
+    /**
+     * Number of copied files stored by a single batch write
+     */
+    private static final int FILES_PER_BATCH = 100;
+    
+    private final DynamoDBManager dynamoDBManager;
+    
+    private final AmazonS3Manager amazonS3Manager;
+    
+    /**
+     * Lists the folders and copies the objects, its size bounds the number
+     * of concurrent copies
+     */
+    private final ExecutorService executor;
+    
+    public SubtreeCopier(DynamoDBManager dynamoDBManager, AmazonS3Manager amazonS3Manager, 
+            ExecutorService executor) {
+        this.dynamoDBManager = dynamoDBManager;
+        this.amazonS3Manager = amazonS3Manager;
+        this.executor = executor;
+    }
+    
+    /**
+     * Copy the given file or folder into the given folder under a new name
+     * 
+     * @param bucketName
+     *            - The bucket of the source
+     * @param source
+     *            - The file or folder to copy, with its parent
+     * @param newParent
+     *            - The folder to copy into
+     * @param targetBucketName
+     *            - The bucket of the new parent
+     * @param newName
+     *            - The name of the copy
+     * @return TRUE if everything was copied, FALSE if the name is taken or a
+     *         copy failed
+     */
+    public boolean copy(String bucketName, Entity source, Folder newParent, String targetBucketName, 
+            String newName) {
+        if (source instanceof File) {
+            return copyFile(bucketName, (File) source, newParent, targetBucketName, newName);
+        }
+        return copyFolder(bucketName, (Folder) source, newParent, targetBucketName, newName);
+    }
+    
+    private boolean copyFile(String bucketName, File source, Folder newParent, String targetBucketName, 
+            String newName) {
+        File copy = newCopy(source, newParent, newName);
+        String keyName = AmazonStorageServiceImpl.getAmazonS3UniqueKey(copy);
+        if (!amazonS3Manager.copyEntity(bucketName, AmazonStorageServiceImpl.getAmazonS3UniqueKey(source), 
+                targetBucketName, keyName)) {
+            return false;
+        }
+        
+        if (!dynamoDBManager.putEntity(targetBucketName, copy)) {
+            amazonS3Manager.deleteEntity(targetBucketName, keyName);
+            return false;
+        }
+        return true;
+    }
+    
+    private boolean copyFolder(String bucketName, Folder source, Folder newParent, String targetBucketName, 
+            String newName) {
+        // The top folder claims its name before anything is copied
+        Folder topCopy = newParent.addFolder(newName);
+        if (!dynamoDBManager.putEntity(targetBucketName, topCopy)) {
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        List<Folder> folderCopies = new ArrayList<Folder>();
+        List<File> fileSources = new ArrayList<File>();
+        List<File> fileCopies = new ArrayList<File>();
+        List<File> storedCopies = new ArrayList<File>();
+        List<Future<Boolean>> objectCopies = new ArrayList<Future<Boolean>>();
+        AtomicBoolean isAborted = new AtomicBoolean();
+        boolean isSuccessful = true;
+        try {
+            listSubtree(bucketName, source, topCopy, folderCopies, fileSources, fileCopies);
+            LOG.info("Copying folder " + source.getName() + " to " + newName + ": " + folderCopies.size() 
+                    + " folders and " + fileCopies.size() + " files");
+            
+            for (int i = 0; i < fileCopies.size(); i++) {
+                objectCopies.add(executor.submit(copyObject(bucketName, fileSources.get(i), 
+                        targetBucketName, fileCopies.get(i), isAborted)));
+            }
+            
+            // Store the files in the order they were submitted, as their
+            // objects get copied
+            List<Entity> batch = new ArrayList<Entity>(FILES_PER_BATCH);
+            for (int i = 0; i < fileCopies.size(); i++) {
+                if (!objectCopies.get(i).get()) {
+                    isSuccessful = false;
+                    continue;
+                }
+                
+                batch.add(fileCopies.get(i));
+                if (batch.size() == FILES_PER_BATCH || i == fileCopies.size() - 1) {
+                    isSuccessful &= storeFiles(targetBucketName, batch, storedCopies);
+                    batch = new ArrayList<Entity>(FILES_PER_BATCH);
+                    LOG.info("Copying folder " + source.getName() + " to " + newName + ": " 
+                            + storedCopies.size() + " of " + fileCopies.size() + " files copied");
+                }
+            }
+            if (!batch.isEmpty()) {
+                isSuccessful &= storeFiles(targetBucketName, batch, storedCopies);
+            }
+            
+            if (isSuccessful) {
+                isSuccessful = dynamoDBManager.putEntities(targetBucketName, new ArrayList<Entity>(folderCopies));
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while copying folder " + source.getName() + " in bucket " + bucketName);
+            isSuccessful = false;
+        } catch (ExecutionException ee) {
+            LOG.error("Failed to copy folder " + source.getName() + " in bucket " + bucketName, ee.getCause());
+            isSuccessful = false;
+        }
+        
+        if (!isSuccessful) {
+            LOG.warn("Could not copy folder " + source.getName() + " to " + newName 
+                    + ", deleting the copied content");
+            isAborted.set(true);
+            awaitCopies(objectCopies);
+            deleteCopies(targetBucketName, topCopy, folderCopies, fileCopies);
+            return false;
+        }
+        
+        dynamoDBManager.addAggregates(targetBucketName, topCopy, topCopy.getChildCount(), 
+                topCopy.getFileCount(), topCopy.getTotalBytes());
+        LOG.info("Copied folder " + source.getName() + " to " + newName + ": " + folderCopies.size() 
+                + " folders and " + fileCopies.size() + " files in " 
+                + (System.currentTimeMillis() - startTime) + " ms");
+        return true;
+    }
+    
+    /**
+     * List the subtree of the source folder level by level, creating the
+     * copies of its folders & files under the top copy with their aggregates
+     */
+    private void listSubtree(String bucketName, Folder source, Folder topCopy, List<Folder> folderCopies, 
+            List<File> fileSources, List<File> fileCopies) throws InterruptedException, ExecutionException {
+        List<Folder> sources = Collections.singletonList(source);
+        List<Folder> copies = Collections.singletonList(topCopy);
+        while (!sources.isEmpty()) {
+            List<Folder> nextSources = new ArrayList<Folder>();
+            List<Folder> nextCopies = new ArrayList<Folder>();
+            List<Future<List<Entity>>> listings = executor.invokeAll(listChildren(bucketName, sources));
+            for (int i = 0; i < listings.size(); i++) {
+                Folder parentCopy = copies.get(i);
+                for (Entity child : listings.get(i).get()) {
+                    parentCopy.setChildCount(parentCopy.getChildCount() + 1);
+                    if (child instanceof Folder) {
+                        Folder folderCopy = parentCopy.addFolder(child.getName());
+                        nextSources.add((Folder) child);
+                        nextCopies.add(folderCopy);
+                        folderCopies.add(folderCopy);
+                    } else {
+                        File fileCopy = newCopy((File) child, parentCopy, child.getName());
+                        fileSources.add((File) child);
+                        fileCopies.add(fileCopy);
+                        parentCopy.setFileCount(parentCopy.getFileCount() + 1);
+                        parentCopy.setTotalBytes(parentCopy.getTotalBytes() + fileCopy.getSize());
+                    }
+                }
+            }
+            sources = nextSources;
+            copies = nextCopies;
+        }
+        
+        // The folders are listed top down, so adding the totals of every
+        // folder to its parent from the last one makes them recursive
+        for (int i = folderCopies.size() - 1; i >= 0; i--) {
+            Folder folderCopy = folderCopies.get(i);
+            Folder parentCopy = folderCopy.getParent();
+            parentCopy.setFileCount(parentCopy.getFileCount() + folderCopy.getFileCount());
+            parentCopy.setTotalBytes(parentCopy.getTotalBytes() + folderCopy.getTotalBytes());
+        }
+    }
+    
+    private List<Callable<List<Entity>>> listChildren(final String bucketName, List<Folder> folders) {
+        List<Callable<List<Entity>>> listings = new ArrayList<Callable<List<Entity>>>(folders.size());
+        for (final Folder folder : folders) {
+            listings.add(new Callable<List<Entity>>() {
+                @Override
+                public List<Entity> call() throws Exception {
+                    return dynamoDBManager.findEntityByParent(bucketName, folder);
+                }
+            });
+        }
+        return listings;
+    }
+    
+    private Callable<Boolean> copyObject(final String bucketName, final File source, 
+            final String targetBucketName, final File copy, final AtomicBoolean isAborted) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                if (isAborted.get()) {
+                    return false;
+                }
+                return amazonS3Manager.copyEntity(bucketName, AmazonStorageServiceImpl.getAmazonS3UniqueKey(source), 
+                        targetBucketName, AmazonStorageServiceImpl.getAmazonS3UniqueKey(copy));
+            }
+        };
+    }
+    
+    private boolean storeFiles(String targetBucketName, List<Entity> files, List<File> storedCopies) {
+        if (!dynamoDBManager.putEntities(targetBucketName, files)) {
+            return false;
+        }
+        for (Entity file : files) {
+            storedCopies.add((File) file);
+        }
+        return true;
+    }
+    
+    /**
+     * Wait for the object copies still running, so that no object is copied
+     * after the copies are deleted. The wait goes on if the thread is
+     * interrupted, the interrupt being restored once done.
+     */
+    private void awaitCopies(List<Future<Boolean>> objectCopies) {
+        boolean isInterrupted = Thread.interrupted();
+        for (Future<Boolean> objectCopy : objectCopies) {
+            while (true) {
+                try {
+                    objectCopy.get();
+                    break;
+                } catch (InterruptedException ie) {
+                    isInterrupted = true;
+                } catch (ExecutionException ee) {
+                    // Done, the copy failed
+                    break;
+                }
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Delete the objects copied so far, the items of all the copied files &
+     * folders and the top folder. A failed batch write may have stored only
+     * some of its items, so the items of every copy are deleted, whether
+     * they were stored or not.
+     */
+    private void deleteCopies(String targetBucketName, Folder topCopy, List<Folder> folderCopies, 
+            List<File> fileCopies) {
+        List<String> keyNames = new ArrayList<String>(fileCopies.size());
+        for (File fileCopy : fileCopies) {
+            keyNames.add(AmazonStorageServiceImpl.getAmazonS3UniqueKey(fileCopy));
+        }
+        amazonS3Manager.deleteEntities(targetBucketName, keyNames);
+        
+        List<Entity> copies = new ArrayList<Entity>(fileCopies.size() + folderCopies.size());
+        copies.addAll(fileCopies);
+        copies.addAll(folderCopies);
+        if (!dynamoDBManager.deleteEntities(targetBucketName, copies)) {
+            LOG.warn("Could not delete all the copied items under " + topCopy.getName() 
+                    + " in bucket " + targetBucketName);
+        }
+        dynamoDBManager.deleteEntityByUniqueId(targetBucketName, topCopy.getId().toString());
+    }
+    
+    private static File newCopy(File source, Folder newParent, String newName) {
+        File copy = newParent.addFile(newName);
+        copy.setSize(source.getSize());
+        copy.setContentType(source.getContentType());
+        return copy;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.service;
+
+import io.milton.s3.AmazonS3Manager;
+import io.milton.s3.DynamoDBManager;
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
+import io.milton.s3.model.Folder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes a folder and everything under it.
+ * 
+ * The subtree is walked level by level, the children of all the folders of
+ * a level being listed concurrently. Files are deleted by chunks of 1,000 as
+ * they are found: their objects with a multi-object delete, then their items
+ * with batch writes. The folders are deleted once all the files are, deepest
+ * first, so that an interrupted delete can be run again from the top folder.
+ * 
+ * The aggregates of the ancestors are updated after each chunk of files, so
+ * that they stay right when only some of the chunks could be deleted.
+ */
+public class SubtreeDeleter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubtreeDeleter.class);
+    
+    /**
+     * Number of files deleted by a single task, the maximum number of keys
+     * of a multi-object delete request
+     */
+    private static final int FILES_PER_CHUNK = 1000;
+    
+    private final DynamoDBManager dynamoDBManager;
+    
+    private final AmazonS3Manager amazonS3Manager;
+    
+    /**
+     * Lists the folders and deletes the chunks of files, its size bounds the
+     * parallelism of a delete
+     */
+    private final ExecutorService executor;
+    
+    private final DeleteListener deleteListener;
+    
+    public SubtreeDeleter(DynamoDBManager dynamoDBManager, AmazonS3Manager amazonS3Manager, 
+            ExecutorService executor, DeleteListener deleteListener) {
+        this.dynamoDBManager = dynamoDBManager;
+        this.amazonS3Manager = amazonS3Manager;
+        this.executor = executor;
+        this.deleteListener = deleteListener;
+    }
+    
+    /**
+     * Delete the given folder with all its subfolders & files
+     * 
+     * @param bucketName
+     * @param folder
+     * @return TRUE if everything was deleted, otherwise FALSE and the
+     *         folders are kept
+     */
+    public boolean delete(String bucketName, Folder folder) {
+        Progress progress = new Progress(bucketName, folder);
+        List<List<Entity>> folderLevels = new ArrayList<List<Entity>>();
+        List<Future<Boolean>> fileDeletions = new ArrayList<Future<Boolean>>();
+        boolean isSuccessful = true;
+        
+        try {
+            List<Entity> files = new ArrayList<Entity>(FILES_PER_CHUNK);
+            List<Folder> level = Collections.singletonList(folder);
+            while (!level.isEmpty()) {
+                List<Folder> nextLevel = new ArrayList<Folder>();
+                for (Future<List<Entity>> children : executor.invokeAll(listChildren(bucketName, level))) {
+                    for (Entity child : children.get()) {
+                        if (child instanceof Folder) {
+                            nextLevel.add((Folder) child);
+                            continue;
+                        }
+                        
+                        files.add(child);
+                        if (files.size() == FILES_PER_CHUNK) {
+                            fileDeletions.add(executor.submit(deleteFiles(bucketName, files, progress)));
+                            files = new ArrayList<Entity>(FILES_PER_CHUNK);
+                        }
+                    }
+                }
+                
+                progress.listedFolders.addAndGet(level.size());
+                if (!nextLevel.isEmpty()) {
+                    folderLevels.add(new ArrayList<Entity>(nextLevel));
+                }
+                level = nextLevel;
+                LOG.info(progress.toString());
+            }
+            
+            if (!files.isEmpty()) {
+                fileDeletions.add(executor.submit(deleteFiles(bucketName, files, progress)));
+            }
+            for (Future<Boolean> fileDeletion : fileDeletions) {
+                if (!fileDeletion.get()) {
+                    isSuccessful = false;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while deleting folder " + folder.getName() + " in bucket " + bucketName);
+            return false;
+        } catch (ExecutionException ee) {
+            LOG.error("Failed to delete folder " + folder.getName() + " in bucket " + bucketName, ee.getCause());
+            return false;
+        }
+        
+        if (!isSuccessful) {
+            LOG.warn("Kept the folders under " + folder.getName() + " in bucket " + bucketName 
+                    + ", some files could not be deleted. " + progress);
+            return false;
+        }
+        
+        for (int i = folderLevels.size() - 1; i >= 0; i--) {
+            if (!dynamoDBManager.deleteEntities(bucketName, folderLevels.get(i))) {
+                LOG.warn("Could not delete the folders at depth " + (i + 1) + " under " + folder.getName() 
+                        + " in bucket " + bucketName);
+                return false;
+            }
+            progress.deletedFolders.addAndGet(folderLevels.get(i).size());
+        }
+        
+        // The top folder is deleted last, removing it from its parent & from
+        // the aggregates of its ancestors
+        isSuccessful = dynamoDBManager.deleteEntityByUniqueId(bucketName, folder.getId().toString());
+        if (isSuccessful) {
+            progress.deletedFolders.incrementAndGet();
+        }
+        LOG.info("Deleted folder " + folder.getName() + ": " + progress);
+        return isSuccessful;
+    }
+    
+    private List<Callable<List<Entity>>> listChildren(final String bucketName, List<Folder> folders) {
+        List<Callable<List<Entity>>> listings = new ArrayList<Callable<List<Entity>>>(folders.size());
+        for (final Folder folder : folders) {
+            listings.add(new Callable<List<Entity>>() {
+                @Override
+                public List<Entity> call() throws Exception {
+                    return dynamoDBManager.findEntityByParent(bucketName, folder);
+                }
+            });
+        }
+        return listings;
+    }
+    
+    private Callable<Boolean> deleteFiles(final String bucketName, final List<Entity> files, 
+            final Progress progress) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                List<String> keyNames = new ArrayList<String>(files.size());
+                for (Entity file : files) {
+                    keyNames.add(AmazonStorageServiceImpl.getAmazonS3UniqueKey(file));
+                }
+                
+                // The items are kept if the objects could not be deleted, so
+                // that the files can be deleted again. Some of the objects
+                // may be gone even then.
+                boolean isDeleted = amazonS3Manager.deleteEntities(bucketName, keyNames);
+                for (String keyName : keyNames) {
+                    deleteListener.onDeleted(bucketName, keyName);
+                }
+                if (!isDeleted || !dynamoDBManager.deleteEntities(bucketName, files)) {
+                    return false;
+                }
+                
+                removeFromAggregates(bucketName, files);
+                progress.deletedFiles.addAndGet(files.size());
+                LOG.info(progress.toString());
+                return true;
+            }
+        };
+    }
+    
+    /**
+     * Remove the given deleted files from the aggregates of their parents &
+     * ancestors, with one update per parent & ancestor
+     */
+    private void removeFromAggregates(String bucketName, List<Entity> files) {
+        Map<String, Folder> parents = new LinkedHashMap<String, Folder>();
+        Map<String, long[]> deltas = new LinkedHashMap<String, long[]>();
+        for (Entity file : files) {
+            String parentId = file.getParent().getId().toString();
+            long[] delta = deltas.get(parentId);
+            if (delta == null) {
+                delta = new long[2];
+                deltas.put(parentId, delta);
+                parents.put(parentId, file.getParent());
+            }
+            delta[0]++;
+            if (file instanceof File) {
+                delta[1] += ((File) file).getSize();
+            }
+        }
+        
+        for (Map.Entry<String, long[]> delta : deltas.entrySet()) {
+            dynamoDBManager.addAggregates(bucketName, parents.get(delta.getKey()), -delta.getValue()[0], 
+                    -delta.getValue()[0], -delta.getValue()[1]);
+        }
+    }
+    
+    /**
+     * Notified of the objects deleted with the files, e.g. to invalidate the
+     * cached copies of the objects
+     */
+    public interface DeleteListener {
+        
+        void onDeleted(String bucketName, String keyName);
+    }
+    
+    /**
+     * Progress of the delete of a folder, updated by the concurrent tasks
+     */
+    private static class Progress {
+        
+        private final String bucketName;
+        
+        private final Folder folder;
+        
+        private final long startTime = System.currentTimeMillis();
+        
+        private final AtomicLong listedFolders = new AtomicLong();
+        
+        private final AtomicLong deletedFiles = new AtomicLong();
+        
+        private final AtomicLong deletedFolders = new AtomicLong();
+        
+        private Progress(String bucketName, Folder folder) {
+            this.bucketName = bucketName;
+            this.folder = folder;
+        }
+        
+        @Override
+        public String toString() {
+            return "Deleting folder " + folder.getName() + " in bucket " + bucketName + ": " 
+                    + listedFolders.get() + " folders listed, " + deletedFiles.get() + " files and " 
+                    + deletedFolders.get() + " folders deleted in " 
+                    + (System.currentTimeMillis() - startTime) + " ms";
+        }
+    }
+}
@@ -28,4 +28,60 @@ public class AttributeKey {
 	public static final String CONTENT_TYPE = "ContentType";
 	public static final String CREATED_DATE = "CreatedDate";
 	public static final String MODIFIED_DATE = "ModifiedDate";
+	
+	/**
+	 * Aggregates of a folder, maintained with atomic ADD updates: the number
+	 * of direct children, and the number of files & bytes of its subtree.
+	 * They have the same names in both schemas, so that the updates made in
+	 * either schema add up.
+	 */
+	public static final String CHILD_COUNT = "ChildCount";
+	public static final String FILE_COUNT = "FileCount";
+	public static final String TOTAL_BYTES = "TotalBytes";
+	
+	/**
+	 * Unique UUID of the entity a path index item points to. Path index items
+	 * are keyed by a hash of the parent UUID & entity name.
+	 */
+	public static final String TARGET_UUID = "TargetId";
+	
+	/**
+	 * Time a path index item was written, in epoch milliseconds. The item is
+	 * written before its entity, a recent item is never taken over.
+	 */
+	public static final String CLAIMED_DATE = "ClaimedAt";
+	
+	/**
+	 * Time the entities of a table all had a path index item, in epoch
+	 * milliseconds, stored in a single item marking the table. Entities are
+	 * only looked up on the parent index in the tables not marked.
+	 */
+	public static final String INDEXED_DATE = "IndexedAt";
+	
+	/**
+	 * Revision of the content of a file, set once its content is replaced.
+	 * The object of the file is keyed by its unique UUID and revision. It has
+	 * the same name in both schemas.
+	 */
+	public static final String REVISION = "Revision";
+	
+	/**
+	 * Attributes of the compact schema: a type byte, and the size & dates as
+	 * numbers (dates in epoch milliseconds) under short names. The keys of
+	 * the table and of the parent index keep their names and string type.
+	 */
+	public static final String COMPACT_TYPE = "t";
+	public static final String COMPACT_FILE_SIZE = "s";
+	public static final String COMPACT_CONTENT_TYPE = "c";
+	public static final String COMPACT_CREATED_DATE = "cd";
+	public static final String COMPACT_MODIFIED_DATE = "md";
+	
+	public static final byte TYPE_FILE = 0;
+	public static final byte TYPE_FOLDER = 1;
+	
+	/**
+	 * Global secondary index keyed on ParentId (hash) and EntityName (range),
+	 * used to list the children of a folder without scanning the table
+	 */
+	public static final String PARENT_INDEX = "ParentId-EntityName-index";
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of buffers of the same size, shared by the uploads so that the
+ * memory they use is bounded whatever the number of concurrent uploads.
+ * 
+ * The buffers are allocated on first use and reused afterwards. Several
+ * buffers are acquired at once, so that two callers never wait for each other
+ * while each holding part of the buffers they need.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    
+    private final int bufferCount;
+    
+    private final Semaphore permits;
+    
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+    
+    public BufferPool(int bufferSize, int bufferCount) {
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+        this.permits = new Semaphore(bufferCount, true);
+    }
+    
+    public int getBufferSize() {
+        return bufferSize;
+    }
+    
+    public int getBufferCount() {
+        return bufferCount;
+    }
+    
+    /**
+     * Wait until the given number of buffers is free and take them
+     * 
+     * @param count
+     *            - The number of buffers, at most the size of the pool
+     * @return the buffers, with undefined content
+     * @throws InterruptedException
+     */
+    public List<byte[]> acquire(int count) throws InterruptedException {
+        if (count < 1 || count > bufferCount) {
+            throw new IllegalArgumentException("Cannot acquire " + count + " of " + bufferCount + " buffers");
+        }
+        
+        permits.acquire(count);
+        return takeBuffers(count);
+    }
+    
+    /**
+     * Take the given number of buffers if they get free within the given
+     * time. The waiting callers are served first, so that a caller holding
+     * buffers can never take the buffers another caller waits for.
+     * 
+     * @param count
+     *            - The number of buffers, at most the size of the pool
+     * @param timeout
+     *            - The maximum time to wait, 0 not to wait
+     * @param unit
+     * @return the buffers, with undefined content, or null if they are not
+     *         free in time
+     * @throws InterruptedException
+     */
+    public List<byte[]> tryAcquire(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        if (count < 1 || count > bufferCount) {
+            throw new IllegalArgumentException("Cannot acquire " + count + " of " + bufferCount + " buffers");
+        }
+        
+        if (!permits.tryAcquire(count, timeout, unit)) {
+            return null;
+        }
+        return takeBuffers(count);
+    }
+    
+    private List<byte[]> takeBuffers(int count) {
+        List<byte[]> buffers = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] buffer = freeBuffers.poll();
+            buffers.add(buffer != null ? buffer : new byte[bufferSize]);
+        }
+        return buffers;
+    }
+    
+    /**
+     * Give back the buffers taken by acquire
+     * 
+     * @param buffers
+     */
+    public void release(List<byte[]> buffers) {
+        freeBuffers.addAll(buffers);
+        permits.release(buffers.size());
+    }
+}
@@ -20,21 +20,81 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
+/**
+ * Formats and parses the dates stored in Amazon DynamoDB, in the layout
+ * "E MMM dd HH:mm:ss Z yyyy" of the default time zone (e.g.
+ * "Fri Oct 17 10:24:05 +0200 2026").
+ * 
+ * The layout is fixed, so dates are formatted & parsed by hand without any
+ * lock or shared mutable state, and can be used from every request thread.
+ * Dates the fast path cannot handle (non-English default locale, years out
+ * of 1583-9999, unexpected input) fall back to a SimpleDateFormat per thread.
+ */
 public class DateUtils {
 
-	public static final DateFormat dateFormat = new SimpleDateFormat("E MMM dd HH:mm:ss Z yyyy");
+	public static final String DATE_PATTERN = "E MMM dd HH:mm:ss Z yyyy";
+	
+	private static final String[] DAY_NAMES = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+	
+	private static final String[] MONTH_NAMES = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", 
+	    "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+	
+	/**
+	 * Length of a formatted date with a 4 digits year
+	 */
+	private static final int DATE_LENGTH = 30;
+	
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	
+	/**
+	 * Earliest & latest instants formatted by the fast path: the Gregorian
+	 * calendar is used from 1583 (SimpleDateFormat switches from the Julian
+	 * calendar in October 1582) and years have 4 digits until 9999
+	 */
+	private static final long MIN_FAST_MILLIS = daysFromCivil(1583, 1, 2) * MILLIS_PER_DAY;
+	private static final long MAX_FAST_MILLIS = daysFromCivil(9999, 12, 30) * MILLIS_PER_DAY;
+	
+	private static final TimeZone TIME_ZONE = TimeZone.getDefault();
+	
+	/**
+	 * Day & month names of the fast path are English
+	 */
+	private static final boolean IS_FAST_PATH = "en".equals(Locale.getDefault().getLanguage());
+	
+	/**
+	 * SimpleDateFormat is not thread-safe, so each thread has its own one
+	 */
+	private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+	    @Override
+	    protected DateFormat initialValue() {
+	        return new SimpleDateFormat(DATE_PATTERN);
+	    }
+	};
 	
 	/**
 	 * New date for the given string based on format date
 	 * 
 	 * @param dateString
-	 * @return
+	 * @return the date, or null if the string is not a date
 	 */
 	public static Date dateFromString(String dateString) {
+	    if (dateString == null) {
+	        return null;
+	    }
+	    
+	    if (IS_FAST_PATH) {
+	        long millis = parse(dateString);
+	        if (millis != Long.MIN_VALUE) {
+	            return new Date(millis);
+	        }
+	    }
+	    
     	Date date = null;
     	try {
-    		date = dateFormat.parse(dateString);
+    		date = DATE_FORMAT.get().parse(dateString);
 		} catch (ParseException pe) {}
     	return date;
     }
@@ -46,6 +106,151 @@ public class DateUtils {
 	 * @return
 	 */
 	public static String dateToString(Date date) {
-		return dateFormat.format(date);
+	    long millis = date.getTime();
+	    if (IS_FAST_PATH && millis >= MIN_FAST_MILLIS && millis <= MAX_FAST_MILLIS) {
+	        return format(millis);
+	    }
+		return DATE_FORMAT.get().format(date);
+	}
+	
+	private static String format(long millis) {
+	    int offsetMillis = TIME_ZONE.getOffset(millis);
+	    long localMillis = millis + offsetMillis;
+	    long days = floorDiv(localMillis, MILLIS_PER_DAY);
+	    int millisOfDay = (int) (localMillis - days * MILLIS_PER_DAY);
+	    
+	    // Civil date of the day, see daysFromCivil
+	    long z = days + 719468;
+	    long era = floorDiv(z, 146097);
+	    int dayOfEra = (int) (z - era * 146097);
+	    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+	    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+	    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+	    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+	    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+	    int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+	    
+	    // 1970-01-01 was a Thursday
+	    int dayOfWeek = (int) floorMod(days + 4, 7);
+	    
+	    int seconds = millisOfDay / 1000;
+	    int offsetMinutes = offsetMillis / 60000;
+	    
+	    char[] chars = new char[DATE_LENGTH];
+	    appendName(chars, 0, DAY_NAMES[dayOfWeek]);
+	    chars[3] = ' ';
+	    appendName(chars, 4, MONTH_NAMES[month - 1]);
+	    chars[7] = ' ';
+	    appendDigits(chars, 8, day, 2);
+	    chars[10] = ' ';
+	    appendDigits(chars, 11, seconds / 3600, 2);
+	    chars[13] = ':';
+	    appendDigits(chars, 14, seconds / 60 % 60, 2);
+	    chars[16] = ':';
+	    appendDigits(chars, 17, seconds % 60, 2);
+	    chars[19] = ' ';
+	    chars[20] = offsetMinutes < 0 ? '-' : '+';
+	    offsetMinutes = Math.abs(offsetMinutes);
+	    appendDigits(chars, 21, offsetMinutes / 60, 2);
+	    appendDigits(chars, 23, offsetMinutes % 60, 2);
+	    chars[25] = ' ';
+	    appendDigits(chars, 26, year, 4);
+	    return new String(chars);
+	}
+	
+	/**
+	 * @return the epoch milliseconds of the given date, or Long.MIN_VALUE if
+	 *         it does not have the expected layout
+	 */
+	private static long parse(String date) {
+	    if (date.length() != DATE_LENGTH || date.charAt(3) != ' ' || date.charAt(7) != ' ' 
+	            || date.charAt(10) != ' ' || date.charAt(13) != ':' || date.charAt(16) != ':' 
+	            || date.charAt(19) != ' ' || date.charAt(25) != ' ' || indexOfName(date, 0, DAY_NAMES) < 0) {
+	        return Long.MIN_VALUE;
+	    }
+	    
+	    int month = indexOfName(date, 4, MONTH_NAMES) + 1;
+	    int day = parseDigits(date, 8, 2);
+	    int hours = parseDigits(date, 11, 2);
+	    int minutes = parseDigits(date, 14, 2);
+	    int seconds = parseDigits(date, 17, 2);
+	    int offsetHours = parseDigits(date, 21, 2);
+	    int offsetMinutes = parseDigits(date, 23, 2);
+	    int year = parseDigits(date, 26, 4);
+	    char sign = date.charAt(20);
+	    if (month == 0 || day < 1 || day > 31 || hours < 0 || hours > 23 || minutes < 0 || minutes > 59 
+	            || seconds < 0 || seconds > 59 || offsetHours < 0 || offsetMinutes < 0 || year < 1583 
+	            || (sign != '+' && sign != '-')) {
+	        return Long.MIN_VALUE;
+	    }
+	    
+	    long offsetMillis = (offsetHours * 60L + offsetMinutes) * 60000;
+	    if (sign == '-') {
+	        offsetMillis = -offsetMillis;
+	    }
+	    
+	    long localMillis = daysFromCivil(year, month, day) * MILLIS_PER_DAY 
+	            + ((hours * 60L + minutes) * 60 + seconds) * 1000;
+	    return localMillis - offsetMillis;
+	}
+	
+	/**
+	 * Days since 1970-01-01 of the given date of the proleptic Gregorian
+	 * calendar (Howard Hinnant's days_from_civil)
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+	    year -= month <= 2 ? 1 : 0;
+	    long era = floorDiv(year, 400);
+	    int yearOfEra = (int) (year - era * 400);
+	    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+	    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+	    return era * 146097 + dayOfEra - 719468;
+	}
+	
+	private static void appendName(char[] chars, int offset, String name) {
+	    name.getChars(0, 3, chars, offset);
+	}
+	
+	private static void appendDigits(char[] chars, int offset, int value, int digits) {
+	    for (int i = offset + digits - 1; i >= offset; i--) {
+	        chars[i] = (char) ('0' + value % 10);
+	        value /= 10;
+	    }
+	}
+	
+	private static int indexOfName(String date, int offset, String[] names) {
+	    for (int i = 0; i < names.length; i++) {
+	        if (date.regionMatches(offset, names[i], 0, 3)) {
+	            return i;
+	        }
+	    }
+	    return -1;
+	}
+	
+	/**
+	 * @return the value of the digits, or -1 if a character is not a digit
+	 */
+	private static int parseDigits(String date, int offset, int digits) {
+	    int value = 0;
+	    for (int i = offset; i < offset + digits; i++) {
+	        char c = date.charAt(i);
+	        if (c < '0' || c > '9') {
+	            return -1;
+	        }
+	        value = value * 10 + (c - '0');
+	    }
+	    return value;
+	}
+	
+	private static long floorDiv(long x, long y) {
+	    long quotient = x / y;
+	    if ((x % y != 0) && ((x ^ y) < 0)) {
+	        quotient--;
+	    }
+	    return quotient;
+	}
+	
+	private static long floorMod(long x, long y) {
+	    return x - floorDiv(x, y) * y;
 	}
 }
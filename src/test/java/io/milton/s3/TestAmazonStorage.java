@@ -17,7 +17,9 @@
 package io.milton.s3;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import io.milton.s3.model.Entity;
 import io.milton.s3.model.File;
@@ -79,6 +81,72 @@ public class TestAmazonStorage {
         assertEquals(3, amazonStorageService.findEntityByParent(bucketName, rootFolder).size());
     }
     
+    @Test
+    public void testCreateFolderWithExistingName() {
+        Folder rootFolder = amazonStorageService.findRootFolder(bucketName);
+        assertNotNull(rootFolder);
+        
+        Folder folder = new Folder("Test 1", rootFolder);
+        assertTrue(amazonStorageService.putEntity(bucketName, folder, null));
+        
+        Folder sameNameFolder = new Folder("Test 1", rootFolder);
+        assertFalse(amazonStorageService.putEntity(bucketName, sameNameFolder, null));
+        
+        // Storing the same folder again is not a conflict
+        assertTrue(amazonStorageService.putEntity(bucketName, folder, null));
+        assertEquals(1, amazonStorageService.findEntityByParent(bucketName, rootFolder).size());
+    }
+    
+    @Test
+    public void testStoreFolderAgainKeepsAggregates() throws IOException {
+        Folder rootFolder = amazonStorageService.findRootFolder(bucketName);
+        assertNotNull(rootFolder);
+        
+        Folder folder = new Folder("Test 1", rootFolder);
+        assertTrue(amazonStorageService.putEntity(bucketName, folder, null));
+        assertTrue(amazonStorageService.putEntity(bucketName, new Folder("Test 2", folder), null));
+        
+        java.io.File file = new java.io.File("src/test/resources/test/1c8e930f68f4c260760e0d2e238e905a978e4259");
+        InputStream inputStream = new FileInputStream(file);
+        File entity = new File("1c8e930f68f4c260760e0d2e238e905a978e4259", folder);
+        entity.setSize(file.length());
+        assertTrue(amazonStorageService.putEntity(bucketName, entity, inputStream));
+        inputStream.close();
+        
+        // The folder in memory has no aggregates, storing it again keeps the
+        // stored ones
+        assertTrue(amazonStorageService.putEntity(bucketName, folder, null));
+        Folder storedFolder = amazonStorageService.findFolderAggregates(bucketName, folder);
+        assertNotNull(storedFolder);
+        assertEquals(2, storedFolder.getChildCount());
+        assertEquals(1, storedFolder.getFileCount());
+        assertEquals(file.length(), storedFolder.getTotalBytes());
+        
+        assertTrue(amazonStorageService.putEntity(bucketName, new Folder(rootFolder.getId(), 
+                rootFolder.getName(), rootFolder.getCreatedDate(), rootFolder.getModifiedDate(), null), null));
+        Folder storedRootFolder = amazonStorageService.findFolderAggregates(bucketName, rootFolder);
+        assertEquals(1, storedRootFolder.getChildCount());
+        assertEquals(1, storedRootFolder.getFileCount());
+        assertEquals(file.length(), storedRootFolder.getTotalBytes());
+    }
+    
+    @Test
+    public void testRenameFolderToExistingName() {
+        Folder rootFolder = amazonStorageService.findRootFolder(bucketName);
+        assertNotNull(rootFolder);
+        
+        Folder folder1 = new Folder("Test 1", rootFolder);
+        assertTrue(amazonStorageService.putEntity(bucketName, folder1, null));
+        
+        Folder folder2 = new Folder("Test 2", rootFolder);
+        assertTrue(amazonStorageService.putEntity(bucketName, folder2, null));
+        
+        assertFalse(amazonStorageService.updateEntityByUniqueId(bucketName, folder2, rootFolder, 
+                "Test 1", true));
+        assertEquals(folder2.getId(), amazonStorageService.findEntityByName(bucketName, rootFolder, 
+                "Test 2").getId());
+    }
+    
     @Test
     public void testRenameFolder() {
         Folder rootFolder = amazonStorageService.findRootFolder(bucketName);
@@ -164,6 +232,38 @@ public class TestAmazonStorage {
         inputStream.close();
     }
     
+    @Test
+    public void testReplaceFile() throws IOException {
+        Folder rootFolder = amazonStorageService.findRootFolder(bucketName);
+        assertNotNull(rootFolder);
+        
+        java.io.File file = new java.io.File("src/test/resources/test/1c8e930f68f4c260760e0d2e238e905a978e4259");
+        InputStream inputStream = new FileInputStream(file);
+        
+        File entity = new File("Replaced", rootFolder);
+        entity.setSize(file.length());
+        assertTrue(amazonStorageService.putEntity(bucketName, entity, inputStream));
+        inputStream.close();
+        String formerKeyName = AmazonStorageServiceImpl.getAmazonS3UniqueKey(entity);
+        
+        file = new java.io.File("src/test/resources/test/1cf8d9a9824c83b082565eb8d2d79e9dd264d7b9");
+        inputStream = new FileInputStream(file);
+        entity.setSize(file.length());
+        assertTrue(amazonStorageService.replaceEntity(bucketName, entity, inputStream));
+        inputStream.close();
+        
+        // The new content has a new key, the former one is deleted
+        assertFalse(formerKeyName.equals(AmazonStorageServiceImpl.getAmazonS3UniqueKey(entity)));
+        assertNull(amazonStorageService.downloadEntityByUniqueId(bucketName, formerKeyName));
+        
+        List<Entity> children = amazonStorageService.findEntityByParent(bucketName, rootFolder);
+        assertEquals(1, children.size());
+        assertEquals(entity.getId(), children.get(0).getId());
+        assertEquals(file.length(), ((File) children.get(0)).getSize());
+        assertEquals(entity.getRevision(), ((File) amazonStorageService.findEntityByName(bucketName, 
+                rootFolder, "Replaced")).getRevision());
+    }
+    
     @Test
     public void testGetChildrenOfRoot() throws IOException {
         Folder rootFolder = amazonStorageService.findRootFolder(bucketName);
@@ -185,7 +285,7 @@ public class TestAmazonStorage {
 
         inputStream = new FileInputStream(file);
         
-        entity = new File("1c8e930f68f4c260760e0d2e238e905a978e4259", rootFolder);
+        entity = new File("1cf8d9a9824c83b082565eb8d2d79e9dd264d7b9", rootFolder);
         assertTrue(amazonStorageService.putEntity(bucketName, entity, inputStream));
         
         List<Entity> children = amazonStorageService.findEntityByParent(bucketName, rootFolder);
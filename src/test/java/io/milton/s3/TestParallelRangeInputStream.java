@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import io.milton.s3.util.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class TestParallelRangeInputStream {
+
+    private static final int BUFFER_SIZE = 64;
+    
+    private static final int BUFFER_COUNT = 4;
+    
+    private static final int STREAMS = 16;
+    
+    byte[] content = new byte[100 * BUFFER_SIZE + 17];
+    
+    AmazonS3 amazonS3Client;
+    
+    /**
+     * Number of the next responses cut short by one byte
+     */
+    AtomicInteger truncatedResponses = new AtomicInteger();
+    
+    BufferPool bufferPool = new BufferPool(BUFFER_SIZE, BUFFER_COUNT);
+    
+    ExecutorService executor = Executors.newFixedThreadPool(BUFFER_COUNT);
+    
+    @Before
+    public void setUp() {
+        new Random(42).nextBytes(content);
+        amazonS3Client = (AmazonS3) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!method.getName().equals("getObject") || !(args[0] instanceof GetObjectRequest)) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                long[] range = ((GetObjectRequest) args[0]).getRange();
+                int length = (int) (range[1] - range[0] + 1);
+                if (truncatedResponses.getAndDecrement() > 0) {
+                    length--;
+                }
+                S3Object s3Object = new S3Object();
+                s3Object.setObjectContent(new ByteArrayInputStream(content, (int) range[0], length));
+                return s3Object;
+            }
+        });
+    }
+    
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * More streams than buffers, each reading slowly while holding its
+     * buffers, must all complete
+     */
+    @Test(timeout = 60000)
+    public void testMoreStreamsThanBuffers() throws Exception {
+        ExecutorService readers = Executors.newFixedThreadPool(STREAMS);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < STREAMS; i++) {
+                futures.add(readers.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return read(0, content.length - 1, true);
+                    }
+                }));
+            }
+            for (Future<byte[]> future : futures) {
+                assertArrayEquals(content, future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testRange() throws Exception {
+        byte[] expected = new byte[3 * BUFFER_SIZE];
+        System.arraycopy(content, 10, expected, 0, expected.length);
+        assertArrayEquals(expected, read(10, 10 + expected.length - 1, false));
+    }
+    
+    @Test
+    public void testTruncatedResponseRetried() throws Exception {
+        truncatedResponses.set(2);
+        assertArrayEquals(content, read(0, content.length - 1, false));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testTruncatedResponseFails() throws Exception {
+        truncatedResponses.set(Integer.MAX_VALUE);
+        read(0, content.length - 1, false);
+    }
+    
+    private byte[] read(long start, long finish, boolean isSlow) throws Exception {
+        InputStream inputStream = new ParallelRangeInputStream(amazonS3Client, "bucket", "key", start, finish, 
+                bufferPool, executor);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] bytes = new byte[BUFFER_SIZE / 2];
+            int count;
+            while ((count = inputStream.read(bytes)) >= 0) {
+                outputStream.write(bytes, 0, count);
+                if (isSlow) {
+                    Thread.sleep(1);
+                }
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestDateUtils {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TestDateUtils.class);
+    
+    private static final int THREADS = 16;
+    
+    private static final int ITERATIONS = 20000;
+    
+    /**
+     * Random instants rounded to the second, from 1940 to 2096
+     */
+    private static long randomMillis(Random random) {
+        long millis = (long) (random.nextDouble() * 5000000000000L) - 1000000000000L;
+        return millis / 1000 * 1000;
+    }
+    
+    @Test
+    public void testSameFormatAsSimpleDateFormat() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat(DateUtils.DATE_PATTERN);
+        Random random = new Random(42);
+        for (int i = 0; i < ITERATIONS; i++) {
+            Date date = new Date(randomMillis(random));
+            String dateString = dateFormat.format(date);
+            
+            assertEquals(dateString, DateUtils.dateToString(date));
+            assertEquals(dateFormat.parse(dateString), DateUtils.dateFromString(dateString));
+        }
+    }
+    
+    @Test
+    public void testInvalidDate() {
+        assertNull(DateUtils.dateFromString(null));
+        assertNull(DateUtils.dateFromString(""));
+        assertNull(DateUtils.dateFromString("not a date"));
+    }
+    
+    @Test
+    public void testConcurrentFormatAndParse() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < THREADS; i++) {
+                final long seed = i;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        Random random = new Random(seed);
+                        int errors = 0;
+                        for (int j = 0; j < ITERATIONS; j++) {
+                            Date date = new Date(randomMillis(random));
+                            if (!date.equals(DateUtils.dateFromString(DateUtils.dateToString(date)))) {
+                                errors++;
+                            }
+                        }
+                        return errors;
+                    }
+                }));
+            }
+            
+            int errors = 0;
+            for (Future<Integer> future : futures) {
+                errors += future.get();
+            }
+            assertEquals(0, errors);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Compares the throughput of DateUtils with a SimpleDateFormat shared
+     * behind a lock, as DateUtils used to be. A benchmark with nothing to
+     * assert, run by hand.
+     */
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testThroughput() throws Exception {
+        final DateFormat sharedFormat = new SimpleDateFormat(DateUtils.DATE_PATTERN);
+        long sharedOps = benchmark(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Date date = new Date();
+                synchronized (sharedFormat) {
+                    sharedFormat.parse(sharedFormat.format(date));
+                }
+                return null;
+            }
+        });
+        
+        long codecOps = benchmark(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                DateUtils.dateFromString(DateUtils.dateToString(new Date()));
+                return null;
+            }
+        });
+        
+        LOG.info("Format & parse with " + THREADS + " threads: shared SimpleDateFormat " 
+                + sharedOps + " ops/s, DateUtils " + codecOps + " ops/s");
+    }
+    
+    private long benchmark(final Callable<Void> operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < THREADS; i++) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < ITERATIONS; j++) {
+                            operation.call();
+                        }
+                        return null;
+                    }
+                });
+            }
+            
+            // Warm up, then measure
+            executor.invokeAll(tasks);
+            long start = System.nanoTime();
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            long elapsedNanos = Math.max(1, System.nanoTime() - start);
+            return (long) THREADS * ITERATIONS * 1000000000L / elapsedNanos;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}